@@ -0,0 +1,187 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A small measurement harness in the manner of JMH: every case is run for
+ * a warm-up period, then for a measurement period split in iterations, and
+ * the mean and spread of the iterations are reported.
+ *
+ * Results can be saved to a file and compared with a file saved earlier,
+ * so that a change is measured against a baseline:
+ *
+ *     ant bench -Dbench.class=... -Dbench.args="-save before.properties"
+ *     (apply the change)
+ *     ant bench -Dbench.class=... -Dbench.args="-baseline before.properties"
+ *
+ * @author Stephan Hadinger
+ */
+class Bench {
+
+    /**
+     * One operation of a benchmark case.
+     */
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private long _warmup_ms = 1000;
+    private long _iteration_ms = 1000;
+    private int _iterations = 5;
+    private File _save;
+    private final Properties _results = new Properties();
+    private final Properties _baseline = new Properties();
+
+    private static volatile Object sink;
+
+    /**
+     * Reads the harness options from the command line:
+     *  -w ms: warm-up time of each case
+     *  -r ms: time of each measurement iteration
+     *  -i n: number of measurement iterations
+     *  -save file: saves the results
+     *  -baseline file: compares the results with a saved run
+     *
+     * @return the remaining arguments
+     */
+    String[] parseOptions(String[] args) throws IOException {
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-w") && (i + 1 < args.length)) {
+                _warmup_ms = Long.parseLong(args[++i]);
+            } else if (arg.equals("-r") && (i + 1 < args.length)) {
+                _iteration_ms = Long.parseLong(args[++i]);
+            } else if (arg.equals("-i") && (i + 1 < args.length)) {
+                _iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("-save") && (i + 1 < args.length)) {
+                _save = new File(args[++i]);
+            } else if (arg.equals("-baseline") && (i + 1 < args.length)) {
+                InputStream in = new FileInputStream(args[++i]);
+                try {
+                    _baseline.load(in);
+                } finally {
+                    in.close();
+                }
+            } else {
+                rest.add(arg);
+            }
+        }
+        System.out.println("# warm-up " + _warmup_ms + " ms, " + _iterations + " iterations of " + _iteration_ms + " ms");
+        System.out.println("benchmark\tns/op\t+-%\tops/s\tunit/s\tvs baseline");
+        return rest.toArray(new String[rest.size()]);
+    }
+
+    /**
+     * Measures a case.
+     *
+     * @param name name of the case, used as key of the saved results
+     * @param units units processed by one operation (entries, bytes), or 0
+     * @param unit name of the unit, "MB" for bytes reported in MB/s
+     * @param op the operation
+     */
+    void run(String name, long units, String unit, Operation op) throws Exception {
+        runFor(op, _warmup_ms);
+        double[] ns_per_op = new double[_iterations];
+        for (int i = 0; i < _iterations; i++)
+            ns_per_op[i] = runFor(op, _iteration_ms);
+
+        double mean = 0;
+        for (double value:ns_per_op)
+            mean += value;
+        mean /= _iterations;
+        double variance = 0;
+        for (double value:ns_per_op)
+            variance += (value - mean) * (value - mean);
+        double spread = (_iterations > 1) ? 100 * Math.sqrt(variance / (_iterations - 1)) / mean : 0;
+
+        StringBuilder line = new StringBuilder(name);
+        line.append('\t').append(Math.round(mean));
+        line.append('\t').append(Math.round(spread));
+        line.append('\t').append(Math.round(1e9 / mean));
+        if (units > 0) {
+            double per_second = units * 1e9 / mean;
+            if ("MB".equals(unit))
+                line.append('\t').append(Math.round(per_second / (1024 * 1024))).append(" MB/s");
+            else
+                line.append('\t').append(Math.round(per_second)).append(' ').append(unit).append("/s");
+        } else {
+            line.append("\t-");
+        }
+        String baseline = _baseline.getProperty(name);
+        if (baseline != null) {
+            double before = Double.parseDouble(baseline);
+            line.append('\t').append(Math.round(100 * (mean - before) / before)).append('%');
+        }
+        System.out.println(line);
+        _results.setProperty(name, String.valueOf(mean));
+    }
+
+    /**
+     * Writes the results if -save was given.
+     */
+    void finish() throws IOException {
+        if (_save == null)
+            return;
+        OutputStream out = new FileOutputStream(_save);
+        try {
+            _results.store(out, "atmosdav benchmark results, ns/op");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Runs the operation repeatedly for at least duration_ms, and at least
+     * once.
+     *
+     * @return the mean time of an operation in ns
+     */
+    private static double runFor(Operation op, long duration_ms) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + duration_ms * 1000000L;
+        long count = 0;
+        long now;
+        do {
+            op.run();
+            count++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - start) / count;
+    }
+
+    /**
+     * Keeps a result alive, so that the JIT does not remove its computation.
+     */
+    static void consume(Object result) {
+        sink = result;
+    }
+}
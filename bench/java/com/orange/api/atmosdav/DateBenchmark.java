@@ -0,0 +1,105 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Measures the per-entry cost of rendering getlastmodified in a PROPFIND
+ * listing, with the SimpleDateFormat parse and format done before
+ * AtmosDates, and with AtmosDates. A listing of N entries has N/10 distinct
+ * mtimes, as objects uploaded together share their modification second.
+ * Both are first checked to give the same results on random dates.
+ *
+ * Usage: DateBenchmark [rounds]
+ *
+ * @author Stephan Hadinger
+ */
+public class DateBenchmark {
+
+    private static final int[] SIZES = { 10, 1000, 100000 };
+
+    private static final DateFormat ATMOS_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+    private static final DateFormat HTTP_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    static {
+        ATMOS_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+        HTTP_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // whole seconds from 1900 to 2100
+            long millis = (-2208988800L + (long) (random.nextDouble() * 6311433600L)) * 1000;
+            String atmos_date = ATMOS_FORMAT.format(millis);
+            if (AtmosDates.parse(atmos_date) != millis)
+                throw new IllegalStateException("Parsing differs for " + atmos_date);
+            if (!HTTP_FORMAT.format(millis).equals(AtmosDates.toHttp(atmos_date)))
+                throw new IllegalStateException("Formatting differs for " + atmos_date + ": "
+                        + HTTP_FORMAT.format(millis) + " / " + AtmosDates.toHttp(atmos_date));
+        }
+
+        System.out.println(rounds + " rounds");
+        System.out.println("entries\tSimpleDateFormat ns/entry\tAtmosDates ns/entry");
+        for (int size:SIZES) {
+            String[] mtimes = new String[size];
+            long base = 1277128800000L;
+            for (int i = 0; i < size; i++)
+                mtimes[i] = ATMOS_FORMAT.format(base + (i / 10) * 1000L);
+            // the first half of the rounds is the warm-up
+            long legacy = 0;
+            long dates = 0;
+            for (int round = 0; round < rounds; round++) {
+                long l = timeLegacy(mtimes);
+                long d = timeAtmosDates(mtimes);
+                if (round >= rounds / 2) {
+                    legacy += l;
+                    dates += d;
+                }
+            }
+            int measured = rounds - rounds / 2;
+            System.out.println(size + "\t" + legacy / measured / size + "\t" + dates / measured / size);
+        }
+    }
+
+    private static long timeLegacy(String[] mtimes) throws ParseException {
+        long start = System.nanoTime();
+        for (String mtime:mtimes)
+            sink = HTTP_FORMAT.format(ATMOS_FORMAT.parse(mtime).getTime());
+        return System.nanoTime() - start;
+    }
+
+    private static long timeAtmosDates(String[] mtimes) throws ParseException {
+        long start = System.nanoTime();
+        for (String mtime:mtimes)
+            sink = AtmosDates.toHttp(mtime);
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.DirectoryEntry;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.Metadata;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectPath;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the Atmos REST interface, serving an InMemoryAtmos
+ * over HTTP/1.1 on the loopback interface, so that the servlet can be run
+ * with its real transport and EsuRestApi without an Atmos cluster.
+ *
+ * It implements the namespace calls of the servlet, on /rest/namespace/path
+ * and on /rest/objects/id:
+ *  - POST: create object on path
+ *  - PUT: update object, the whole content or a "Range: Bytes=" extent
+ *  - GET: read object (whole or extent), or list directory when the path
+ *    ends with '/' (x-emc-limit, x-emc-token, x-emc-include-meta)
+ *  - GET ?metadata/system: system metadata, filtered by x-emc-tags
+ *  - HEAD: all metadata
+ *  - DELETE: delete object
+ * Errors are answered with the Atmos XML error body. Request signatures are
+ * not checked.
+ *
+ * Every request is delayed by the configured latency, and the bodies are
+ * sent and received at the configured bandwidth.
+ *
+ * Usage: FakeAtmosServer [port] [latency_ms] [bandwidth_kBps]
+ *
+ * @author Stephan Hadinger
+ */
+public class FakeAtmosServer {
+
+    private static final String NAMESPACE = "/rest/namespace";
+    private static final String OBJECTS = "/rest/objects/";
+    private static final String COS_NAMESPACE = "http://www.emc.com/cos/";
+
+    private final InMemoryAtmos _store;
+    private final long _latency_ms;
+    private final long _bandwidth;      // bytes per second, 0 for unlimited
+    private final ServerSocket _server;
+    private final ExecutorService _executor = Executors.newCachedThreadPool(new NamedThreadFactory("fake-atmos"));
+    private final Set<Socket> _connections = new HashSet<Socket>();
+    private volatile boolean _stopped = false;
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong bytes_in = new AtomicLong();
+    final AtomicLong bytes_out = new AtomicLong();
+
+    /**
+     * Starts the server.
+     *
+     * @param store the objects served
+     * @param port the local port, 0 for any free port
+     * @param latency_ms delay added to every request
+     * @param bandwidth bandwidth of the bodies in bytes per second, 0 for unlimited
+     */
+    FakeAtmosServer(InMemoryAtmos store, int port, long latency_ms, long bandwidth) throws IOException {
+        _store = store;
+        _latency_ms = latency_ms;
+        _bandwidth = bandwidth;
+        _server = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+        _executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return the local port of the server
+     */
+    int getPort() {
+        return _server.getLocalPort();
+    }
+
+    void stop() {
+        _stopped = true;
+        try {
+            _server.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        synchronized (_connections) {
+            for (Socket socket:_connections) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+        _executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "fake Atmos: requests=" + requests.get() + " bytes in=" + bytes_in.get() + " bytes out=" + bytes_out.get();
+    }
+
+    private void accept() {
+        while (!_stopped) {
+            try {
+                final Socket socket = _server.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (_connections) {
+                    _connections.add(socket);
+                }
+                _executor.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!_stopped)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a keep-alive connection.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 8192);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            while (!_stopped) {
+                String request_line = readLine(in);
+                if (request_line == null)
+                    break;
+                if (request_line.length() == 0)
+                    continue;
+                Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+                for (String line = readLine(in); (line != null) && (line.length() > 0); line = readLine(in)) {
+                    int pos = line.indexOf(':');
+                    if (pos > 0)
+                        headers.put(line.substring(0, pos).trim(), line.substring(pos + 1).trim());
+                }
+                byte[] body = readBody(in, headers);
+                requests.incrementAndGet();
+                if (_latency_ms > 0)
+                    Thread.sleep(_latency_ms);
+
+                String[] parts = request_line.split(" ");
+                Response response;
+                try {
+                    response = handle(parts[0], parts[1], headers, body);
+                } catch (EsuException e) {
+                    response = error(e.getHttpCode(), e.getAtmosCode(), e.getMessage());
+                } catch (RuntimeException e) {
+                    response = error(500, 1001, String.valueOf(e));
+                }
+                write(out, parts[0], response);
+                if ("close".equalsIgnoreCase(headers.get("Connection")))
+                    break;
+            }
+        } catch (SocketException e) {
+            // connection closed by the client
+        } catch (IOException e) {
+            if (!_stopped)
+                e.printStackTrace();
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            synchronized (_connections) {
+                _connections.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private Response handle(String method, String uri, Map<String, String> headers, byte[] body) {
+        String query = null;
+        int pos = uri.indexOf('?');
+        if (pos >= 0) {
+            query = uri.substring(pos + 1);
+            uri = uri.substring(0, pos);
+        }
+        String path = null;
+        Object identifier;
+        if (uri.startsWith(NAMESPACE + "/")) {
+            // Atmos decodes the URI once: the object names keep the escapes of the servlet
+            path = AtmosPathCodec.decode(uri.substring(NAMESPACE.length()).replace("+", "%2B"));
+            identifier = new ObjectPath(path);
+        } else if (uri.startsWith(OBJECTS)) {
+            identifier = new ObjectId(uri.substring(OBJECTS.length()));
+        } else {
+            return error(400, 1004, "Unsupported URI " + uri);
+        }
+
+        if (method.equals("HEAD")) {
+            Response response = new Response(200);
+            response.headers.put("x-emc-meta", toHeader(_store.systemMetadata(identifier), null));
+            response.headers.put("x-emc-listable-meta", "");
+            response.headers.put("x-emc-useracl", "OTHER=FULL_CONTROL");
+            response.headers.put("x-emc-groupacl", "other=NONE");
+            return response;
+        } else if (method.equals("GET") && "metadata/system".equals(query)) {
+            Response response = new Response(200);
+            response.headers.put("x-emc-meta", toHeader(_store.systemMetadata(identifier), headers.get("x-emc-tags")));
+            return response;
+        } else if (method.equals("GET") && (path != null) && path.endsWith("/")) {
+            return list(path, headers);
+        } else if (method.equals("GET")) {
+            Extent extent = parseExtent(headers.get("Range"));
+            Response response = new Response((extent != null) ? 206 : 200);
+            response.body = _store.read(identifier, extent);
+            response.headers.put("Content-Type", "application/octet-stream");
+            return response;
+        } else if (method.equals("POST") && (path != null)) {
+            ObjectId id = _store.create(path, body);
+            Response response = new Response(201);
+            response.headers.put("Location", OBJECTS + id);
+            return response;
+        } else if (method.equals("PUT")) {
+            _store.update(identifier, parseExtent(headers.get("Range")), body);
+            return new Response(200);
+        } else if (method.equals("DELETE")) {
+            _store.delete(identifier);
+            return new Response(204);
+        }
+        return error(400, 1004, "Unsupported method " + method + " " + uri);
+    }
+
+    /**
+     * Lists a directory as a ListDirectoryResponse document.
+     */
+    private Response list(String path, Map<String, String> headers) {
+        String limit = headers.get("x-emc-limit");
+        InMemoryAtmos.Page page = _store.list(path, "1".equals(headers.get("x-emc-include-meta")),
+                (limit != null) ? Integer.parseInt(limit) : 0, headers.get("x-emc-token"));
+
+        StringBuilder xml = new StringBuilder(256 + page.entries.size() * 512);
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+        xml.append("<ListDirectoryResponse xmlns=\"").append(COS_NAMESPACE).append("\"><DirectoryList>");
+        for (DirectoryEntry entry:page.entries) {
+            String entry_path = entry.getPath().toString();
+            String trimmed = entry_path.endsWith("/") ? entry_path.substring(0, entry_path.length() - 1) : entry_path;
+            xml.append("<DirectoryEntry>");
+            element(xml, "ObjectID", entry.getId().toString());
+            element(xml, "FileType", entry.getType());
+            element(xml, "Filename", trimmed.substring(trimmed.lastIndexOf('/') + 1));
+            if (entry.getSystemMetadata() != null) {
+                xml.append("<SystemMetadataList>");
+                for (Metadata metadata:entry.getSystemMetadata()) {
+                    xml.append("<Metadata>");
+                    element(xml, "Name", metadata.getName());
+                    element(xml, "Value", metadata.getValue());
+                    xml.append("</Metadata>");
+                }
+                xml.append("</SystemMetadataList><UserMetadataList/>");
+            }
+            xml.append("</DirectoryEntry>");
+        }
+        xml.append("</DirectoryList></ListDirectoryResponse>");
+
+        Response response = new Response(200);
+        response.headers.put("Content-Type", "text/xml");
+        if (page.token != null)
+            response.headers.put("x-emc-token", page.token);
+        response.body = utf8(xml.toString());
+        return response;
+    }
+
+    private static Response error(int http_code, int atmos_code, String message) {
+        Response response = new Response((http_code != 0) ? http_code : 500);
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?><Error>");
+        element(xml, "Code", String.valueOf(atmos_code));
+        element(xml, "Message", message);
+        xml.append("</Error>");
+        response.headers.put("Content-Type", "text/xml");
+        response.body = utf8(xml.toString());
+        return response;
+    }
+
+    /**
+     * @return the metadata as an x-emc-meta header, restricted to a list
+     *      of tags if not null
+     */
+    private static String toHeader(MetadataList metadata, String tags) {
+        Set<String> wanted = null;
+        if (tags != null) {
+            wanted = new HashSet<String>();
+            for (String tag:tags.split(","))
+                wanted.add(tag.trim());
+        }
+        StringBuilder header = new StringBuilder();
+        for (Metadata item:metadata) {
+            if ((wanted != null) && !wanted.contains(item.getName()))
+                continue;
+            if (header.length() > 0)
+                header.append(", ");
+            header.append(item.getName()).append('=').append(item.getValue());
+        }
+        return header.toString();
+    }
+
+    /**
+     * @return the extent of a "Bytes=first-last" header, or null
+     */
+    private static Extent parseExtent(String range) {
+        if ((range == null) || !range.regionMatches(true, 0, "Bytes=", 0, 6))
+            return null;
+        String[] bounds = range.substring(6).split("-");
+        long first = Long.parseLong(bounds[0].trim());
+        long last = Long.parseLong(bounds[1].trim());
+        return new Extent(first, last - first + 1);
+    }
+
+    private byte[] readBody(InputStream in, Map<String, String> headers) throws IOException, InterruptedException {
+        String length = headers.get("Content-Length");
+        if (length == null)
+            return new byte[0];
+        byte[] body = new byte[Integer.parseInt(length.trim())];
+        int read = 0;
+        while (read < body.length) {
+            int count = in.read(body, read, body.length - read);
+            if (count < 0)
+                throw new IOException("Connection closed in a request body");
+            read += count;
+        }
+        throttle(body.length);
+        bytes_in.addAndGet(body.length);
+        return body;
+    }
+
+    private void write(OutputStream out, String method, Response response) throws IOException, InterruptedException {
+        byte[] body = (response.body != null) ? response.body : new byte[0];
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        for (Map.Entry<String, String> header:response.headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        if (response.status != 204)
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (!method.equals("HEAD") && (response.status != 204)) {
+            throttle(body.length);
+            out.write(body);
+            bytes_out.addAndGet(body.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Waits for the time the transfer of a body takes at the configured
+     * bandwidth.
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        if ((_bandwidth > 0) && (bytes > 0)) {
+            long nanos = bytes * 1000000000L / _bandwidth;
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    }
+
+    /**
+     * @return a line in ISO-8859-1 without its CRLF, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                break;
+            if (c != '\r')
+                line.write(c);
+        }
+        if ((c == -1) && (line.size() == 0))
+            return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void element(StringBuilder xml, String name, String value) {
+        xml.append('<').append(name).append('>');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '<')
+                    xml.append("&lt;");
+                else if (c == '>')
+                    xml.append("&gt;");
+                else if (c == '&')
+                    xml.append("&amp;");
+                else
+                    xml.append(c);
+            }
+        }
+        xml.append("</").append(name).append('>');
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8", e);
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            default: return "Error";
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final Map<String, String> headers = new TreeMap<String, String>();
+        byte[] body;
+
+        Response(int status) {
+            this.status = status;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+        long latency_ms = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+        long bandwidth = (args.length > 2) ? Long.parseLong(args[2]) * 1024 : 0;
+        final FakeAtmosServer server = new FakeAtmosServer(new InMemoryAtmos(0), port, latency_ms, bandwidth);
+        System.out.println("Fake Atmos listening on 127.0.0.1:" + server.getPort()
+                + ", latency " + latency_ms + " ms, bandwidth " + ((bandwidth > 0) ? (bandwidth / 1024) + " kB/s" : "unlimited"));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+                System.out.println(server);
+            }
+        });
+        // the server threads are daemons: run until killed
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.BufferSegment;
+import com.emc.esu.api.DirectoryEntry;
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.ListOptions;
+import com.emc.esu.api.Metadata;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectMetadata;
+import com.emc.esu.api.ObjectPath;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for the Atmos namespace interface, used by the
+ * benchmarks.
+ *
+ * It is exposed as a dynamic proxy on EsuApi, so that it does not depend on
+ * the exact set of methods of the atmos-java version in use. Every call
+ * sleeps for the configured latency to simulate the WAN round-trip.
+ *
+ * @author Stephan Hadinger
+ */
+class InMemoryAtmos implements InvocationHandler {
+
+    private final TreeMap<String, Node> _objects = new TreeMap<String, Node>();
+    private final Map<String, String> _paths_by_id = new HashMap<String, String>();
+    private final long _latency_ms;
+    private long _next_id = 1;
+
+    final AtomicLong calls = new AtomicLong();
+    /** number of object content reads */
+    final AtomicLong reads = new AtomicLong();
+
+    InMemoryAtmos(long latency_ms) {
+        _latency_ms = latency_ms;
+    }
+
+    /**
+     * @return an EsuApi backed by this store
+     */
+    EsuApi api() {
+        return (EsuApi) Proxy.newProxyInstance(EsuApi.class.getClassLoader(),
+                new Class[] { EsuApi.class }, this);
+    }
+
+    /**
+     * Creates a directory (and its parents), path must end with '/'.
+     */
+    synchronized void mkdir(String path) {
+        put(path, null);
+    }
+
+    /**
+     * Creates or replaces a regular object (and the parent directories).
+     */
+    synchronized void put(String path, byte[] data) {
+        String parent = parentOf(path);
+        if ((parent != null) && !_objects.containsKey(parent))
+            put(parent, null);
+        Node node = _objects.get(path);
+        if (node == null) {
+            // Atmos object ids are 44 hexadecimal digits
+            node = new Node(path, String.format("%044x", _next_id++));
+            _objects.put(path, node);
+            _paths_by_id.put(node.id, path);
+        }
+        node.data = data;
+        node.mtime = new Date();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        calls.incrementAndGet();
+        if (_latency_ms > 0)
+            Thread.sleep(_latency_ms);
+
+        String name = method.getName();
+        if (name.equals("getAllMetadata")) {
+            ObjectMetadata result = new ObjectMetadata();
+            result.setMetadata(systemMetadata(args[0]));
+            return result;
+        } else if (name.equals("getSystemMetadata")) {
+            return systemMetadata(args[0]);
+        } else if (name.equals("listDirectory")) {
+            ListOptions options = (args.length > 1) ? (ListOptions) args[1] : null;
+            return listDirectory(args[0].toString(), options);
+        } else if (name.equals("createObjectOnPath") || name.equals("createObjectFromSegmentOnPath")) {
+            return create(args[0].toString(), toBytes(args[3]));
+        } else if (name.equals("updateObject") || name.equals("updateObjectFromSegment")) {
+            update(args[0], (Extent) args[3], toBytes(args[4]));
+            return null;
+        } else if (name.equals("readObject")) {
+            reads.incrementAndGet();
+            return read(args[0], (Extent) args[1]);
+        } else if (name.equals("deleteObject")) {
+            delete(args[0]);
+            return null;
+        } else if (name.equals("toString")) {
+            return "InMemoryAtmos";
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("equals")) {
+            return proxy == args[0];
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    /**
+     * @return the path of an ObjectPath or of a known ObjectId
+     */
+    private synchronized String pathOf(Object identifier) {
+        if (!(identifier instanceof ObjectId))
+            return identifier.toString();
+        String path = _paths_by_id.get(identifier.toString());
+        if (path == null)
+            throw new EsuException("The requested object was not found.", 404, 1003);
+        return path;
+    }
+
+    private synchronized Node get(String path) {
+        Node node = _objects.get(path);
+        if (node == null)
+            throw new EsuException("The resource you are trying to access does not exist.", 404, 1003);
+        return node;
+    }
+
+    private List<DirectoryEntry> listDirectory(String path, ListOptions options) {
+        boolean with_meta = (options != null) && options.isIncludeMetadata();
+        int limit = (options != null) ? options.getLimit() : 0;
+        Page page = list(path, with_meta, limit, (options != null) ? options.getToken() : null);
+        if (options != null)
+            options.setToken(page.token);
+        return page.entries;
+    }
+
+    /**
+     * A page of a directory listing.
+     */
+    static class Page {
+        final List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        /** path of the first entry of the next page, null on the last page */
+        String token;
+    }
+
+    /**
+     * Lists the children of a directory.
+     *
+     * @param path path of the directory, ending with '/'
+     * @param with_meta true to return the system metadata of the entries
+     * @param limit maximum number of entries, 0 for no limit
+     * @param token token of the previous page, or null
+     */
+    synchronized Page list(String path, boolean with_meta, int limit, String token) {
+        if (!get(path).isDirectory())
+            throw new EsuException("The specified object is not a directory", 400, 1022);
+        String start = (token != null) ? token : path + Character.MIN_VALUE;
+        Page page = new Page();
+        SortedMap<String, Node> children = _objects.tailMap(start);
+        for (Map.Entry<String, Node> child:children.entrySet()) {
+            if (!child.getKey().startsWith(path))
+                break;
+            if (!path.equals(parentOf(child.getKey())))
+                continue;
+            if ((limit > 0) && (page.entries.size() == limit)) {
+                // the token is the path of the first entry of the next page
+                page.token = child.getKey();
+                break;
+            }
+            Node node = child.getValue();
+            DirectoryEntry entry = new DirectoryEntry();
+            entry.setPath(new ObjectPath(node.path));
+            entry.setId(new ObjectId(node.id));
+            entry.setType(node.isDirectory() ? "directory" : "regular");
+            if (with_meta)
+                entry.setSystemMetadata(node.systemMetadata());
+            page.entries.add(entry);
+        }
+        return page;
+    }
+
+    /**
+     * @return the system metadata of an object
+     * @param identifier an ObjectPath or ObjectId
+     */
+    MetadataList systemMetadata(Object identifier) {
+        synchronized (this) {
+            return get(pathOf(identifier)).systemMetadata();
+        }
+    }
+
+    /**
+     * Creates an object on a path.
+     *
+     * @return the id of the new object
+     */
+    synchronized ObjectId create(String path, byte[] data) {
+        if (_objects.containsKey(path))
+            throw new EsuException("Object exists", 400, 1016);
+        put(path, data);
+        return new ObjectId(get(path).id);
+    }
+
+    /**
+     * Replaces the content of an object, or a range of it.
+     *
+     * @param identifier an ObjectPath or ObjectId
+     * @param extent the range written, or null to replace the whole content
+     */
+    void update(Object identifier, Extent extent, byte[] data) {
+        update(pathOf(identifier), extent, data);
+    }
+
+    /**
+     * @param identifier an ObjectPath or ObjectId
+     * @param extent the range read, or null for the whole content
+     */
+    byte[] read(Object identifier, Extent extent) {
+        return read(pathOf(identifier), extent);
+    }
+
+    /**
+     * @param identifier an ObjectPath or ObjectId
+     */
+    synchronized void delete(Object identifier) {
+        String path = pathOf(identifier);
+        _paths_by_id.remove(get(path).id);
+        _objects.remove(path);
+    }
+
+    private synchronized void update(String path, Extent extent, byte[] data) {
+        Node node = get(path);
+        byte[] old_data = (node.data != null) ? node.data : new byte[0];
+        if ((extent == null) || (extent.getOffset() < 0)) {
+            node.data = data;
+        } else {
+            int end = (int) extent.getOffset() + data.length;
+            byte[] new_data = new byte[Math.max(end, old_data.length)];
+            System.arraycopy(old_data, 0, new_data, 0, old_data.length);
+            System.arraycopy(data, 0, new_data, (int) extent.getOffset(), data.length);
+            node.data = new_data;
+        }
+        node.mtime = new Date();
+    }
+
+    private synchronized byte[] read(String path, Extent extent) {
+        byte[] data = get(path).data;
+        if (data == null)
+            data = new byte[0];
+        if ((extent == null) || (extent.getOffset() < 0))
+            return data.clone();
+        int start = (int) Math.min(extent.getOffset(), data.length);
+        int end = (int) Math.min(extent.getOffset() + extent.getSize(), data.length);
+        byte[] result = new byte[end - start];
+        System.arraycopy(data, start, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] toBytes(Object data) {
+        if (data instanceof BufferSegment) {
+            BufferSegment segment = (BufferSegment) data;
+            byte[] result = new byte[segment.getSize()];
+            System.arraycopy(segment.getBuffer(), segment.getOffset(), result, 0, result.length);
+            return result;
+        }
+        return (data != null) ? (byte[]) data : new byte[0];
+    }
+
+    private static String parentOf(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        int pos = trimmed.lastIndexOf('/');
+        return (pos >= 0) ? trimmed.substring(0, pos + 1) : null;
+    }
+
+    private static class Node {
+        final String path;
+        final String id;
+        final Date ctime = new Date();
+        Date mtime = ctime;
+        byte[] data;
+
+        Node(String path, String id) {
+            this.path = path;
+            this.id = id;
+        }
+
+        boolean isDirectory() {
+            return path.endsWith("/");
+        }
+
+        MetadataList systemMetadata() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            String trimmed = isDirectory() ? path.substring(0, path.length() - 1) : path;
+
+            MetadataList metadata = new MetadataList();
+            metadata.addMetadata(new Metadata("objectid", id, false));
+            metadata.addMetadata(new Metadata("objname", trimmed.substring(trimmed.lastIndexOf('/') + 1), false));
+            metadata.addMetadata(new Metadata("type", isDirectory() ? "directory" : "regular", false));
+            metadata.addMetadata(new Metadata("size", String.valueOf((data != null) ? data.length : 0), false));
+            metadata.addMetadata(new Metadata("ctime", format.format(ctime), false));
+            metadata.addMetadata(new Metadata("mtime", format.format(mtime), false));
+            return metadata;
+        }
+    }
+}
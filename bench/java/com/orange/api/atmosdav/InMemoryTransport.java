@@ -0,0 +1,66 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import javax.servlet.ServletConfig;
+
+/**
+ * A transport handing out clients of an InMemoryAtmos, so that the servlet
+ * can be run without an Atmos endpoint ("atmos_transport" parameter).
+ *
+ * The servlet instantiates the transport by its class name, so the store is
+ * set beforehand with setStore(). All credentials are accepted.
+ *
+ * @author Stephan Hadinger
+ */
+public class InMemoryTransport implements AtmosTransport {
+
+    private static volatile InMemoryAtmos _next_store;
+
+    private InMemoryAtmos _store;
+    private long _clients = 0;
+
+    /**
+     * Sets the store of the transports initialized from now on.
+     */
+    static void setStore(InMemoryAtmos store) {
+        _next_store = store;
+    }
+
+    public void init(String host, int port, ServletConfig config) {
+        _store = _next_store;
+        if (_store == null)
+            throw new IllegalStateException("InMemoryTransport.setStore() not called");
+    }
+
+    public synchronized EsuApi createApi(String uid, String secret) {
+        _clients++;
+        return _store.api();
+    }
+
+    public synchronized String getStatistics() {
+        return "in-memory transport: clients=" + _clients + " calls=" + _store.calls.get();
+    }
+
+    public void destroy() {
+    }
+}
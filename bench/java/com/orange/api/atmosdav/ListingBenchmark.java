@@ -0,0 +1,84 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectPath;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the latency of a Depth:1 directory listing against the directory
+ * size, for the three listing strategies of DirectoryLister:
+ *  - serial: one metadata lookup after the other (the historical behaviour)
+ *  - pooled: lookups fanned out on the worker pool
+ *  - bulk: metadata returned with the listing itself
+ *
+ * Usage: ListingBenchmark [latency_ms] [threads]
+ *
+ * @author Stephan Hadinger
+ */
+public class ListingBenchmark {
+
+    private static final int[] SIZES = { 10, 100, 1000, 2000 };
+    private static final List<String> TAGS = Arrays.asList("type", "objname", "objectid", "size", "mtime", "ctime");
+
+    public static void main(String[] args) throws Exception {
+        long latency_ms = (args.length > 0) ? Long.parseLong(args[0]) : 2;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("bench"));
+        // no metadata cache: every listing goes to Atmos
+        LruCache<String, MetadataList> no_cache = new LruCache<String, MetadataList>("none", 1, 0);
+        ListingCache no_listings = new ListingCache(1, 0);
+        DirectoryLister serial = new DirectoryLister(executor, no_cache, no_listings, new SingleFlight<String, MetadataList>("bench"), TAGS, 1, 1000, false);
+        DirectoryLister pooled = new DirectoryLister(executor, no_cache, no_listings, new SingleFlight<String, MetadataList>("bench"), TAGS, threads, 1000, false);
+        DirectoryLister bulk = new DirectoryLister(executor, no_cache, no_listings, new SingleFlight<String, MetadataList>("bench"), TAGS, threads, 1000, true);
+
+        System.out.println("Atmos latency " + latency_ms + " ms, " + threads + " threads");
+        System.out.println("entries\tserial ms\tpooled ms\tbulk ms");
+        for (int size:SIZES) {
+            InMemoryAtmos atmos = new InMemoryAtmos(latency_ms);
+            for (int i = 0; i < size; i++)
+                atmos.put("/webdav_bench/dir/file" + i + ".txt", new byte[100]);
+            EsuApi api = atmos.api();
+            ObjectPath dir = new ObjectPath("/webdav_bench/dir/");
+
+            System.out.println(size + "\t" + time(serial, api, dir, size)
+                    + "\t" + time(pooled, api, dir, size)
+                    + "\t" + time(bulk, api, dir, size));
+        }
+        executor.shutdown();
+    }
+
+    private static long time(DirectoryLister lister, EsuApi api, ObjectPath dir, int size) {
+        lister.list(api, "bench/user", dir);     // warm-up
+        long start = System.nanoTime();
+        int count = lister.list(api, "bench/user", dir).size();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (count != size)
+            throw new IllegalStateException("Listed " + count + " entries instead of " + size);
+        return elapsed;
+    }
+}
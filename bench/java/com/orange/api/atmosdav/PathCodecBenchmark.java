@@ -0,0 +1,177 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.BitSet;
+
+/**
+ * Compares AtmosPathCodec with the encoder it replaced (a java.net.URLEncoder
+ * variant followed by a replace() of '%' and a prefix concatenation) and with
+ * the double URLDecoder.decode() of the entry names, on ASCII, Latin and
+ * non-Latin paths. The results of both are checked to be identical first.
+ *
+ * Usage: PathCodecBenchmark [iterations]
+ *
+ * @author Stephan Hadinger
+ */
+public class PathCodecBenchmark {
+
+    private static final String PREFIX = "/webdav_subtenant";
+
+    private static final String[][] PATHS = {
+        { "ascii", "/documents/projects/2010/report-final_v2.txt" },
+        { "escaped", "/documents/my%20files/report%20(final).txt" },
+        { "latin", "/documents/r\u00e9sum\u00e9s/\u00e9t\u00e9 2010/caf\u00e9.txt" },
+        { "non-latin", "/\u6587\u66f8/\u0434\u043e\u043a\u0443\u043c\u0435\u043d\u0442\u044b/\ud83d\udcc4 \u5831\u544a.txt" },
+    };
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        for (String[] path:PATHS) {
+            String legacy = PREFIX + LegacyEncoder.encode(path[1]).replace("%", "%25");
+            String codec = AtmosPathCodec.encode(PREFIX, path[1]);
+            if (!legacy.equals(codec))
+                throw new IllegalStateException("Encoding differs for " + path[0] + ": " + legacy + " / " + codec);
+            String objname = codec.substring(codec.lastIndexOf('/') + 1);
+            if (!URLDecoder.decode(URLDecoder.decode(objname, "UTF-8"), "UTF-8")
+                    .equals(AtmosPathCodec.decode(AtmosPathCodec.decode(objname))))
+                throw new IllegalStateException("Decoding differs for " + path[0]);
+        }
+
+        System.out.println(iterations + " iterations");
+        System.out.println("path\tlegacy encode ns\tcodec encode ns\tURLDecoder ns\tcodec decode ns");
+        for (String[] path:PATHS) {
+            String raw = path[1];
+            String encoded = AtmosPathCodec.encode(PREFIX, raw);
+            String objname = encoded.substring(encoded.lastIndexOf('/') + 1);
+            // two rounds, the first one being the warm-up
+            long[] result = null;
+            for (int round = 0; round < 2; round++)
+                result = new long[] {
+                    timeLegacyEncode(raw, iterations), timeCodecEncode(raw, iterations),
+                    timeLegacyDecode(objname, iterations), timeCodecDecode(objname, iterations) };
+            System.out.println(path[0] + "\t" + result[0] + "\t" + result[1] + "\t" + result[2] + "\t" + result[3]);
+        }
+    }
+
+    private static long timeLegacyEncode(String raw, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = PREFIX + LegacyEncoder.encode(raw).replace("%", "%25");
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static long timeCodecEncode(String raw, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = AtmosPathCodec.encode(PREFIX, raw);
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static long timeLegacyDecode(String objname, int iterations) throws UnsupportedEncodingException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = URLDecoder.decode(URLDecoder.decode(objname, "UTF-8"), "UTF-8");
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static long timeCodecDecode(String objname, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink = AtmosPathCodec.decode(AtmosPathCodec.decode(objname));
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * The encoder used by the servlet before AtmosPathCodec.
+     */
+    private static class LegacyEncoder {
+        private static final int caseDiff = ('a' - 'A');
+        private static final BitSet dontNeedEncoding = new BitSet(256);
+
+        static {
+            for (int i = 'a'; i <= 'z'; i++)
+                dontNeedEncoding.set(i);
+            for (int i = 'A'; i <= 'Z'; i++)
+                dontNeedEncoding.set(i);
+            for (int i = '0'; i <= '9'; i++)
+                dontNeedEncoding.set(i);
+            dontNeedEncoding.set('-');
+            dontNeedEncoding.set('_');
+            dontNeedEncoding.set('.');
+            dontNeedEncoding.set('/');
+            dontNeedEncoding.set('%');
+        }
+
+        static String encode(String s) {
+            StringBuffer out = new StringBuffer(s.length());
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(10);
+            try {
+                OutputStreamWriter writer = new OutputStreamWriter(buf, "UTF-8");
+                for (int i = 0; i < s.length(); i++) {
+                    int c = (int) s.charAt(i);
+                    if (dontNeedEncoding.get(c)) {
+                        out.append((char)c);
+                        continue;
+                    }
+                    try {
+                        writer.write(c);
+                        if (c >= 0xD800 && c <= 0xDBFF && (i+1) < s.length()) {
+                            int d = (int) s.charAt(i+1);
+                            if (d >= 0xDC00 && d <= 0xDFFF) {
+                                writer.write(d);
+                                i++;
+                            }
+                        }
+                        writer.flush();
+                    } catch (IOException e) {
+                        buf.reset();
+                        continue;
+                    }
+                    byte[] ba = buf.toByteArray();
+                    for (int j = 0; j < ba.length; j++) {
+                        out.append('%');
+                        char ch = Character.forDigit((ba[j] >> 4) & 0xF, 16);
+                        if (Character.isLetter(ch))
+                            ch -= caseDiff;
+                        out.append(ch);
+                        ch = Character.forDigit(ba[j] & 0xF, 16);
+                        if (Character.isLetter(ch))
+                            ch -= caseDiff;
+                        out.append(ch);
+                    }
+                    buf.reset();
+                }
+                return out.toString();
+            } catch (UnsupportedEncodingException e) {
+                return s;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Benchmarks of the servlet hot paths, run in-process against an
+ * InMemoryAtmos with no latency, so that only the servlet is measured:
+ *  - propfind: Depth:1 allprop PROPFIND of 10, 1000 and 100000 entries
+ *  - properties: the property rendering of parseProperties, per entry of a
+ *    cached 1000-entry listing, for allprop, prop and propname requests
+ *  - codec: AtmosPathCodec.encode() and decode() of the Atmos paths
+ *  - auth: getAPIFromAuthent() with a cached client and with a new one
+ *  - body: PROPFIND body parsing
+ *  - stream: GET and PUT throughput of 1 MB and 64 MB objects
+ *
+ * Usage: ServletBenchmark [harness options] [suite...]
+ * where the harness options are those of Bench, and all suites run if none
+ * is given.
+ *
+ * @author Stephan Hadinger
+ */
+public class ServletBenchmark {
+
+    private static final List<String> SUITES = Arrays.asList("propfind", "properties", "codec", "auth", "body", "stream");
+
+    private static final int[] PROPFIND_SIZES = { 10, 1000, 100000 };
+    private static final int PROPERTIES_SIZE = 1000;
+    private static final int[] STREAM_SIZES = { 1024 * 1024, 64 * 1024 * 1024 };
+
+    private static final String PROP_BODY =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:prop>"
+            + "<D:displayname/><D:getlastmodified/><D:getcontentlength/><D:resourcetype/>"
+            + "</D:prop></D:propfind>";
+    private static final String ALLPROP_BODY =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:allprop/></D:propfind>";
+    private static final String PROPNAME_BODY =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:propname/></D:propfind>";
+    // the properties asked by the Mac OS X Finder
+    private static final String FINDER_BODY =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:prop>"
+            + "<D:getlastmodified/><D:getcontentlength/><D:creationdate/><D:resourcetype/>"
+            + "<D:getetag/><D:getcontenttype/><D:displayname/>"
+            + "<x:quota-available-bytes xmlns:x=\"DAV:\"/><x:quota-used-bytes xmlns:x=\"DAV:\"/>"
+            + "</D:prop></D:propfind>";
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        List<String> suites = Arrays.asList(bench.parseOptions(args));
+        if (suites.isEmpty())
+            suites = SUITES;
+        for (String suite:suites) {
+            if (!SUITES.contains(suite))
+                throw new IllegalArgumentException("Unknown suite " + suite + ", expected one of " + SUITES);
+        }
+
+        InMemoryAtmos store = new InMemoryAtmos(0);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("metadata_cache_size", "200000");
+        params.put("listing_cache_size", "200000");
+        ServletHarness harness = new ServletHarness(store, params);
+        try {
+            if (suites.contains("propfind"))
+                propfind(bench, harness);
+            if (suites.contains("properties"))
+                properties(bench, harness);
+            if (suites.contains("codec"))
+                codec(bench);
+            if (suites.contains("auth"))
+                auth(bench, store);
+            if (suites.contains("body"))
+                body(bench);
+            if (suites.contains("stream"))
+                stream(bench, harness);
+        } finally {
+            harness.destroy();
+        }
+        bench.finish();
+    }
+
+    private static void propfind(Bench bench, final ServletHarness harness) throws Exception {
+        for (int size:PROPFIND_SIZES) {
+            final String dir = fillDirectory(harness.store, size);
+            bench.run("propfind.depth1." + size, size, "entries", new Bench.Operation() {
+                public void run() throws Exception {
+                    check(harness.service("PROPFIND", dir, null, "Depth", "1"));
+                }
+            });
+        }
+    }
+
+    private static void properties(Bench bench, final ServletHarness harness) throws Exception {
+        final String dir = fillDirectory(harness.store, PROPERTIES_SIZE);
+        String[][] bodies = { { "allprop", ALLPROP_BODY }, { "prop", PROP_BODY },
+                              { "finder", FINDER_BODY }, { "propname", PROPNAME_BODY } };
+        for (String[] body:bodies) {
+            final byte[] content = body[1].getBytes("UTF-8");
+            bench.run("properties." + body[0], PROPERTIES_SIZE, "entries", new Bench.Operation() {
+                public void run() throws Exception {
+                    check(harness.service("PROPFIND", dir, content, "Depth", "1"));
+                }
+            });
+        }
+    }
+
+    private static void codec(Bench bench) throws Exception {
+        String[][] paths = {
+            { "ascii", "/documents/projects/2010/report-final_v2.txt" },
+            { "non-latin", "/\u6587\u66f8/\u0434\u043e\u043a\u0443\u043c\u0435\u043d\u0442\u044b/\u5831\u544a 2010.txt" } };
+        for (final String[] path:paths) {
+            bench.run("codec.encode." + path[0], 0, null, new Bench.Operation() {
+                public void run() {
+                    Bench.consume(AtmosPathCodec.encode(ServletHarness.PREFIX, path[1]));
+                }
+            });
+            String encoded = AtmosPathCodec.encode(path[1]);
+            final String objname = encoded.substring(encoded.lastIndexOf('/') + 1);
+            bench.run("codec.decode." + path[0], 0, null, new Bench.Operation() {
+                public void run() {
+                    Bench.consume(AtmosPathCodec.decode(AtmosPathCodec.decode(objname)));
+                }
+            });
+        }
+    }
+
+    private static void auth(Bench bench, InMemoryAtmos store) throws Exception {
+        final Method method = AtmosDavServlet.class.getDeclaredMethod("getAPIFromAuthent",
+                HttpServletRequest.class, HttpServletResponse.class);
+        method.setAccessible(true);
+
+        // a cached client
+        final ServletHarness cached = new ServletHarness(store, new HashMap<String, String>());
+        final HttpServletRequest request = new ServletHarness.Request("GET", "/", null).proxy();
+        final HttpServletResponse response = new ServletHarness.Response(false).proxy();
+        bench.run("auth.cached", 0, null, new Bench.Operation() {
+            public void run() throws Exception {
+                Bench.consume(method.invoke(cached.servlet, request, response));
+            }
+        });
+        cached.destroy();
+
+        // no client cache: the header is decoded and a client built every time
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("client_cache_ttl", "0");
+        final ServletHarness uncached = new ServletHarness(store, params);
+        bench.run("auth.new_client", 0, null, new Bench.Operation() {
+            public void run() throws Exception {
+                Bench.consume(method.invoke(uncached.servlet, request, response));
+            }
+        });
+        uncached.destroy();
+    }
+
+    private static void body(Bench bench) throws Exception {
+        final DavRequestParser parser = new DavRequestParser(64 * 1024);
+        String[][] bodies = { { "allprop", ALLPROP_BODY }, { "prop", PROP_BODY }, { "finder", FINDER_BODY } };
+        for (String[] body:bodies) {
+            final byte[] content = body[1].getBytes("UTF-8");
+            bench.run("body.propfind." + body[0], content.length, "MB", new Bench.Operation() {
+                public void run() throws Exception {
+                    Bench.consume(parser.parsePropfind(new ByteArrayInputStream(content)));
+                }
+            });
+        }
+    }
+
+    private static void stream(Bench bench, final ServletHarness harness) throws Exception {
+        for (final int size:STREAM_SIZES) {
+            final String uri = "/stream/object" + size + ".bin";
+            final byte[] content = new byte[size];
+            harness.store.put(ServletHarness.PREFIX + uri, content);
+            bench.run("stream.get." + (size / 1024) + "k", size, "MB", new Bench.Operation() {
+                public void run() throws Exception {
+                    ServletHarness.Response response = check(harness.service("GET", uri, null));
+                    if (response.bytes != size)
+                        throw new IllegalStateException("GET " + uri + " returned " + response.bytes + " bytes");
+                }
+            });
+            bench.run("stream.put." + (size / 1024) + "k", size, "MB", new Bench.Operation() {
+                public void run() throws Exception {
+                    check(harness.service("PUT", uri, content));
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates or replaces a directory of regular objects.
+     *
+     * @return the dav URI of the directory
+     */
+    private static String fillDirectory(InMemoryAtmos store, int size) {
+        String dir = "/bench" + size + "/";
+        for (int i = 0; i < size; i++)
+            store.put(ServletHarness.PREFIX + dir + "file" + i + ".txt", new byte[100]);
+        return dir;
+    }
+
+    private static ServletHarness.Response check(ServletHarness.Response response) {
+        if (!response.isSuccess())
+            throw new IllegalStateException("Request failed with status " + response.status);
+        return response;
+    }
+}
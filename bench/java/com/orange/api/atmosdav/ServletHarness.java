@@ -0,0 +1,359 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Runs an AtmosDavServlet in-process, on top of an InMemoryAtmos, without
+ * a servlet container.
+ *
+ * Requests and responses are dynamic proxies, like the EsuApi of
+ * InMemoryAtmos, implementing what the servlet uses: headers, attributes,
+ * body and status. Response bodies are counted and discarded, unless
+ * keep_bodies is set.
+ *
+ * @author Stephan Hadinger
+ */
+class ServletHarness {
+
+    /**
+     * Atmos uid of the requests, the store paths start with "/webdav_user".
+     */
+    static final String UID = "bench/user";
+    static final String PREFIX = "/webdav_user";
+
+    final InMemoryAtmos store;
+    final AtmosDavServlet servlet;
+
+    /**
+     * Set to keep the response bodies in Response.body, for the tests.
+     */
+    boolean keep_bodies = false;
+
+    /**
+     * The servlet reaches the store through InMemoryTransport, unless the
+     * parameters name another transport and endpoint, such as a
+     * FakeAtmosServer serving the store.
+     *
+     * @param store the Atmos stand-in
+     * @param params servlet parameters
+     */
+    ServletHarness(InMemoryAtmos store, Map<String, String> params) throws ServletException {
+        this.store = store;
+        final Map<String, String> all_params = new HashMap<String, String>();
+        all_params.put("atmos_host", "localhost");
+        all_params.put("atmos_port", "80");
+        all_params.put("atmos_transport", InMemoryTransport.class.getName());
+        all_params.putAll(params);
+
+        final ServletContext context = (ServletContext) proxy(ServletContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("log"))
+                    return null;        // statistics of destroy()
+                return defaultValue(method.getReturnType());
+            }
+        });
+        ServletConfig config = (ServletConfig) proxy(ServletConfig.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getInitParameter"))
+                    return all_params.get((String) args[0]);
+                if (name.equals("getInitParameterNames"))
+                    return Collections.enumeration(all_params.keySet());
+                if (name.equals("getServletContext"))
+                    return context;
+                if (name.equals("getServletName"))
+                    return "atmosdav";
+                return defaultValue(method.getReturnType());
+            }
+        });
+
+        synchronized (ServletHarness.class) {
+            InMemoryTransport.setStore(store);
+            servlet = new AtmosDavServlet();
+            servlet.init(config);
+        }
+    }
+
+    /**
+     * Processes a request and returns its response.
+     *
+     * @param method the WebDAV method
+     * @param uri the request URI
+     * @param headers request headers, name and value alternately
+     * @param body request body, or null
+     */
+    Response service(String method, String uri, byte[] body, String... headers) throws ServletException, IOException {
+        Request request = new Request(method, uri, body, headers);
+        Response response = new Response(keep_bodies);
+        servlet.service(request.proxy(), response.proxy());
+        return response;
+    }
+
+    void destroy() {
+        servlet.destroy();
+    }
+
+    /**
+     * @return the Authorization header of the benchmark uid
+     */
+    static String authorization(String uid) {
+        return "Basic " + new String(Base64.encodeBase64((uid + ":secret").getBytes()));
+    }
+
+    static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(ServletHarness.class.getClassLoader(), new Class[] { type }, handler);
+    }
+
+    /**
+     * @return a format of the RFC 1123 dates of the HTTP headers
+     */
+    static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE)
+            return Boolean.FALSE;
+        if (type == Integer.TYPE)
+            return 0;
+        if (type == Long.TYPE)
+            return 0L;
+        return null;
+    }
+
+    static class Request implements InvocationHandler {
+        final String method;
+        final String uri;
+        final byte[] body;
+        final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        InputStream in;
+
+        Request(String method, String uri, byte[] body, String... headers) {
+            this.method = method;
+            this.uri = uri;
+            this.body = body;
+            this.headers.put("Authorization", authorization(UID));
+            for (int i = 0; i + 1 < headers.length; i += 2)
+                this.headers.put(headers[i], headers[i+1]);
+        }
+
+        HttpServletRequest proxy() {
+            return (HttpServletRequest) ServletHarness.proxy(HttpServletRequest.class, this);
+        }
+
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if (name.equals("getMethod"))
+                return method;
+            if (name.equals("getRequestURI"))
+                return uri;
+            if (name.equals("getRequestURL"))
+                return new StringBuffer("http://localhost").append(uri);
+            if (name.equals("getHeader"))
+                return headers.get((String) args[0]);
+            if (name.equals("getHeaders")) {
+                String value = headers.get((String) args[0]);
+                return Collections.enumeration((value != null) ? Collections.singletonList(value) : Collections.<String>emptyList());
+            }
+            if (name.equals("getHeaderNames"))
+                return Collections.enumeration(headers.keySet());
+            if (name.equals("getDateHeader"))
+                return dateHeader((String) args[0]);
+            if (name.equals("getIntHeader")) {
+                String value = headers.get((String) args[0]);
+                return (value != null) ? Integer.parseInt(value) : -1;
+            }
+            if (name.equals("getContentLength"))
+                return (body != null) ? body.length : -1;
+            if (name.equals("getInputStream"))
+                return inputStream();
+            if (name.equals("getAttribute"))
+                return attributes.get((String) args[0]);
+            if (name.equals("setAttribute")) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            if (name.equals("removeAttribute")) {
+                attributes.remove((String) args[0]);
+                return null;
+            }
+            if (name.equals("getContextPath") || name.equals("getServletPath"))
+                return "";
+            if (name.equals("getPathInfo"))
+                return uri;
+            if (name.equals("getProtocol"))
+                return "HTTP/1.1";
+            if (name.equals("getScheme"))
+                return "http";
+            if (name.equals("getServerName") || name.equals("getRemoteHost"))
+                return "localhost";
+            if (name.equals("getRemoteAddr"))
+                return "127.0.0.1";
+            if (name.equals("getServerPort"))
+                return 80;
+            return defaultValue(m.getReturnType());
+        }
+
+        /**
+         * @return the value of an RFC 1123 date header in milliseconds, -1
+         *      if it is absent or not a date
+         */
+        private long dateHeader(String name) {
+            String value = headers.get(name);
+            if (value == null)
+                return -1L;
+            try {
+                return httpDateFormat().parse(value).getTime();
+            } catch (ParseException e) {
+                return -1L;
+            }
+        }
+
+        private ServletInputStream inputStream() {
+            if (in == null)
+                in = new ByteArrayInputStream((body != null) ? body : new byte[0]);
+            return new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+    }
+
+    static class Response implements InvocationHandler {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        long bytes = 0;
+        final ByteArrayOutputStream body;      // null if the body is discarded
+
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                bytes++;
+                if (body != null)
+                    body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes += len;
+                if (body != null)
+                    body.write(b, off, len);
+            }
+        };
+        private PrintWriter writer;
+
+        /**
+         * @param keep_body true to keep the body in "body"
+         */
+        Response(boolean keep_body) {
+            body = keep_body ? new ByteArrayOutputStream() : null;
+        }
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) ServletHarness.proxy(HttpServletResponse.class, this);
+        }
+
+        public Object invoke(Object proxy, Method m, Object[] args) throws IOException {
+            String name = m.getName();
+            if (name.equals("setStatus") || name.equals("sendError")) {
+                status = (Integer) args[0];
+                return null;
+            }
+            if (name.equals("setHeader") || name.equals("addHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+            }
+            if (name.equals("setDateHeader") || name.equals("addDateHeader")) {
+                // rendered as the container does
+                headers.put((String) args[0], httpDateFormat().format(new Date((Long) args[1])));
+                return null;
+            }
+            if (name.equals("setIntHeader") || name.equals("addIntHeader")) {
+                headers.put((String) args[0], String.valueOf(args[1]));
+                return null;
+            }
+            if (name.equals("containsHeader"))
+                return headers.containsKey((String) args[0]);
+            if (name.equals("setContentType")) {
+                headers.put("Content-Type", (String) args[0]);
+                return null;
+            }
+            if (name.equals("setContentLength")) {
+                headers.put("Content-Length", String.valueOf(args[0]));
+                return null;
+            }
+            if (name.equals("getOutputStream"))
+                return out;
+            if (name.equals("getWriter")) {
+                if (writer == null)
+                    writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+                return writer;
+            }
+            if (name.equals("getCharacterEncoding"))
+                return "UTF-8";
+            return defaultValue(m.getReturnType());
+        }
+
+        /**
+         * @return true for the 2xx statuses and 207 Multi-Status
+         */
+        boolean isSuccess() {
+            return (status >= 200) && (status < 300);
+        }
+    }
+}
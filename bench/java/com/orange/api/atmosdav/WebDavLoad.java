@@ -0,0 +1,304 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of the servlet: WebDAV clients replay the request
+ * mix of a Finder, Explorer or sync client against the servlet, which
+ * reaches a FakeAtmosServer on the loopback interface through its real
+ * transport. Nothing leaves the machine.
+ *
+ * The servlet is called in-process through ServletHarness, as there is no
+ * servlet container in the build; everything behind it (EsuRestApi,
+ * connection pool, HTTP, Atmos latency and bandwidth) is real or
+ * simulated.
+ *
+ * Throughput and latency percentiles are reported per WebDAV method.
+ *
+ * Usage: WebDavLoad [-profile finder|explorer|sync|mixed] [-threads n]
+ *                   [-duration s] [-latency ms] [-bandwidth kB/s]
+ *                   [-dirs n] [-files n] [-size bytes]
+ *
+ * @author Stephan Hadinger
+ */
+public class WebDavLoad {
+
+    private static final String ROOT = "/load/";
+
+    private static final String SYNC_BODY =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<D:propfind xmlns:D=\"DAV:\"><D:prop>"
+            + "<D:getetag/><D:getlastmodified/><D:getcontentlength/><D:resourcetype/>"
+            + "</D:prop></D:propfind>";
+
+    /**
+     * The kinds of requests of the clients.
+     */
+    private enum Op {
+        /** PROPFIND Depth:1 allprop of a directory */
+        LIST_DIR("PROPFIND"),
+        /** PROPFIND Depth:1 of a directory, with the properties of a sync client */
+        SYNC_DIR("PROPFIND"),
+        /** PROPFIND Depth:0 of a file */
+        STAT_FILE("PROPFIND"),
+        /** PROPFIND Depth:0 of a missing "._" file, as the Finder does for every file */
+        STAT_MISSING("PROPFIND"),
+        GET("GET"),
+        HEAD("HEAD"),
+        /** PUT of a new file */
+        PUT("PUT"),
+        /** DELETE of a file PUT earlier */
+        DELETE("DELETE"),
+        OPTIONS("OPTIONS");
+
+        final String method;
+
+        Op(String method) {
+            this.method = method;
+        }
+    }
+
+    /**
+     * Request mixes, as operation and weight pairs.
+     */
+    private static final Map<String, Object[]> PROFILES = new HashMap<String, Object[]>();
+    static {
+        PROFILES.put("finder", new Object[] {
+            Op.LIST_DIR, 10, Op.STAT_FILE, 30, Op.STAT_MISSING, 25, Op.GET, 20, Op.PUT, 8, Op.DELETE, 2, Op.OPTIONS, 5 });
+        PROFILES.put("explorer", new Object[] {
+            Op.OPTIONS, 10, Op.LIST_DIR, 30, Op.STAT_FILE, 20, Op.GET, 25, Op.PUT, 10, Op.DELETE, 5 });
+        PROFILES.put("sync", new Object[] {
+            Op.SYNC_DIR, 40, Op.HEAD, 20, Op.GET, 20, Op.PUT, 15, Op.DELETE, 5 });
+        PROFILES.put("mixed", new Object[] {
+            Op.LIST_DIR, 15, Op.SYNC_DIR, 15, Op.STAT_FILE, 20, Op.STAT_MISSING, 10,
+            Op.GET, 20, Op.HEAD, 5, Op.PUT, 8, Op.DELETE, 3, Op.OPTIONS, 4 });
+    }
+
+    private final ServletHarness _harness;
+    private final Op[] _mix;
+    private final int _dirs;
+    private final int _files;
+    private final byte[] _content;
+    private final Map<String, Stats> _stats = new TreeMap<String, Stats>();
+    private final AtomicLong _next_scratch = new AtomicLong();
+
+    WebDavLoad(ServletHarness harness, Object[] profile, int dirs, int files, int size) {
+        _harness = harness;
+        List<Op> mix = new ArrayList<Op>();
+        for (int i = 0; i < profile.length; i += 2) {
+            Op op = (Op) profile[i];
+            for (int j = 0; j < (Integer) profile[i + 1]; j++)
+                mix.add(op);
+            if (!_stats.containsKey(op.method))
+                _stats.put(op.method, new Stats());
+        }
+        _mix = mix.toArray(new Op[mix.size()]);
+        _dirs = dirs;
+        _files = files;
+        _content = new byte[size];
+        new Random(1).nextBytes(_content);
+    }
+
+    /**
+     * Creates the directories and files read by the clients.
+     */
+    void populate() {
+        for (int d = 0; d < _dirs; d++) {
+            for (int f = 0; f < _files; f++)
+                _harness.store.put(ServletHarness.PREFIX + ROOT + "dir" + d + "/file" + f + ".txt", _content);
+        }
+    }
+
+    /**
+     * Runs the clients for a given duration.
+     *
+     * @return the elapsed time in ms
+     */
+    long run(int threads, long duration_ms) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + duration_ms;
+        Thread[] clients = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            clients[i] = new Thread("client-" + i) {
+                @Override
+                public void run() {
+                    LinkedList<String> scratch = new LinkedList<String>();
+                    while (System.currentTimeMillis() < deadline)
+                        request(_mix[random.nextInt(_mix.length)], random, scratch);
+                }
+            };
+            clients[i].start();
+        }
+        for (Thread client:clients)
+            client.join();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Sends one request and records its latency.
+     *
+     * @param scratch the files this client created and did not delete yet
+     */
+    private void request(Op op, Random random, LinkedList<String> scratch) {
+        String dir = ROOT + "dir" + random.nextInt(_dirs) + "/";
+        String file = dir + "file" + random.nextInt(_files) + ".txt";
+        if ((op == Op.DELETE) && scratch.isEmpty())
+            op = Op.PUT;
+
+        long start = System.nanoTime();
+        int status;
+        try {
+            switch (op) {
+                case LIST_DIR:
+                    status = _harness.service("PROPFIND", dir, null, "Depth", "1").status;
+                    break;
+                case SYNC_DIR:
+                    status = _harness.service("PROPFIND", dir, SYNC_BODY.getBytes("UTF-8"), "Depth", "1").status;
+                    break;
+                case STAT_FILE:
+                    status = _harness.service("PROPFIND", file, null, "Depth", "0").status;
+                    break;
+                case STAT_MISSING:
+                    status = _harness.service("PROPFIND", dir + "._file" + random.nextInt(_files) + ".txt", null, "Depth", "0").status;
+                    if (status == 404)
+                        status = 207;       // expected
+                    break;
+                case GET:
+                    status = _harness.service("GET", file, null).status;
+                    break;
+                case HEAD:
+                    status = _harness.service("HEAD", file, null).status;
+                    break;
+                case PUT:
+                    String name = dir + "new" + _next_scratch.incrementAndGet() + ".txt";
+                    status = _harness.service("PUT", name, _content).status;
+                    scratch.add(name);
+                    break;
+                case DELETE:
+                    status = _harness.service("DELETE", scratch.removeFirst(), null).status;
+                    break;
+                default:
+                    status = _harness.service("OPTIONS", file, null).status;
+                    break;
+            }
+        } catch (Exception e) {
+            status = -1;
+        }
+        _stats.get(op.method).record((System.nanoTime() - start) / 1000, status);
+    }
+
+    void report(long elapsed_ms) {
+        System.out.println("method\tcount\treq/s\tp50 ms\tp99 ms\tp999 ms\tmax ms\terrors");
+        long total = 0;
+        for (Map.Entry<String, Stats> entry:_stats.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().latency;
+            long count = histogram.count();
+            total += count;
+            System.out.println(entry.getKey() + "\t" + count
+                    + "\t" + Math.round(count * 1000.0 / elapsed_ms)
+                    + "\t" + millis(histogram.percentile(50))
+                    + "\t" + millis(histogram.percentile(99))
+                    + "\t" + millis(histogram.percentile(99.9))
+                    + "\t" + millis(histogram.max())
+                    + "\t" + entry.getValue().errors.get());
+        }
+        System.out.println("total\t" + total + "\t" + Math.round(total * 1000.0 / elapsed_ms));
+    }
+
+    private static String millis(long micros) {
+        return String.valueOf(Math.round(micros / 100.0) / 10.0);
+    }
+
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        void record(long micros, int status) {
+            latency.record(micros);
+            if ((status < 200) || (status >= 400))
+                errors.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String profile = "mixed";
+        int threads = 32;
+        long duration_s = 30;
+        long latency_ms = 20;
+        long bandwidth_kB = 0;
+        int dirs = 20;
+        int files = 200;
+        int size = 16 * 1024;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("-profile"))
+                profile = value;
+            else if (args[i].equals("-threads"))
+                threads = Integer.parseInt(value);
+            else if (args[i].equals("-duration"))
+                duration_s = Long.parseLong(value);
+            else if (args[i].equals("-latency"))
+                latency_ms = Long.parseLong(value);
+            else if (args[i].equals("-bandwidth"))
+                bandwidth_kB = Long.parseLong(value);
+            else if (args[i].equals("-dirs"))
+                dirs = Integer.parseInt(value);
+            else if (args[i].equals("-files"))
+                files = Integer.parseInt(value);
+            else if (args[i].equals("-size"))
+                size = Integer.parseInt(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if (!PROFILES.containsKey(profile))
+            throw new IllegalArgumentException("Unknown profile " + profile + ", expected one of " + PROFILES.keySet());
+
+        InMemoryAtmos store = new InMemoryAtmos(0);
+        FakeAtmosServer server = new FakeAtmosServer(store, 0, latency_ms, bandwidth_kB * 1024);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("atmos_host", "127.0.0.1");
+        params.put("atmos_port", String.valueOf(server.getPort()));
+        params.put("atmos_transport", UrlConnectionTransport.class.getName());
+        ServletHarness harness = new ServletHarness(store, params);
+
+        WebDavLoad load = new WebDavLoad(harness, PROFILES.get(profile), dirs, files, size);
+        load.populate();
+        System.out.println("profile " + profile + ", " + threads + " clients, " + duration_s + " s, Atmos latency "
+                + latency_ms + " ms, bandwidth " + ((bandwidth_kB > 0) ? bandwidth_kB + " kB/s" : "unlimited")
+                + ", " + dirs + " x " + files + " files of " + size + " bytes");
+        long elapsed_ms = load.run(threads, duration_s * 1000);
+        load.report(elapsed_ms);
+        System.out.println(server);
+
+        harness.destroy();
+        server.stop();
+    }
+}
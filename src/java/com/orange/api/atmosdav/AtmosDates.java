@@ -0,0 +1,188 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.text.ParseException;
+
+/**
+ * Converts the dates of the Atmos system metadata ("2010-06-21T14:03:52Z",
+ * always GMT) to milliseconds and to the RFC 1123 format of the HTTP headers
+ * and of the getlastmodified property ("Mon, 21 Jun 2010 14:03:52 GMT").
+ *
+ * It replaces the shared SimpleDateFormats, which are not thread-safe. The
+ * conversions are plain arithmetic on the characters, with no allocation
+ * but the rendered string. Rendered strings are kept in a bounded, lock-free
+ * table indexed by the hash of the Atmos date: the objects of a listing
+ * share few distinct mtimes, so most entries of a PROPFIND are a lookup.
+ *
+ * @author Stephan Hadinger
+ */
+final class AtmosDates {
+
+    private static final String[] DAYS = { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+                                             "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    private static final long MS_PER_DAY = 86400000L;
+
+    /**
+     * Number of slots of the table of rendered dates, a power of 2.
+     */
+    private static final int CACHE_SLOTS = 1024;
+
+    /**
+     * Rendered dates by slot. Entries are immutable, so a slot may be read
+     * and overwritten concurrently without locking.
+     */
+    private static final Rendered[] CACHE = new Rendered[CACHE_SLOTS];
+
+    /**
+     * Hidden constructor.
+     */
+    private AtmosDates() { }
+
+    /**
+     * @param atmos_date a date of the Atmos metadata, like "2010-06-21T14:03:52Z"
+     * @return the date in milliseconds since the epoch
+     * @throws ParseException if the date is not in the Atmos format
+     */
+    static long parse(String atmos_date) throws ParseException {
+        if ((atmos_date == null) || (atmos_date.length() != 20)
+                || (atmos_date.charAt(4) != '-') || (atmos_date.charAt(7) != '-')
+                || (atmos_date.charAt(10) != 'T') || (atmos_date.charAt(13) != ':')
+                || (atmos_date.charAt(16) != ':') || (atmos_date.charAt(19) != 'Z'))
+            throw new ParseException("Unparseable date: \"" + atmos_date + "\"", 0);
+
+        int year = digits(atmos_date, 0, 4);
+        int month = digits(atmos_date, 5, 2);
+        int day = digits(atmos_date, 8, 2);
+        int hour = digits(atmos_date, 11, 2);
+        int minute = digits(atmos_date, 14, 2);
+        int second = digits(atmos_date, 17, 2);
+        if ((month < 1) || (month > 12) || (day < 1) || (day > 31)
+                || (hour > 23) || (minute > 59) || (second > 60))
+            throw new ParseException("Unparseable date: \"" + atmos_date + "\"", 0);
+
+        return daysFromCivil(year, month, day) * MS_PER_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L;
+    }
+
+    /**
+     * @param millis a date in milliseconds since the epoch
+     * @return the date in the RFC 1123 format, like "Mon, 21 Jun 2010 14:03:52 GMT"
+     */
+    static String format(long millis) {
+        long days = floorDiv(millis, MS_PER_DAY);
+        int seconds = (int) ((millis - days * MS_PER_DAY) / 1000);
+
+        // civil date from the day number, see daysFromCivil()
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+        int doy = doe - (365*yoe + yoe/4 - yoe/100);
+        int mp = (5*doy + 2) / 153;
+        int day = doy - (153*mp + 2)/5 + 1;
+        int month = (mp < 10) ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+
+        char[] out = new char[29];
+        DAYS[(int) (days - floorDiv(days, 7) * 7)].getChars(0, 3, out, 0);
+        out[3] = ',';
+        out[4] = ' ';
+        twoDigits(out, 5, day);
+        out[7] = ' ';
+        MONTHS[month - 1].getChars(0, 3, out, 8);
+        out[11] = ' ';
+        twoDigits(out, 12, (int) (year / 100));
+        twoDigits(out, 14, (int) (year % 100));
+        out[16] = ' ';
+        twoDigits(out, 17, seconds / 3600);
+        out[19] = ':';
+        twoDigits(out, 20, (seconds / 60) % 60);
+        out[22] = ':';
+        twoDigits(out, 23, seconds % 60);
+        out[25] = ' ';
+        out[26] = 'G';
+        out[27] = 'M';
+        out[28] = 'T';
+        return new String(out);
+    }
+
+    /**
+     * @param atmos_date a date of the Atmos metadata
+     * @return the date in the RFC 1123 format
+     * @throws ParseException if the date is not in the Atmos format
+     */
+    static String toHttp(String atmos_date) throws ParseException {
+        int slot = atmos_date.hashCode() & (CACHE_SLOTS - 1);
+        Rendered rendered = CACHE[slot];
+        if ((rendered != null) && rendered.atmos_date.equals(atmos_date))
+            return rendered.http_date;
+        String http_date = format(parse(atmos_date));
+        CACHE[slot] = new Rendered(atmos_date, http_date);
+        return http_date;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar,
+     * with years starting in March so that leap days come last.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        int yoe = (int) (y - era * 400);
+        int doy = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe/4 - yoe/100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int digits(String s, int start, int count) throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if ((c < '0') || (c > '9'))
+                throw new ParseException("Unparseable date: \"" + s + "\"", i);
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void twoDigits(char[] out, int pos, int value) {
+        out[pos] = (char) ('0' + value / 10);
+        out[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return ((a % b != 0) && ((a < 0) != (b < 0))) ? q - 1 : q;
+    }
+
+    private static class Rendered {
+        final String atmos_date;
+        final String http_date;
+
+        Rendered(String atmos_date, String http_date) {
+            this.atmos_date = atmos_date;
+            this.http_date = http_date;
+        }
+    }
+}
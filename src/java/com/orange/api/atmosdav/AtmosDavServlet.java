@@ -20,36 +20,50 @@
 
 package com.orange.api.atmosdav;
 
-import com.emc.esu.api.DirectoryEntry;
 import com.emc.esu.api.rest.DownloadHelper;
+import com.emc.esu.api.EsuApi;
 import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.Identifier;
+import com.emc.esu.api.Metadata;
 import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.MetadataTags;
+import com.emc.esu.api.ObjectId;
 import com.emc.esu.api.ObjectPath;
 import com.emc.esu.api.rest.UploadHelper;
-import com.emc.esu.api.rest.EsuRestApi;
-import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
-import java.text.DateFormat;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.Vector;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import nu.xom.Builder;
-import nu.xom.Document;
-import nu.xom.Element;
-import nu.xom.Elements;
+import javax.xml.namespace.QName;
 import org.apache.commons.codec.binary.Base64;
 
 /**
@@ -70,6 +84,133 @@ public class AtmosDavServlet extends HttpServlet {
      */
     private static String ATMOS_HOST_PARAM = "atmos_host";
     private static String ATMOS_PORT_PARAM = "atmos_port";
+    private static String ATMOS_TRANSPORT_PARAM = "atmos_transport";
+
+    /*
+     * Name of the Servlet parameters tuning directory listings
+     */
+    private static String METADATA_THREADS_PARAM = "metadata_threads";
+    private static String LIST_METADATA_PARAM = "list_with_metadata";
+    private static String LIST_PAGE_SIZE_PARAM = "list_page_size";
+    private static final int DEFAULT_METADATA_THREADS = 16;
+    private static final int DEFAULT_LIST_PAGE_SIZE = 1000;
+
+    /*
+     * Name of the Servlet parameters of Depth: infinity PROPFIND
+     */
+    private static String DEPTH_INFINITY_PARAM = "propfind_depth_infinity";
+    private static String MAX_DEPTH_PARAM = "propfind_max_depth";
+    private static String MAX_ENTRIES_PARAM = "propfind_max_entries";
+    private static String WALK_THREADS_PARAM = "propfind_walk_threads";
+    private static String WALK_PARALLELISM_PARAM = "propfind_walk_parallelism";
+    private static final int DEFAULT_MAX_DEPTH = 16;
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_WALK_THREADS = 8;
+    private static final int DEFAULT_WALK_PARALLELISM = 2;
+
+    /*
+     * Name of the Servlet parameters sizing the object metadata cache
+     */
+    private static String METADATA_CACHE_SIZE_PARAM = "metadata_cache_size";
+    private static String METADATA_CACHE_TTL_PARAM = "metadata_cache_ttl";
+    private static final int DEFAULT_METADATA_CACHE_SIZE = 10000;
+    private static final int DEFAULT_METADATA_CACHE_TTL = 5;      // seconds
+
+    /*
+     * Name of the Servlet parameters sizing the directory listing cache
+     */
+    private static String LISTING_CACHE_SIZE_PARAM = "listing_cache_size";
+    private static String LISTING_CACHE_TTL_PARAM = "listing_cache_ttl";
+    private static final int DEFAULT_LISTING_CACHE_SIZE = 100000;
+    private static final int DEFAULT_LISTING_CACHE_TTL = 30;      // seconds
+
+    /*
+     * Name of the Servlet parameters sizing the path to ObjectId cache
+     */
+    private static String ID_CACHE_SIZE_PARAM = "id_cache_size";
+    private static String ID_CACHE_TTL_PARAM = "id_cache_ttl";
+    private static final int DEFAULT_ID_CACHE_SIZE = 100000;
+    private static final int DEFAULT_ID_CACHE_TTL = 300;          // seconds
+
+    /*
+     * Name of the Servlet parameters of the local disk content cache,
+     * disabled unless content_cache_dir is set
+     */
+    private static String CONTENT_CACHE_DIR_PARAM = "content_cache_dir";
+    private static String CONTENT_CACHE_SIZE_PARAM = "content_cache_size";
+    private static String CONTENT_CACHE_MAX_OBJECT_PARAM = "content_cache_max_object";
+    private static final int DEFAULT_CONTENT_CACHE_SIZE = 1024;           // MB
+    private static final int DEFAULT_CONTENT_CACHE_MAX_OBJECT = 64;       // MB
+
+    /*
+     * Name of the Servlet parameters limiting the requests processed at the
+     * same time, unlimited if max_active_requests is 0. The default leaves
+     * some of the 200 threads of a default Tomcat connector to the requests
+     * waiting for a slot and to those which do not reach Atmos.
+     */
+    private static String MAX_ACTIVE_REQUESTS_PARAM = "max_active_requests";
+    private static String REQUEST_QUEUE_TIMEOUT_PARAM = "request_queue_timeout";
+    private static String RETRY_AFTER_PARAM = "retry_after";
+    private static final int DEFAULT_MAX_ACTIVE_REQUESTS = 150;
+    private static final int DEFAULT_REQUEST_QUEUE_TIMEOUT = 2000;    // ms
+    private static final int DEFAULT_RETRY_AFTER = 5;                 // seconds
+
+    /*
+     * Name of the Servlet parameters tuning the parallel upload of large PUT bodies
+     */
+    private static String UPLOAD_CHUNK_SIZE_PARAM = "upload_chunk_size";
+    private static String UPLOAD_PARALLELISM_PARAM = "upload_parallelism";
+    private static String UPLOAD_THREADS_PARAM = "upload_threads";
+    private static String UPLOAD_BUFFERS_PARAM = "upload_buffers";
+    private static String UPLOAD_BUFFER_TIMEOUT_PARAM = "upload_buffer_timeout";
+    private static final int DEFAULT_UPLOAD_CHUNK_SIZE = UploadHelper.DEFAULT_BUFFSIZE;
+    private static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+    private static final int DEFAULT_UPLOAD_THREADS = 16;
+    private static final int DEFAULT_UPLOAD_BUFFERS = 32;
+    private static final int DEFAULT_UPLOAD_BUFFER_TIMEOUT = 10000;   // ms
+
+    /*
+     * Name of the Servlet parameters tuning the read-ahead of large GET responses
+     */
+    private static String DOWNLOAD_THRESHOLD_PARAM = "download_threshold";
+    private static String DOWNLOAD_BLOCK_SIZE_PARAM = "download_block_size";
+    private static String DOWNLOAD_WINDOW_PARAM = "download_window";
+    private static String DOWNLOAD_THREADS_PARAM = "download_threads";
+    private static String DOWNLOAD_BUFFERS_PARAM = "download_buffers";
+    private static final int DEFAULT_DOWNLOAD_THRESHOLD = 16 * 1024 * 1024;
+    private static final int DEFAULT_DOWNLOAD_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_DOWNLOAD_WINDOW = 16 * 1024 * 1024;
+    private static final int DEFAULT_DOWNLOAD_THREADS = 16;
+    private static final int DEFAULT_DOWNLOAD_BUFFERS = 32;
+
+    /*
+     * Name of the Servlet parameter giving the Cache-Control response header
+     */
+    private static String CACHE_CONTROL_PARAM = "cache_control";
+    private static final String DEFAULT_CACHE_CONTROL = "no-cache";
+
+    /*
+     * Name of the Servlet parameters sizing the cache of Atmos clients per credentials
+     */
+    private static String CLIENT_CACHE_SIZE_PARAM = "client_cache_size";
+    private static String CLIENT_CACHE_TTL_PARAM = "client_cache_ttl";
+    private static final int DEFAULT_CLIENT_CACHE_SIZE = 1000;
+    private static final int DEFAULT_CLIENT_CACHE_TTL = 300;      // seconds
+
+    /*
+     * Name of the Servlet parameter limiting the size of XML request bodies
+     */
+    private static String XML_BODY_LIMIT_PARAM = "xml_body_limit";
+    private static final int DEFAULT_XML_BODY_LIMIT = 64 * 1024;
+
+    /*
+     * Name of the Servlet parameters giving the request URI answered with the
+     * metrics in text, disabled unless set, and the comma-separated client
+     * addresses getting them without credentials, none by default. Other
+     * clients need valid Atmos credentials.
+     */
+    private static String METRICS_PATH_PARAM = "metrics_path";
+    private static String METRICS_ALLOW_PARAM = "metrics_allow";
 
     // -------------------------------------------------------------- Constants
     private static final String METHOD_DELETE = "DELETE";
@@ -98,38 +239,47 @@ public class AtmosDavServlet extends HttpServlet {
      */
     private static final String WEBDAV_INTERNAL_PREFIX = "/webdav_";
 
+    /**
+     * Request attribute memoizing the Atmos paths computed for the request.
+     */
+    private static final String ATMOS_PATHS_ATTRIBUTE = "com.orange.api.atmosdav.paths";
+
     /**
      * PROPFIND - Specify a property mask.
      */
-    private static final int FIND_BY_PROPERTY = 0;
+    private static final int FIND_BY_PROPERTY = DavRequestParser.PROP;
 
     /**
      * PROPFIND - Display all properties.
      */
-    private static final int FIND_ALL_PROP = 1;
+    private static final int FIND_ALL_PROP = DavRequestParser.ALLPROP;
 
     /**
      * PROPFIND - Return property names.
      */
-    private static final int FIND_PROPERTY_NAMES = 2;
+    private static final int FIND_PROPERTY_NAMES = DavRequestParser.PROPNAME;
 
     /**
-     * ATMOS_DATE_FORMAT - Pattern used to decode date formats from Atmos metadata.
-     * This date format is forced to GMT Time Zone.
+     * PROPFIND - Depth: infinity.
      */
-    private static final DateFormat ATMOS_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-    static {
-        ATMOS_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    private static final int DEPTH_INFINITY = Integer.MAX_VALUE;
 
     /**
-     * LAST_MODIFIED_FORMAT - Pattern used to encode the "Last Midified" HTTP response header.
-     * This date format is forced to GMT Time Zone.
+     * MIME_BOUNDARY - Separator of the parts of multipart/byteranges responses.
      */
-    private static final DateFormat LAST_MODIFIED_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-    static {
-        LAST_MODIFIED_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    private static final String MIME_BOUNDARY = "ATMOSDAV_MIME_BOUNDARY";
+
+    /**
+     * MAX_RANGES - Maximum number of parts of a multipart/byteranges
+     * response, each part being read separately from Atmos. Beyond, the
+     * Range header is ignored and the full content is sent.
+     */
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * RANGE_BLOCK_SIZE - Size of the extent reads serving Range requests.
+     */
+    private static final int RANGE_BLOCK_SIZE = 1024 * 1024;
 
     // -------------------------------------------- Extended WebDav status code
     /**
@@ -144,6 +294,67 @@ public class AtmosDavServlet extends HttpServlet {
 
     private String _atmos_host;
     private int _atmos_port;
+    private AtmosTransport _transport;
+
+    private ExecutorService _metadata_executor;
+    private DirectoryLister _lister;
+
+    private ExecutorService _walk_executor;
+    private TreeWalker _walker;     // null if Depth: infinity is disabled
+
+    /*
+     * Object system metadata keyed by Atmos login and path (see
+     * AtmosApi.cacheKey()). The path prefix is built from the uid part of
+     * the login alone, so the path does not tell subtenants apart.
+     */
+    private LruCache<String, MetadataList> _metadata_cache;
+
+    /*
+     * Concurrent metadata lookups of the same Atmos path share one call.
+     * The calls are keyed by the generation of the path in the metadata
+     * cache too, so a lookup started after a write does not join a call
+     * started before it.
+     */
+    private SingleFlight<String, MetadataList> _metadata_flights;
+
+    /*
+     * Children of the directories keyed by Atmos path, updated in place by
+     * PUT, DELETE and MKCOL.
+     */
+    private ListingCache _listing_cache;
+
+    /*
+     * ObjectId of the objects keyed by Atmos path, learned from their
+     * metadata, so that Atmos does not have to resolve the path again.
+     */
+    private LruCache<String, ObjectId> _id_cache;
+
+    private ContentCache _content_cache;    // null if disabled
+
+    private RequestLimiter _limiter;        // null if unlimited
+    private String _retry_after;
+
+    private ExecutorService _upload_executor;
+    private ChunkedUploader _uploader;
+
+    private ExecutorService _download_executor;
+    private ReadAheadDownloader _downloader;
+    private long _download_threshold;
+
+    private String _cache_control;
+
+    /*
+     * Atmos clients keyed by a SHA-256 hash of the Authorization header, so
+     * that the passwords are not kept in clear as map keys.
+     */
+    private LruCache<String, AtmosApi> _client_cache;
+
+    private DavRequestParser _request_parser;
+
+    private DavMetrics _metrics;
+    private ObjectName _metrics_name;   // null if not registered
+    private String _metrics_path;       // null if disabled
+    private Set<InetAddress> _metrics_allow;
 
     /**
      * Initialize this servlet.
@@ -165,20 +376,285 @@ public class AtmosDavServlet extends HttpServlet {
         } catch (Exception e) {
             throw new ServletException("atmos_port parameter incorrect:"+atmos_port_str, e);
         }
+
+        String transport_class = getInitParameter(ATMOS_TRANSPORT_PARAM);
+        if (transport_class == null) {
+            _transport = new UrlConnectionTransport();
+        } else {
+            try {
+                _transport = (AtmosTransport) Class.forName(transport_class).newInstance();
+            } catch (Exception e) {
+                throw new ServletException("atmos_transport parameter incorrect:"+transport_class, e);
+            }
+        }
+        _transport.init(_atmos_host, _atmos_port, getServletConfig());
+
+        _metadata_cache = new LruCache<String, MetadataList>("metadata cache",
+                getIntInitParameter(METADATA_CACHE_SIZE_PARAM, DEFAULT_METADATA_CACHE_SIZE, 1),
+                getIntInitParameter(METADATA_CACHE_TTL_PARAM, DEFAULT_METADATA_CACHE_TTL, 0) * 1000L);
+
+        int metadata_threads = getIntInitParameter(METADATA_THREADS_PARAM, DEFAULT_METADATA_THREADS, 1);
+        boolean list_metadata = !"false".equals(getInitParameter(LIST_METADATA_PARAM));
+        _metadata_executor = Executors.newFixedThreadPool(metadata_threads, new NamedThreadFactory("metadata"));
+        String content_cache_dir = getInitParameter(CONTENT_CACHE_DIR_PARAM);
+        if (content_cache_dir != null) {
+            try {
+                _content_cache = new ContentCache(new File(content_cache_dir),
+                        getIntInitParameter(CONTENT_CACHE_SIZE_PARAM, DEFAULT_CONTENT_CACHE_SIZE, 1) * 1024L * 1024L,
+                        getIntInitParameter(CONTENT_CACHE_MAX_OBJECT_PARAM, DEFAULT_CONTENT_CACHE_MAX_OBJECT, 1) * 1024L * 1024L);
+            } catch (IOException e) {
+                throw new ServletException("content_cache_dir parameter incorrect:"+content_cache_dir, e);
+            }
+        }
+
+        int max_active = getIntInitParameter(MAX_ACTIVE_REQUESTS_PARAM, DEFAULT_MAX_ACTIVE_REQUESTS, 0);
+        if (max_active > 0)
+            _limiter = new RequestLimiter(max_active, getIntInitParameter(REQUEST_QUEUE_TIMEOUT_PARAM, DEFAULT_REQUEST_QUEUE_TIMEOUT, 0));
+        _retry_after = String.valueOf(getIntInitParameter(RETRY_AFTER_PARAM, DEFAULT_RETRY_AFTER, 0));
+
+        _metadata_flights = new SingleFlight<String, MetadataList>("metadata calls");
+        _id_cache = new LruCache<String, ObjectId>("id cache",
+                getIntInitParameter(ID_CACHE_SIZE_PARAM, DEFAULT_ID_CACHE_SIZE, 1),
+                getIntInitParameter(ID_CACHE_TTL_PARAM, DEFAULT_ID_CACHE_TTL, 0) * 1000L);
+        _listing_cache = new ListingCache(
+                getIntInitParameter(LISTING_CACHE_SIZE_PARAM, DEFAULT_LISTING_CACHE_SIZE, 1),
+                getIntInitParameter(LISTING_CACHE_TTL_PARAM, DEFAULT_LISTING_CACHE_TTL, 0) * 1000L);
+        _lister = new DirectoryLister(_metadata_executor, _metadata_cache, _listing_cache, _metadata_flights, SYSTEM_TAGS, metadata_threads,
+                getIntInitParameter(LIST_PAGE_SIZE_PARAM, DEFAULT_LIST_PAGE_SIZE, 0), list_metadata);
+
+        if ("true".equals(getInitParameter(DEPTH_INFINITY_PARAM))) {
+            int walk_threads = getIntInitParameter(WALK_THREADS_PARAM, DEFAULT_WALK_THREADS, 1);
+            _walk_executor = Executors.newFixedThreadPool(walk_threads, new NamedThreadFactory("walk"));
+            int walk_parallelism = Math.min(walk_threads, getIntInitParameter(WALK_PARALLELISM_PARAM, DEFAULT_WALK_PARALLELISM, 1));
+            _walker = new TreeWalker(_walk_executor, _lister, walk_parallelism,
+                    getIntInitParameter(MAX_DEPTH_PARAM, DEFAULT_MAX_DEPTH, 1),
+                    getIntInitParameter(MAX_ENTRIES_PARAM, DEFAULT_MAX_ENTRIES, 1));
+        }
+
+        int upload_buffers = getIntInitParameter(UPLOAD_BUFFERS_PARAM, DEFAULT_UPLOAD_BUFFERS, 2);
+        BufferPool upload_pool = new BufferPool(getIntInitParameter(UPLOAD_CHUNK_SIZE_PARAM, DEFAULT_UPLOAD_CHUNK_SIZE, 1), upload_buffers);
+        // keep one buffer for the first chunk of each upload
+        int upload_parallelism = Math.min(upload_buffers - 1, getIntInitParameter(UPLOAD_PARALLELISM_PARAM, DEFAULT_UPLOAD_PARALLELISM, 1));
+        _upload_executor = Executors.newFixedThreadPool(getIntInitParameter(UPLOAD_THREADS_PARAM, DEFAULT_UPLOAD_THREADS, 1), new NamedThreadFactory("upload"));
+        _uploader = new ChunkedUploader(_upload_executor, upload_pool, upload_parallelism,
+                getIntInitParameter(UPLOAD_BUFFER_TIMEOUT_PARAM, DEFAULT_UPLOAD_BUFFER_TIMEOUT, 0));
+
+        _download_threshold = getIntInitParameter(DOWNLOAD_THRESHOLD_PARAM, DEFAULT_DOWNLOAD_THRESHOLD, 1);
+        _download_executor = Executors.newFixedThreadPool(getIntInitParameter(DOWNLOAD_THREADS_PARAM, DEFAULT_DOWNLOAD_THREADS, 1), new NamedThreadFactory("download"));
+        _downloader = new ReadAheadDownloader(_download_executor,
+                getIntInitParameter(DOWNLOAD_BLOCK_SIZE_PARAM, DEFAULT_DOWNLOAD_BLOCK_SIZE, 1),
+                getIntInitParameter(DOWNLOAD_WINDOW_PARAM, DEFAULT_DOWNLOAD_WINDOW, 1),
+                getIntInitParameter(DOWNLOAD_BUFFERS_PARAM, DEFAULT_DOWNLOAD_BUFFERS, 0));
+
+        _client_cache = new LruCache<String, AtmosApi>("client cache",
+                getIntInitParameter(CLIENT_CACHE_SIZE_PARAM, DEFAULT_CLIENT_CACHE_SIZE, 1),
+                getIntInitParameter(CLIENT_CACHE_TTL_PARAM, DEFAULT_CLIENT_CACHE_TTL, 0) * 1000L);
+
+        _request_parser = new DavRequestParser(getIntInitParameter(XML_BODY_LIMIT_PARAM, DEFAULT_XML_BODY_LIMIT, 1));
+
+        _cache_control = getInitParameter(CACHE_CONTROL_PARAM);
+        if (_cache_control == null)
+            _cache_control = DEFAULT_CACHE_CONTROL;
+
+        _metrics = new DavMetrics();
+        _metrics.addCache("metadata", _metadata_cache);
+        _metrics.addCache("listing", _listing_cache);
+        if (_content_cache != null)
+            _metrics.addCache("content", _content_cache);
+        _metrics_path = getInitParameter(METRICS_PATH_PARAM);
+        _metrics_allow = new HashSet<InetAddress>();
+        String metrics_allow = getInitParameter(METRICS_ALLOW_PARAM);
+        if (metrics_allow != null) {
+            for (String address:metrics_allow.split(",")) {
+                address = address.trim();
+                if (address.length() == 0)
+                    continue;
+                try {
+                    _metrics_allow.add(InetAddress.getByName(address));
+                } catch (UnknownHostException e) {
+                    throw new ServletException(METRICS_ALLOW_PARAM+" parameter incorrect:"+address);
+                }
+            }
+        }
+        registerMetrics();
         // Note: super() is not needed for this zero-param init() - see Servlet doc
     }
 
     /**
-     * Handles the special WebDAV methods.
+     * Stops the worker threads.
+     */
+    @Override
+    public void destroy() {
+        if (_metadata_executor != null)
+            _metadata_executor.shutdownNow();
+        if (_walk_executor != null)
+            _walk_executor.shutdownNow();
+        if (_upload_executor != null)
+            _upload_executor.shutdownNow();
+        if (_download_executor != null)
+            _download_executor.shutdownNow();
+        if (_metadata_cache != null)
+            log(_metadata_cache.toString());
+        if (_metadata_flights != null)
+            log(_metadata_flights.toString());
+        if (_listing_cache != null)
+            log(_listing_cache.toString());
+        if (_lister != null)
+            log(_lister.getStatistics());
+        if (_id_cache != null)
+            log(_id_cache.toString());
+        if (_content_cache != null) {
+            log(_content_cache.toString());
+            _content_cache.destroy();
+        }
+        if (_limiter != null)
+            log(_limiter.toString());
+        if (_client_cache != null)
+            log(_client_cache.toString());
+        if (_transport != null) {
+            log(_transport.getStatistics());
+            _transport.destroy();
+        }
+        if (_metrics != null)
+            log(_metrics.toString());
+        if (_metrics_name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_metrics_name);
+            } catch (Exception e) {
+                log("metrics MBean not unregistered", e);
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBeanServer. The servlet still
+     * starts if JMX refuses them, e.g. when another servlet of the same
+     * name already registered its own.
+     */
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("com.orange.api.atmosdav:type=Metrics,name=" + ObjectName.quote(getServletName()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(_metrics, DavMetricsMBean.class), name);
+            _metrics_name = name;
+        } catch (InstanceAlreadyExistsException e) {
+            log("metrics MBean already registered: " + e.getMessage());
+        } catch (Exception e) {
+            log("metrics MBean not registered", e);
+        }
+    }
+
+    /**
+     * Reads an optional integer servlet parameter.
+     *
+     * @param name name of the parameter in the web.xml file
+     * @param default_value value used when the parameter is absent
+     * @param min_value smallest accepted value
+     * @return the value of the parameter
+     */
+    private int getIntInitParameter(String name, int default_value, int min_value) throws ServletException {
+        String value_str = getInitParameter(name);
+        if (value_str == null)
+            return default_value;
+        try {
+            int value = Integer.parseInt(value_str.trim());
+            if (value >= min_value)
+                return value;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ServletException(name+" parameter incorrect:"+value_str);
+    }
+
+    /**
+     * Handles the special WebDAV methods, and records their latency.
      */
     @Override
     protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        resp.setHeader("Cache-Control","no-cache"); //HTTP 1.1
-        resp.setHeader("Pragma","no-cache"); //HTTP 1.0
-        resp.setDateHeader ("Expires", 0); //prevents caching at the proxy server
+        long start = System.nanoTime();
+        try {
+            serviceMeasured(req, resp);
+        } finally {
+            _metrics.requestDone(req.getMethod(), System.nanoTime() - start);
+        }
+    }
 
+    private void serviceMeasured(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String method = req.getMethod();
 
+        // metrics are not limited
+        if ((_metrics_path != null) && method.equals(METHOD_GET) && _metrics_path.equals(getPathFromReq(req))) {
+            sendMetrics(req, resp);
+            return;
+        }
+
+        resp.setHeader("Cache-Control", _cache_control); //HTTP 1.1
+        if ((_cache_control.indexOf("no-cache") >= 0) || (_cache_control.indexOf("no-store") >= 0)) {
+            resp.setHeader("Pragma","no-cache"); //HTTP 1.0
+            resp.setDateHeader ("Expires", 0); //prevents caching at the proxy server
+        }
+
+        // OPTIONS never reaches Atmos and is not limited
+        if ((_limiter == null) || method.equals(METHOD_OPTIONS)) {
+            dispatch(req, resp, method);
+            return;
+        }
+        if (!_limiter.acquire()) {
+            resp.setHeader("Retry-After", _retry_after);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            dispatch(req, resp, method);
+        } finally {
+            _limiter.release();
+        }
+    }
+
+    /**
+     * Answers the metrics endpoint to a client of the metrics_allow list, or
+     * to a client whose credentials Atmos accepts.
+     */
+    private void sendMetrics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!isMetricsAllowed(req.getRemoteAddr())) {
+            try {
+                getAPIFromAuthent(req, resp);
+            } catch (EsuException e) {
+                if ((e.getAtmosCode() == 1033) || (e.getHttpCode() == 401)) {
+                    resp.setHeader(WWW_AUTHENTICATE, WWW_AUTHENTICATE_VALUE);
+                    resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                } else {
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                }
+                return;
+            }
+        }
+        byte[] text = _metrics.getText().getBytes("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        resp.setContentLength(text.length);
+        resp.getOutputStream().write(text);
+    }
+
+    /**
+     * @param address an IP address literal, as given by getRemoteAddr()
+     * @return true for an address of the metrics_allow list
+     */
+    private boolean isMetricsAllowed(String address) {
+        if (_metrics_allow.isEmpty() || (address == null))
+            return false;
+        try {
+            return _metrics_allow.contains(InetAddress.getByName(address));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Calls the handler of the request method, and turns the Atmos errors
+     * into HTTP errors.
+     */
+    private void dispatch(HttpServletRequest req, HttpServletResponse resp, String method) throws ServletException, IOException {
         try {
             if (method.equals(METHOD_PROPFIND)) {
                 doPropfind(req, resp);
@@ -212,10 +688,20 @@ public class AtmosDavServlet extends HttpServlet {
                 resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
             }
         } catch (EsuException e) {
-            if (e.getAtmosCode() == 1033) {
+            if (resp.isCommitted()) {
+                // part of the body is sent: the container aborts the connection
+                throw new ServletException(e);
+            }
+            if ((e.getAtmosCode() == 1033) || (e.getHttpCode() == 401)) {
+                // credentials refused: do not reuse this client anymore
+                String authorization = req.getHeader(BASICAUTH_HEADER);
+                if (authorization != null)
+                    _client_cache.remove(credentialsKey(authorization));
                 resp.setHeader(WWW_AUTHENTICATE, WWW_AUTHENTICATE_VALUE);
                 resp.sendError(resp.SC_UNAUTHORIZED);
             } else {
+                if (e.getHttpCode() == HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+                    resp.setHeader("Retry-After", _retry_after);
                 if (e.getHttpCode() != 0) {
                     StringBuffer err = new StringBuffer();
 
@@ -243,7 +729,7 @@ public class AtmosDavServlet extends HttpServlet {
         AtmosApi api = getAPIFromAuthent(req, resp);
         
         // Properties which are to be displayed.
-        List<String> properties = null;
+        List<PropertyHandler> properties = null;
         // Propfind depth
         int depth = 1;
         // Propfind type
@@ -251,60 +737,46 @@ public class AtmosDavServlet extends HttpServlet {
 
         String href = getPathFromReq(req);
 
-        if ("0".equals(req.getHeader("Depth"))) {
-            depth = 0;      // only accepted values are 0 and 1
-        }
-
-        Element propNode = null;
-        if (req.getContentLength() >0) {
-            Builder parser = new Builder();
+        String depth_str = req.getHeader("Depth");
+        if ("0".equals(depth_str)) {
+            depth = 0;
+        } else if ((_walker != null) && "infinity".equalsIgnoreCase(depth_str)) {
+            depth = DEPTH_INFINITY;
+        }       // otherwise 1, infinity is only accepted if enabled
 
+        if (req.getContentLength() > _request_parser.getMaxSize()) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if ((req.getContentLength() > 0) || (req.getHeader("Transfer-Encoding") != null)) {
             try {
-                Document doc = parser.build(req.getInputStream());
-
-                // Get the root element of the document
-                Element root = doc.getRootElement();
-                Elements childList = root.getChildElements();
-
-                for (int i=0; i < childList.size(); i++) {
-                    Element currentNode = childList.get(i);
-                    if (currentNode.getLocalName().equals("prop")) {
-                        type = FIND_BY_PROPERTY;
-                        propNode = currentNode;
-                    }
-                    if (currentNode.getLocalName().equals("propname")) {
-                        type = FIND_PROPERTY_NAMES;
-                    }
-                    if (currentNode.getLocalName().equals("allprop")) {
-                        type = FIND_ALL_PROP;
-                    }
-                }
+                DavRequestParser.Propfind propfind = _request_parser.parsePropfind(req.getInputStream());
+                type = propfind.type;
+                if (type == FIND_BY_PROPERTY)
+                    properties = resolveProperties(propfind.properties);
+            } catch (DavRequestParser.BodyTooLargeException e) {
+                resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
             } catch(Exception e) {
                 // Something went wrong - bad request
                 resp.sendError(resp.SC_BAD_REQUEST);
                 return;
             }
         }
-        
-        if (type == FIND_BY_PROPERTY) {
-            properties = new Vector<String>();
-            Elements childList = propNode.getChildElements();
-            for (int i=0; i < childList.size(); i++) {
-                properties.add(childList.get(i).getLocalName());
-            }
-
-        }
-
 
         try {
             //EsuRestApi api = new EsuRestApi(ATMOS_ENDPOINT_HOST, ATMOS_ENDPOINT_PORT, "69a36dbcbe9c4b0cad8ac8d696deed71/Int001", "Vv67+N+2u7SAZsboJwX8+yd2GXc=");
-            MetadataList metadata = getObjectMetadata(api.api, getAtmosPath(href, api));
+            ObjectPath obj_path = getAtmosPath(req, href, api);
+            MetadataList metadata = getObjectMetadata(api, obj_path);
             AtmosType obj_type = getObjectType(metadata);
 
             if (obj_type == AtmosType.NON_EXISTENT) {
                 // check if we need to initialize the directory container for webdav
                 if ("/".equals(href)) {
-                    api.api.createObjectOnPath(getAtmosPath(href, api), null, null, null, null);
+                    api.api.createObjectOnPath(obj_path, null, null, null, null);
+                    invalidateMetadata(api, obj_path);
+                    _listing_cache.added(api.uid, obj_path);
+                    metadata = getObjectMetadata(api, obj_path);
                     obj_type = AtmosType.DIRECTORY;
                 } else {
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND, href);
@@ -312,38 +784,59 @@ public class AtmosDavServlet extends HttpServlet {
                 }
             }
 
-            if ((obj_type == AtmosType.DIRECTORY) && (!href.endsWith("/")))
+            if ((obj_type == AtmosType.DIRECTORY) && (!href.endsWith("/"))) {
                 href += "/";
+                obj_path = getAtmosPath(req, href, api);
+            }
 
             resp.setStatus(SC_MULTI_STATUS);
             resp.setContentType("text/xml; charset=UTF-8");
 
 
-            // Create multistatus object
-            Element root = new Element("multistatus", DAV_NAMESPACE);
-            Document xml = new Document(root);
+            // Stream the multistatus response, entry by entry
+            final MultistatusWriter writer = new MultistatusWriter(resp.getOutputStream());
+            writer.startMultistatus();
 
-            parseProperties(req, metadata, root, getAtmosPath(href, api).toString(), type, api, properties);
+            parseProperties(req, metadata, writer, obj_path.toString(), type, api, properties);
             if ((depth > 0) && (obj_type == AtmosType.DIRECTORY)) {
-                List<DirectoryEntry> dir_entries = api.api.listDirectory(getAtmosPath(href, api));
-                for(DirectoryEntry dir_entry:dir_entries) {
-                    try {
-                        MetadataList entry_metadata = getObjectMetadata(api.api, dir_entry.getPath());
-//                        String local_name = entry_metadata.getMetadata("objname").getValue();
-                        parseProperties(req, entry_metadata, root, dir_entry.getPath().toString(), type, api, properties);
-                    } catch (EsuException e) {
-                        if ((e.getAtmosCode() != 403) && (e.getAtmosCode() != 1003))
-                            throw e;
+                final HttpServletRequest request = req;
+                final AtmosApi entry_api = api;
+                final int entry_type = type;
+                final List<PropertyHandler> entry_properties = properties;
+                DirectoryLister.EntryHandler handler = new DirectoryLister.EntryHandler() {
+                    public void entry(DirectoryLister.ListedEntry entry) throws IOException {
+                        try {
+                            parseProperties(request, entry.metadata, writer, entry.path.toString(), entry_type, entry_api, entry_properties);
+                        } catch (ParseException e) {
+                            throw new EsuException("Invalid metadata for "+entry.path, e);
+                        }
                     }
+                };
+                if (depth == DEPTH_INFINITY) {
+                    if (!_walker.walk(api.api, api.uid, obj_path, handler)) {
+                        // too many entries: tell the client the listing is incomplete
+                        writer.startResponse(AtmosPathCodec.decode(atmosToURL(obj_path.toString(), api)));
+                        writer.element("status", STATUS_INSUFFICIENT_STORAGE);
+                        writer.endResponse();
+                    }
+                } else {
+                    _lister.list(api.api, api.uid, obj_path, handler);
                 }
             }
 
-            String sxml = xml.toXML();
-            resp.getWriter().write(sxml);
+            writer.endMultistatus();
 
         } catch (EsuException e) {
+            if (e.getHttpCode() == 401)
+                throw e;
+            if (resp.isCommitted())
+                throw e;    // part of the listing is sent: abort the response
             resp.sendError(e.getHttpCode(), e.getMessage());
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
+            if (resp.isCommitted())
+                throw new ServletException(e);
             resp.sendError(resp.SC_INTERNAL_SERVER_ERROR, "Exception: "+e.getMessage());
         }
 
@@ -352,8 +845,8 @@ public class AtmosDavServlet extends HttpServlet {
     /**
      * Process a HEAD request for the specified resource.
      *
-     * It is currently identical to GET.
-     * (could be improved someday... but do clients send HEAD ?)
+     * The response is built from the (cached) system metadata only, the
+     * content of the object is never read from Atmos.
      *
      * @param request The servlet request we are processing
      * @param response The servlet response we are creating
@@ -363,15 +856,40 @@ public class AtmosDavServlet extends HttpServlet {
      */
     @Override
     protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
-        doGet(req, resp);
+        String href = getPathFromReq(req);
+        AtmosApi api = getAPIFromAuthent(req, resp);
+
+        try {
+            MetadataList metadata = getObjectMetadata(api, getAtmosPath(req, href, api));
+            AtmosType obj_type = getObjectType(metadata);
+
+            if (obj_type == AtmosType.REGULAR) {
+                if (!checkIfHeaders(req, resp, metadata))
+                    return;
+                resp.setStatus(resp.SC_OK);
+                setContentHeaders(resp, metadata);
+            } else if (obj_type == AtmosType.DIRECTORY) {
+                resp.sendError(resp.SC_FORBIDDEN, "Directory listing not allowed.");
+            } else {
+                resp.sendError(resp.SC_NOT_FOUND);
+            }
+        } catch (EsuException e) {
+            if ((e.getAtmosCode() == 1003) || (e.getHttpCode() == 404)) {
+                resp.sendError(resp.SC_NOT_FOUND);
+            } else {
+                throw e;
+            }
+        } catch (ParseException e) {
+            resp.sendError(resp.SC_INTERNAL_SERVER_ERROR, "Exception: "+e.getMessage());
+        }
     }
 
 
     /**
      * Process a GET request for the specified resource.
      *
-     * Note: GET method currently does not support Content-Range parameter.
-     * It will send the complete content.
+     * Range requests are served with Atmos extent reads: a single range is
+     * sent as a 206 response, several ranges as a multipart/byteranges one.
      *
      * @param request The servlet request we are processing
      * @param response The servlet response we are creating
@@ -385,14 +903,15 @@ public class AtmosDavServlet extends HttpServlet {
         AtmosApi api = getAPIFromAuthent(req, resp);
 
         try {
-            ObjectPath obj_path = getAtmosPath(href, api);
-            MetadataList metadata = getObjectMetadata(api.api, getAtmosPath(href, api));
+            ObjectPath obj_path = getAtmosPath(req, href, api);
+            MetadataList metadata = getObjectMetadata(api, obj_path);
             AtmosType obj_type = getObjectType(metadata);
 
             if (obj_type == AtmosType.NON_EXISTENT) {
                 // check if we need to initialize the directory container for webdav
                 if ("/".equals(href)) {
-                    api.api.createObjectOnPath(getAtmosPath(href, api), null, null, null, null);
+                    api.api.createObjectOnPath(obj_path, null, null, null, null);
+                    invalidateMetadata(api, obj_path);
                     obj_type = AtmosType.DIRECTORY;
                 } else {
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND, href);
@@ -401,15 +920,37 @@ public class AtmosDavServlet extends HttpServlet {
             }
 
             if (obj_type == AtmosType.REGULAR) {
-                resp.setStatus(resp.SC_OK);
-                //response.setContentType("application/octet-stream");
-                resp.setContentType("text/plain");
-                
-                String last_modified_str = metadata.getMetadata("mtime").getValue();
-                resp.addDateHeader("Last-Modified", ATMOS_DATE_FORMAT.parse(last_modified_str).getTime());
-
-                DownloadHelper down_helper = new DownloadHelper(api.api, null);
-                down_helper.readObject(obj_path, resp.getOutputStream(), false);
+                if (!checkIfHeaders(req, resp, metadata))
+                    return;
+
+                long size = Long.parseLong(metadata.getMetadata("size").getValue());
+                List<Range> ranges = parseRange(req, resp, metadata, size);
+                if (ranges == null)
+                    return;     // error already sent
+
+                setContentHeaders(resp, metadata);
+                Identifier obj_id = getIdentifier(api, obj_path);
+                File cached = (_content_cache != null) ? _content_cache.get(api.cacheKey(obj_path), getETag(metadata)) : null;
+                if (ranges.isEmpty()) {
+                    resp.setStatus(resp.SC_OK);
+                    if (cached != null) {
+                        sendCached(req, resp, cached, 0, size - 1);
+                    } else {
+                        copyObject(api.api, api.cacheKey(obj_path), obj_id, metadata, size, resp.getOutputStream());
+                    }
+                } else if (ranges.size() == 1) {
+                    Range range = ranges.get(0);
+                    resp.setStatus(resp.SC_PARTIAL_CONTENT);
+                    resp.setHeader("Content-Range", "bytes " + range.start + "-" + range.end + "/" + range.length);
+                    resp.setHeader("Content-Length", String.valueOf(range.end - range.start + 1));
+                    if (cached != null)
+                        sendCached(req, resp, cached, range.start, range.end);
+                    else
+                        copyRange(api.api, obj_id, range, resp.getOutputStream());
+                } else {
+                    resp.setStatus(resp.SC_PARTIAL_CONTENT);
+                    copyRanges(api.api, obj_id, cached, ranges, "text/plain", resp);
+                }
             } else if (obj_type == AtmosType.DIRECTORY) {
                 resp.sendError(resp.SC_FORBIDDEN, "Directory listing not allowed.");
             } else if (obj_type == AtmosType.NON_EXISTENT) {
@@ -419,18 +960,264 @@ public class AtmosDavServlet extends HttpServlet {
             }
 
         } catch (EsuException e) {
+            if (resp.isCommitted())
+                throw e;    // part of the body is sent: abort the response
             if ((e.getAtmosCode() == 1003) || (e.getHttpCode() == 404)) {
                 resp.sendError(resp.SC_NOT_FOUND);
             } else {
                 throw e;
             }
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
+            if (resp.isCommitted())
+                throw new ServletException(e);
             resp.sendError(resp.SC_INTERNAL_SERVER_ERROR, "Exception: "+e.getMessage());
         }
+    }
+
+
+    /**
+     * Sends a list of ranges of an object as a multipart/byteranges body.
+     *
+     * The Content-Length is computed beforehand from the part headers and
+     * the range sizes, so it matches exactly the bytes sent.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_path the Atmos path of the object
+     * @param ranges the ranges to send, already validated
+     * @param content_type Content-Type of each part
+     * @param resp The servlet response we are creating
+     */
+    private void copyRanges(EsuApi api, Identifier obj_id, File cached, List<Range> ranges,
+                            String content_type, HttpServletResponse resp) throws IOException {
+        List<byte[]> part_headers = new ArrayList<byte[]>(ranges.size());
+        byte[] trailer = ("\r\n--" + MIME_BOUNDARY + "--\r\n").getBytes("ISO-8859-1");
+        long content_length = trailer.length;
+
+        for (Range range:ranges) {
+            String part_header = "\r\n--" + MIME_BOUNDARY + "\r\n"
+                    + "Content-Type: " + content_type + "\r\n"
+                    + "Content-Range: bytes " + range.start + "-" + range.end + "/" + range.length + "\r\n"
+                    + "\r\n";
+            byte[] header_bytes = part_header.getBytes("ISO-8859-1");
+            part_headers.add(header_bytes);
+            content_length += header_bytes.length + (range.end - range.start + 1);
+        }
+
+        resp.setContentType("multipart/byteranges; boundary=" + MIME_BOUNDARY);
+        resp.setHeader("Content-Length", String.valueOf(content_length));
+
+        OutputStream out = resp.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(part_headers.get(i));
+            if (cached != null)
+                _content_cache.send(cached, ranges.get(i).start, ranges.get(i).end, out);
+            else
+                copyRange(api, obj_id, ranges.get(i), out);
+        }
+        out.write(trailer);
+    }
+
+    /**
+     * Copies a whole object to an output stream, and to the content cache
+     * if it is enabled and the object fits in it.
+     *
+     * @param api the Atmos REST API object
+     * @param cache_key the content cache key of the object
+     * @param obj_id the Atmos path or ObjectId of the object
+     * @param metadata system metadata of the object
+     * @param size size of the object
+     * @param out stream to write to
+     */
+    private void copyObject(EsuApi api, String cache_key, Identifier obj_id, MetadataList metadata,
+                            long size, OutputStream out) throws IOException {
+        ContentCache.Fill fill = null;
+        if (_content_cache != null) {
+            fill = _content_cache.fill(cache_key, getETag(metadata), size, out);
+            if (fill != null)
+                out = fill;
+        }
+
+        boolean done = false;
+        try {
+            if (size >= _download_threshold) {
+                _downloader.download(api, obj_id, 0, size - 1, out);
+            } else {
+                DownloadHelper down_helper = new DownloadHelper(api, null);
+                down_helper.readObject(obj_id, out, false);
+            }
+            done = true;
+        } finally {
+            if (fill != null) {
+                if (done)
+                    fill.complete();
+                else
+                    fill.abandon();
+            }
+        }
+    }
+
+    /**
+     * Sends bytes start to end (inclusive) of a file of the content cache.
+     * The container sends the file itself when it supports it (Tomcat
+     * sendfile with the NIO and APR connectors), otherwise it is copied
+     * with FileChannel.transferTo().
+     */
+    private void sendCached(HttpServletRequest req, HttpServletResponse resp, File cached,
+                            long start, long end) throws IOException {
+        if (Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            req.setAttribute("org.apache.tomcat.sendfile.filename", cached.getAbsolutePath());
+            req.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(start));
+            req.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(end + 1));
+            _content_cache.served(end - start + 1);
+        } else {
+            _content_cache.send(cached, start, end, resp.getOutputStream());
+        }
+    }
+
+    /**
+     * Copies a range of an object to an output stream, reading it from
+     * Atmos by extents of RANGE_BLOCK_SIZE bytes. Ranges above the download
+     * threshold are read ahead in parallel.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_path the Atmos path of the object
+     * @param range the range to copy, already validated
+     * @param out stream to write to
+     */
+    private void copyRange(EsuApi api, Identifier obj_id, Range range, OutputStream out) throws IOException {
+        if (range.end - range.start + 1 >= _download_threshold) {
+            _downloader.download(api, obj_id, range.start, range.end, out);
+            return;
+        }
+
+        long offset = range.start;
+        while (offset <= range.end) {
+            long block = Math.min(RANGE_BLOCK_SIZE, range.end - offset + 1);
+            byte[] data = api.readObject(obj_id, new Extent(offset, block), null);
+            if ((data == null) || (data.length == 0))
+                throw new IOException("Unexpected end of object at offset " + offset);
+            int len = (int) Math.min(block, data.length);
+            out.write(data, 0, len);
+            offset += len;
+        }
+    }
+
+    /**
+     * Check if the conditions specified in the optional If headers are
+     * satisfied, for a GET or HEAD request.
+     *
+     * If-Match and If-Unmodified-Since failures are answered with 412,
+     * If-None-Match and If-Modified-Since matches with 304.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param metadata system metadata of the object
+     * @return true if the request must be processed, false if the response was sent
+     */
+    private boolean checkIfHeaders(HttpServletRequest request, HttpServletResponse response,
+                                   MetadataList metadata) throws IOException, ParseException {
+        String etag = getETag(metadata);
+        long last_modified = AtmosDates.parse(metadata.getMetadata("mtime").getValue());
+
+        String ifMatch = request.getHeader("If-Match");
+        if ((ifMatch != null) && !matchETag(ifMatch, etag, false)) {
+            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return false;
+        }
+        long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
+        if ((ifMatch == null) && (ifUnmodifiedSince != -1) && (last_modified / 1000 > ifUnmodifiedSince / 1000)) {
+            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return false;
+        }
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean not_modified;
+        if (ifNoneMatch != null) {
+            not_modified = matchETag(ifNoneMatch, etag, true);
+        } else {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            not_modified = (ifModifiedSince != -1) && (last_modified / 1000 <= ifModifiedSince / 1000);
+        }
+        if (not_modified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", etag);
+            response.setHeader("Last-Modified", AtmosDates.toHttp(metadata.getMetadata("mtime").getValue()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks an If-Match or If-None-Match header against the entity tag of
+     * an existing object.
+     *
+     * @param header value of the header: "*" or a list of entity tags
+     * @param etag entity tag of the object
+     * @param weak true to use the weak comparison (If-None-Match)
+     * @return true if one of the tags matches
+     */
+    private static boolean matchETag(String header, String etag, boolean weak) {
+        if (header.trim().equals("*"))
+            return true;
+        if (etag.startsWith("W/")) {
+            if (!weak)
+                return false;   // a weak tag never matches with the strong comparison
+            etag = etag.substring(2);
+        }
+        String[] tags = header.split(",");
+        for (String tag:tags) {
+            tag = tag.trim();
+            if (weak && tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the entity headers of a regular object from its system metadata:
+     * Content-Type, Content-Length, Last-Modified and ETag.
+     *
+     * @param resp The servlet response we are creating
+     * @param metadata system metadata of the object
+     */
+    private void setContentHeaders(HttpServletResponse resp, MetadataList metadata) throws ParseException {
+        //response.setContentType("application/octet-stream");
+        resp.setContentType("text/plain");
 
-        
+        // setContentLength() is limited to 2GB
+        resp.setHeader("Content-Length", metadata.getMetadata("size").getValue());
+
+        resp.setHeader("Last-Modified", AtmosDates.toHttp(metadata.getMetadata("mtime").getValue()));
+        resp.setHeader("ETag", getETag(metadata));
+        resp.setHeader("Accept-Ranges", "bytes");
     }
 
+    /**
+     * Computes the entity tag of an object from its system metadata.
+     *
+     * Atmos has no content hash in the system metadata, so the tag is built
+     * from the object id, the size and the modification time. The time has
+     * a one second resolution: two writes of the same size within a second
+     * give the same tag, which is therefore only a weak validator. It never
+     * satisfies If-Match nor If-Range, which use the strong comparison.
+     *
+     * @param metadata system metadata of the object
+     * @return the weak entity tag
+     */
+    private static String getETag(MetadataList metadata) {
+        StringBuffer etag = new StringBuffer("W/\"");
+        if (metadata.getMetadata("objectid") != null)
+            etag.append(metadata.getMetadata("objectid").getValue()).append('-');
+        etag.append(metadata.getMetadata("size").getValue());
+        etag.append('-');
+        etag.append(metadata.getMetadata("mtime").getValue());
+        etag.append('"');
+        return etag.toString();
+    }
 
     /**
      * Process a POST request for the specified resource.
@@ -449,9 +1236,17 @@ public class AtmosDavServlet extends HttpServlet {
     /**
      * Process a PUT request for the specified resource.
      *
-     * Note: PUT method currently does not support Content-Range parameter.
-     * It will throw a 501 error if Content-Range is present in the header,
-     * as expected by RFC.
+     * New objects larger than the upload chunk size (or of unknown length)
+     * are uploaded as chunks written in parallel, see ChunkedUploader. An
+     * existing object is replaced serially, from its start: a failure leaves
+     * it truncated but never with holes, as no Atmos call can swap a fully
+     * uploaded temporary object into its place.
+     *
+     * If a Content-Range header is present, only the given byte range of
+     * the object is written, with an Atmos extent update. The object is
+     * created empty first if it does not exist yet, so that an interrupted
+     * upload can be resumed where it stopped. A range starting past the
+     * current end of the object is refused with 416.
      *
      * @param request The servlet request we are processing
      * @param response The servlet response we are creating
@@ -462,38 +1257,119 @@ public class AtmosDavServlet extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
         AtmosApi api = getAPIFromAuthent(req, resp);
-        ObjectPath obj_path = getAtmosPath(getPathFromReq(req), api);
+        ObjectPath obj_path = getAtmosPath(req, getPathFromReq(req), api);
 
         UploadHelper up_helper = new UploadHelper(api.api);
         up_helper.setMinReadSize(UploadHelper.DEFAULT_BUFFSIZE);
 
+        // If-Match / If-None-Match protect against lost updates: they are
+        // checked against the current metadata, not a cached one
+        String ifMatch = req.getHeader("If-Match");
+        String ifNoneMatch = req.getHeader("If-None-Match");
+
         // first test if object exists
-        AtmosType obj_type = getObjectType(getObjectMetadata(api.api, obj_path));
-        boolean partial = false;
+        MetadataList metadata = getObjectMetadata(api, obj_path, (ifMatch != null) || (ifNoneMatch != null));
+        AtmosType obj_type = getObjectType(metadata);
 
-        // RFC says we MUST reject request containing Content-Range if we don't support it
-        if (req.getHeader("Content-Range") != null) {
-            resp.sendError(resp.SC_NOT_IMPLEMENTED);
+        if ((ifMatch != null) && ((obj_type != AtmosType.REGULAR) || !matchETag(ifMatch, getETag(metadata), false))) {
+            resp.sendError(resp.SC_PRECONDITION_FAILED);
+            return;
+        }
+        if ((ifNoneMatch != null) && (obj_type == AtmosType.REGULAR) && matchETag(ifNoneMatch, getETag(metadata), true)) {
+            resp.sendError(resp.SC_PRECONDITION_FAILED);
             return;
         }
 
-        if (!partial) {
-            if (obj_type == AtmosType.NON_EXISTENT) {
-                up_helper.createObjectOnPath(obj_path, req.getInputStream(), null, null, false);
-                resp.setStatus(HttpServletResponse.SC_CREATED);
-            } else if (obj_type == AtmosType.REGULAR) {
-                up_helper.updateObject(obj_path, req.getInputStream(), null, null, false);
-                resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        Range range = parseContentRange(req, resp);
+        if ((range == null) && (req.getHeader("Content-Range") != null))
+            return;     // error already sent
+        boolean partial = (range != null);
+
+        if (obj_type == AtmosType.DIRECTORY) {
+            resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);    // Cannot PUT on a directory
+            return;
+        }
+
+        boolean done = false;
+        try {
+            if (!partial) {
+                boolean large = (req.getContentLength() < 0) || (req.getContentLength() > _uploader.getChunkSize());
+                if (large && (obj_type == AtmosType.NON_EXISTENT)) {
+                    learnObjectId(api, obj_path, _uploader.upload(api.api, obj_path, req.getInputStream()));
+                    resp.setStatus(HttpServletResponse.SC_CREATED);
+                } else if (obj_type == AtmosType.NON_EXISTENT) {
+                    learnObjectId(api, obj_path, up_helper.createObjectOnPath(obj_path, req.getInputStream(), null, null, false));
+                    resp.setStatus(HttpServletResponse.SC_CREATED);
+                } else {
+                    up_helper.updateObject(getIdentifier(api, obj_path), req.getInputStream(), null, null, false);
+                    resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                }
             } else {
-                resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);    // Cannot PUT on a directory
+                if ((req.getContentLength() >= 0) && (req.getContentLength() != range.end - range.start + 1)) {
+                    resp.sendError(resp.SC_BAD_REQUEST, "Content-Length does not match Content-Range");
+                    return;
+                }
+                // a write starting past the end would leave a hole in the object
+                long size = (obj_type == AtmosType.NON_EXISTENT) ? 0
+                          : Long.parseLong(metadata.getMetadata("size").getValue());
+                if (range.start > size) {
+                    resp.setHeader("Content-Range", "bytes */" + size);
+                    resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                if (obj_type == AtmosType.NON_EXISTENT)
+                    learnObjectId(api, obj_path, api.api.createObjectOnPath(obj_path, null, null, null, null));
+                if (!writeRange(api.api, getIdentifier(api, obj_path), range, req.getInputStream())) {
+                    resp.sendError(resp.SC_BAD_REQUEST, "Request body shorter than Content-Range");
+                    return;
+                }
+                resp.setStatus((obj_type == AtmosType.NON_EXISTENT) ? HttpServletResponse.SC_CREATED
+                                                                      : HttpServletResponse.SC_NO_CONTENT);
             }
-        } else {
-            resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
-//                    if (!exists)
-//                        api.createObjectOnPath(obj_path, null, null, null, null);
-//                    Extent extent = new Extent(range.start, range.length);
-//                    api.updateObject(obj_path, null, null, extent, content, null);
+            done = true;
+        } finally {
+            invalidateMetadata(api, obj_path);
+            if (obj_type == AtmosType.NON_EXISTENT) {
+                if (done)
+                    _listing_cache.added(api.uid, obj_path);
+                else
+                    _listing_cache.invalidate(api.uid, obj_path);
+            }
+        }
+    }
+
+    /**
+     * Writes the request body into a range of an existing object, by
+     * extent updates of at most RANGE_BLOCK_SIZE bytes.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_id the Atmos path or ObjectId of the object
+     * @param range the range to write, already validated
+     * @param in the request body
+     * @return false if the body ended before the end of the range
+     */
+    private boolean writeRange(EsuApi api, Identifier obj_id, Range range, InputStream in) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(RANGE_BLOCK_SIZE, range.end - range.start + 1)];
+        long offset = range.start;
+
+        while (offset <= range.end) {
+            int block = (int) Math.min(buffer.length, range.end - offset + 1);
+            int filled = 0;
+            while (filled < block) {
+                int read = in.read(buffer, filled, block - filled);
+                if (read < 0)
+                    return false;
+                filled += read;
+            }
+            byte[] data = buffer;
+            if (block < buffer.length) {
+                data = new byte[block];
+                System.arraycopy(buffer, 0, data, 0, block);
+            }
+            api.updateObject(obj_id, null, null, new Extent(offset, block), data, null);
+            offset += block;
         }
+        return true;
     }
 
     /**
@@ -504,30 +1380,176 @@ public class AtmosDavServlet extends HttpServlet {
 
     private static String STATUS_OK = new String("HTTP/1.1 200 OK");
     private static String STATUS_NOT_FOUND = new String("HTTP/1.1 404 Not Found");
+    private static String STATUS_INSUFFICIENT_STORAGE = "HTTP/1.1 507 Insufficient Storage";
+
+    /**
+     * Writes one live property of a resource.
+     */
+    private static abstract class PropertyHandler {
+        final QName qname;
+        /** local name, the namespace being DAV: for the live properties */
+        final String name;
+        /** system metadata tags the property is rendered from */
+        final String[] tags;
+
+        PropertyHandler(String name, String... tags) {
+            this(new QName(DAV_NAMESPACE, name), tags);
+        }
+
+        PropertyHandler(QName qname, String... tags) {
+            this.qname = qname;
+            this.name = qname.getLocalPart();
+            this.tags = tags;
+        }
+
+        /**
+         * @return false if the resource does not have this property
+         */
+        abstract boolean write(MultistatusWriter writer, MetadataList metadata,
+                AtmosType obj_type, String display_name) throws ParseException, IOException;
+    }
+
+    /**
+     * Handler of a property only defined on regular files.
+     */
+    private static abstract class FilePropertyHandler extends PropertyHandler {
+        FilePropertyHandler(String name, String... tags) {
+            super(name, tags);
+        }
+
+        boolean write(MultistatusWriter writer, MetadataList metadata,
+                AtmosType obj_type, String display_name) throws ParseException, IOException {
+            if (obj_type != AtmosType.REGULAR)
+                return false;
+            writer.element(name, value(metadata));
+            return true;
+        }
+
+        abstract String value(MetadataList metadata) throws ParseException;
+    }
+
+    /**
+     * The properties returned by an allprop PROPFIND, in order.
+     */
+    private static final PropertyHandler[] ALL_PROPERTIES = {
+        new PropertyHandler("creationdate", "ctime") {
+            boolean write(MultistatusWriter writer, MetadataList metadata,
+                    AtmosType obj_type, String display_name) throws IOException {
+                writer.element(name, metadata.getMetadata("ctime").getValue());
+                return true;
+            }
+        },
+        new PropertyHandler("displayname", "objname") {
+            boolean write(MultistatusWriter writer, MetadataList metadata,
+                    AtmosType obj_type, String display_name) throws IOException {
+                writer.element(name, display_name);
+                return true;
+            }
+        },
+        new FilePropertyHandler("getlastmodified", "mtime") {
+            String value(MetadataList metadata) throws ParseException {
+                return AtmosDates.toHttp(metadata.getMetadata("mtime").getValue());
+            }
+        },
+        new FilePropertyHandler("getcontentlength", "size") {
+            String value(MetadataList metadata) {
+                return metadata.getMetadata("size").getValue();
+            }
+        },
+        new FilePropertyHandler("getcontenttype") {
+            String value(MetadataList metadata) {
+                return "application/octet-stream";
+            }
+        },
+        new FilePropertyHandler("getetag", "objectid", "size", "mtime") {
+            String value(MetadataList metadata) {
+                return getETag(metadata);
+            }
+        },
+        new PropertyHandler("resourcetype", "type") {
+            boolean write(MultistatusWriter writer, MetadataList metadata,
+                    AtmosType obj_type, String display_name) throws IOException {
+                if (obj_type == AtmosType.DIRECTORY) {
+                    writer.startElement(name);
+                    writer.emptyElement("collection");
+                    writer.endElement(name);
+                } else {
+                    writer.emptyElement(name);
+                }
+                return true;
+            }
+        }
+    };
+
+    /**
+     * Live property handlers by property namespace and name.
+     */
+    private static final Map<QName, PropertyHandler> PROPERTY_HANDLERS = new HashMap<QName, PropertyHandler>();
+    static {
+        for(PropertyHandler handler:ALL_PROPERTIES)
+            PROPERTY_HANDLERS.put(handler.qname, handler);
+    }
+
+    /**
+     * The system metadata tags requested from Atmos: those of the live
+     * properties, plus those used for the object type, the display name and
+     * the GET/HEAD validators. User metadata and ACLs are never needed.
+     */
+    private static final List<String> SYSTEM_TAGS = new ArrayList<String>();
+    static {
+        SYSTEM_TAGS.addAll(Arrays.asList("type", "objname", "objectid", "size", "mtime"));
+        for(PropertyHandler handler:ALL_PROPERTIES) {
+            for(String tag:handler.tags) {
+                if (!SYSTEM_TAGS.contains(tag))
+                    SYSTEM_TAGS.add(tag);
+            }
+        }
+    }
+    private static final MetadataTags SYSTEM_METADATA_TAGS = DirectoryLister.toMetadataTags(SYSTEM_TAGS);
+
+    /**
+     * Maps the requested properties to their handlers, once per request.
+     * Unknown properties, including those of another namespace than DAV:,
+     * get a handler reporting them as not found.
+     */
+    private static List<PropertyHandler> resolveProperties(List<QName> names) {
+        List<PropertyHandler> handlers = new ArrayList<PropertyHandler>(names.size());
+        for(QName name:names) {
+            PropertyHandler handler = PROPERTY_HANDLERS.get(name);
+            if (handler == null) {
+                handler = new PropertyHandler(name) {
+                    boolean write(MultistatusWriter writer, MetadataList metadata,
+                            AtmosType obj_type, String display_name) {
+                        return false;
+                    }
+                };
+            }
+            handlers.add(handler);
+        }
+        return handlers;
+    }
 
     /**
      * Propfind helper method.
      *
      * @param req The servlet request
-     * @param resources Resources object associated with this context
-     * @param generatedXML XML response to the Propfind request
+     * @param metadata system metadata of the current resource
+     * @param writer multistatus response to the Propfind request
      * @param path Path of the current resource
      * @param type Propfind type
-     * @param propertiesVector If the propfind type is find properties by
-     * name, then this Vector contains those properties
+     * @param properties If the propfind type is find properties by
+     * name, then this List contains the handlers of those properties
      */
     private void parseProperties(HttpServletRequest req,
                                  MetadataList metadata,
-                                 Element root,
+                                 MultistatusWriter writer,
                                  String href, int type,
                                  AtmosApi api,
-                                 List<String> properties) throws ParseException {
-
+                                 List<PropertyHandler> properties) throws ParseException, IOException {
 
-        Element resp_elt = appendNewElement(root, "response", null);
         AtmosType obj_type = getObjectType(metadata);
 
-        String display_name = URLDecoder.decode(URLDecoder.decode(metadata.getMetadata("objname").getValue()));
+        String display_name = AtmosPathCodec.decode(AtmosPathCodec.decode(metadata.getMetadata("objname").getValue()));
         //String display_name = URLDecoder.decode(metadata.getMetadata("objname").getValue());
         href = atmosToURL(href, api);
 
@@ -537,101 +1559,64 @@ public class AtmosDavServlet extends HttpServlet {
         /*} else if ("directory".equals(obj_type)) {
             href += "/";
         }*/
-        href = URLDecoder.decode(href);
+        href = AtmosPathCodec.decode(href);
 
 
         // Generating href element
-        appendNewElement(resp_elt, "href", href);
+        writer.startResponse(href);
+        writer.startPropstat();
 
-        Element propstat_elt = appendNewElement(resp_elt, "propstat", null);
-        Element prop_elt = appendNewElement(propstat_elt, "prop", null);
-        
         switch (type) {
 
         case FIND_PROPERTY_NAMES :
 
-            appendNewElement(prop_elt, "creationdate", null);
-            appendNewElement(prop_elt, "displayname", null);
+            writer.element("creationdate", null);
+            writer.element("displayname", null);
             if (obj_type == AtmosType.REGULAR) {
-                appendNewElement(prop_elt, "getcontentlength", null);
-                appendNewElement(prop_elt, "getcontenttype", null);
-                appendNewElement(prop_elt, "getlastmodified", null);
+                writer.element("getcontentlength", null);
+                writer.element("getcontenttype", null);
+                writer.element("getetag", null);
+                writer.element("getlastmodified", null);
             }
-            appendNewElement(prop_elt, "resourcetype", null);
-            appendNewElement(propstat_elt, "status", STATUS_OK);
+            writer.element("resourcetype", null);
+            writer.endPropstat(STATUS_OK);
             break;
 
         case FIND_ALL_PROP :
 
-            appendNewElement(prop_elt, "creationdate", metadata.getMetadata("ctime").getValue());
-            appendNewElement(prop_elt, "displayname", display_name);
-            if (obj_type == AtmosType.REGULAR) {
-                appendNewElement(prop_elt, "getlastmodified",
-                        LAST_MODIFIED_FORMAT.format(ATMOS_DATE_FORMAT.parse(metadata.getMetadata("mtime").getValue()).getTime()));
-                appendNewElement(prop_elt, "getcontentlength", metadata.getMetadata("size").getValue());
-                appendNewElement(prop_elt, "getcontenttype", "application/octet-stream");
-                appendNewElement(prop_elt, "resourcetype", null);
-            } else if (obj_type == AtmosType.DIRECTORY) {
-                Element type_elt = appendNewElement(prop_elt, "resourcetype", null);
-                appendNewElement(type_elt, "collection", null);
-            }
-            appendNewElement(propstat_elt, "status", STATUS_OK);
+            for(PropertyHandler handler:ALL_PROPERTIES)
+                handler.write(writer, metadata, obj_type, display_name);
+            writer.endPropstat(STATUS_OK);
             break;
 
         case FIND_BY_PROPERTY :
 
-            List<String> propertiesNotFound = new Vector<String>();
+            List<QName> propertiesNotFound = null;
 
-            // Parse the list of properties
-
-            for(String property:properties) {
-                if (property.equals("creationdate")) {
-                    appendNewElement(prop_elt, "creationdate", metadata.getMetadata("ctime").getValue());
-                } else if (property.equals("displayname")) {
-                    appendNewElement(prop_elt, "displayname", display_name);
-                } else if (property.equals("getcontentlength")) {
-                    if (obj_type == AtmosType.REGULAR) {
-                        appendNewElement(prop_elt, "getcontentlength", metadata.getMetadata("size").getValue());
-                    } else {
-                        propertiesNotFound.add(property);
-                    }
-                } else if (property.equals("getcontenttype")) {
-                    if (obj_type == AtmosType.REGULAR) {
-                        appendNewElement(prop_elt, "getcontenttype", "application/octet-stream");
-                    } else {
-                        propertiesNotFound.add(property);
-                    }
-                } else if (property.equals("getlastmodified")) {
-                    if (obj_type == AtmosType.REGULAR) {
-                        appendNewElement(prop_elt, "getlastmodified",
-                                LAST_MODIFIED_FORMAT.format(ATMOS_DATE_FORMAT.parse(metadata.getMetadata("mtime").getValue()).getTime()));
-                    } else {
-                        propertiesNotFound.add(property);
-                    }
-                } else if (property.equals("resourcetype")) {
-                    if (obj_type == AtmosType.REGULAR) {
-                        appendNewElement(prop_elt, "resourcetype", null);
-                    } else {
-                        Element type_elt = appendNewElement(prop_elt, "resourcetype", null);
-                        appendNewElement(type_elt, "collection", null);
-                    }
-                } else {
-                    propertiesNotFound.add(property);
+            for(PropertyHandler handler:properties) {
+                if (!handler.write(writer, metadata, obj_type, display_name)) {
+                    if (propertiesNotFound == null)
+                        propertiesNotFound = new ArrayList<QName>();
+                    propertiesNotFound.add(handler.qname);
                 }
             }
 
-            appendNewElement(propstat_elt, "status", STATUS_OK);
+            writer.endPropstat(STATUS_OK);
 
-            if (propertiesNotFound.size() > 0) {
-                propstat_elt = appendNewElement(resp_elt, "propstat", null);
-                prop_elt = appendNewElement(propstat_elt, "prop", null);
-                for(String not_found:propertiesNotFound)
-                    appendNewElement(prop_elt, not_found, null);
-                appendNewElement(propstat_elt, "status", STATUS_NOT_FOUND);
+            if (propertiesNotFound != null) {
+                writer.startPropstat();
+                for(QName not_found:propertiesNotFound) {
+                    if (DAV_NAMESPACE.equals(not_found.getNamespaceURI()))
+                        writer.emptyElement(not_found.getLocalPart());
+                    else
+                        writer.emptyElement(not_found.getNamespaceURI(), not_found.getLocalPart());
+                }
+                writer.endPropstat(STATUS_NOT_FOUND);
             }
             break;
 
         }
+        writer.endResponse();
     }
 
     /**
@@ -678,11 +1663,19 @@ public class AtmosDavServlet extends HttpServlet {
         AtmosApi api = getAPIFromAuthent(req, resp);
 
         try {
-            ObjectPath obj_path = getAtmosPath(href, api);
+            ObjectPath obj_path = getAtmosPath(req, href, api);
 
             // first test if object exists
-            api.api.deleteObject(obj_path);
+            try {
+                api.api.deleteObject(getIdentifier(api, obj_path));
+                _listing_cache.removed(api.uid, obj_path);
+            } finally {
+                invalidateMetadata(api, obj_path);
+                _id_cache.remove(api.cacheKey(obj_path));
+            }
         } catch (EsuException e) {
+            if (e.getHttpCode() == 401)
+                throw e;
             resp.sendError(e.getAtmosCode());
         }
     }
@@ -703,21 +1696,27 @@ public class AtmosDavServlet extends HttpServlet {
         if (!path.endsWith("/"))
             path += "/";
 
-        MetadataList metadata = getObjectMetadata(api.api, getAtmosPath(path, api));
+        ObjectPath obj_path = getAtmosPath(req, path, api);
+        MetadataList metadata = getObjectMetadata(api, obj_path);
 
         if (metadata != null) {
             // it already exists
             //resp.addHeader("Allow", methodsAllowed.toString()); ****
             resp.sendError(SC_METHOD_NOT_ALLOWED);
+            return;
         }
         Object object = null;
 
 
         try {
             // does not exist so we create it
-            api.api.createObjectOnPath(getAtmosPath(path, api), null, null, null, null);
+            api.api.createObjectOnPath(obj_path, null, null, null, null);
+            invalidateMetadata(api, obj_path);
+            _listing_cache.added(api.uid, obj_path);
             resp.setStatus(resp.SC_CREATED);
         } catch (EsuException e) {
+            if (e.getHttpCode() == 401)
+                throw e;
             resp.sendError(e.getHttpCode(), e.getMessage());
         }
     }
@@ -735,7 +1734,7 @@ public class AtmosDavServlet extends HttpServlet {
     protected void doOptions(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         AtmosApi api = getAPIFromAuthent(req, resp);
         resp.addHeader("DAV", "1");
-        resp.addHeader("Allow", determineMethodsAllowed(api, getPathFromReq(req)));
+        resp.addHeader("Allow", determineMethodsAllowed(req, api));
         resp.addHeader("MS-Author-Via", "DAV");
     }
 
@@ -744,11 +1743,24 @@ public class AtmosDavServlet extends HttpServlet {
     private static final String WWW_AUTHENTICATE = "WWW-Authenticate";
     private static final String WWW_AUTHENTICATE_VALUE = "BASIC realm=\"Atmos credentials\"";
 
+    /**
+     * Returns the Atmos client for the credentials of the request.
+     *
+     * Clients are cached per Authorization header, so that the header is
+     * only decoded and the client only built on the first request of a
+     * session. Only clients whose credentials Atmos accepted are cached,
+     * and a client is evicted when Atmos refuses its credentials.
+     */
     private AtmosApi getAPIFromAuthent(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         // Get the Authorization header, if one was supplied
         String authorization = req.getHeader(BASICAUTH_HEADER);
 
         if ((authorization != null) && (authorization.startsWith(BASICAUTH_METHOD))) {
+            String key = credentialsKey(authorization);
+            AtmosApi cached = _client_cache.get(key);
+            if (cached != null)
+                return cached;
+
             String login_passwd = stringDecodeBase64(authorization.substring(BASICAUTH_METHOD.length()));
             int pos = login_passwd.indexOf(":");
             if (pos > 0) {
@@ -756,10 +1768,12 @@ public class AtmosDavServlet extends HttpServlet {
                 String passwd = login_passwd.substring(pos+1);
 
                 if ((login.length() > 0) && (passwd.length() > 0)) {
-                    EsuRestApi api = new EsuRestApi(_atmos_host, _atmos_port, login, passwd);
+                    EsuApi api = _metrics.instrument(_transport.createApi(login, passwd));
                     AtmosApi api_container = new AtmosApi();
                     api_container.api = api;
                     api_container.uid = login;
+                    validateCredentials(api_container);
+                    _client_cache.put(key, api_container);
                     return api_container;
                 }
             }
@@ -767,6 +1781,39 @@ public class AtmosDavServlet extends HttpServlet {
         throw new EsuException("Credentials missing", 401, 1033);
     }
 
+    /**
+     * Checks the credentials of a new client with an Atmos call, before it
+     * is cached. The caches answer requests without calling Atmos, so they
+     * are only reachable through a client whose credentials Atmos accepted.
+     *
+     * Atmos refuses unknown credentials with 1033 or 401, which is thrown;
+     * a missing root directory means the credentials are valid.
+     */
+    private void validateCredentials(AtmosApi api) {
+        ObjectPath root = new ObjectPath(api.getPathPrefix() + "/");
+        long generation = _metadata_cache.getGeneration(api.cacheKey(root));
+        try {
+            _metadata_cache.put(api.cacheKey(root), api.api.getSystemMetadata(root, SYSTEM_METADATA_TAGS), generation);
+        } catch (EsuException e) {
+            if ((e.getHttpCode() != 404) && (e.getAtmosCode() != 1003))
+                throw e;
+        }
+    }
+
+    /**
+     * Hashes an Authorization header into a cache key.
+     */
+    private static final String credentialsKey(String authorization) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(Base64.encodeBase64(digest.digest(authorization.getBytes("UTF-8"))), "US-ASCII");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8", e);
+        }
+    }
+
     private static final String stringDecodeBase64(String base64) {
         byte[] raw_base64;
 
@@ -784,8 +1831,8 @@ public class AtmosDavServlet extends HttpServlet {
     /**
      * Determines the methods normally allowed for the resource.
      */
-    private String determineMethodsAllowed(AtmosApi api, String path) {
-        AtmosType obj_type = getObjectType(getObjectMetadata(api.api, getAtmosPath(path, api)));
+    private String determineMethodsAllowed(HttpServletRequest req, AtmosApi api) {
+        AtmosType obj_type = getObjectType(getObjectMetadata(api, getAtmosPath(req, getPathFromReq(req), api)));
 
         if (obj_type == AtmosType.NON_EXISTENT) {
             return "OPTIONS, MKCOL, PUT";
@@ -796,6 +1843,131 @@ public class AtmosDavServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Parse the "Range" header.
+     *
+     * A missing or syntactically invalid header, or an If-Range condition
+     * which does not match, means the full content must be sent: an empty
+     * list is returned. If none of the ranges can be satisfied, a 416 error
+     * is sent and null is returned.
+     *
+     * Overlapping and adjacent ranges are coalesced, so that no byte is read
+     * twice, and more than MAX_RANGES ranges are answered with the full
+     * content.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param metadata system metadata of the object
+     * @param size size of the object
+     * @return the list of ranges to send, empty for the full content, or null
+     */
+    protected List<Range> parseRange(HttpServletRequest request, HttpServletResponse response,
+                                     MetadataList metadata, long size) throws IOException, ParseException {
+        List<Range> result = new ArrayList<Range>();
+
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader == null)
+            return result;
+
+        // If-Range: only send the ranges if the object did not change
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!matchETag(ifRange, getETag(metadata), false))
+                    return result;
+            } else {
+                long last_modified = AtmosDates.parse(metadata.getMetadata("mtime").getValue());
+                long if_range_date = request.getDateHeader("If-Range");
+                if ((if_range_date == -1) || (last_modified / 1000 > if_range_date / 1000))
+                    return result;
+            }
+        }
+
+        // bytes is the only range unit supported
+        if (!rangeHeader.startsWith("bytes="))
+            return result;
+
+        boolean unsatisfiable = false;
+        String[] specs = rangeHeader.substring(6).split(",");
+        for (String spec:specs) {
+            spec = spec.trim();
+            int dashPos = spec.indexOf('-');
+            if (dashPos == -1)
+                return new ArrayList<Range>();
+
+            Range range = new Range();
+            range.length = size;
+            try {
+                if (dashPos == 0) {
+                    // suffix range: last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0)
+                        return new ArrayList<Range>();
+                    range.start = Math.max(0, size - suffix);
+                    range.end = size - 1;
+                    if (suffix == 0) {
+                        unsatisfiable = true;
+                        continue;
+                    }
+                } else {
+                    range.start = Long.parseLong(spec.substring(0, dashPos));
+                    if (dashPos < spec.length() - 1)
+                        range.end = Long.parseLong(spec.substring(dashPos + 1));
+                    else
+                        range.end = size - 1;
+                    if ((range.start < 0) || (range.end < range.start))
+                        return new ArrayList<Range>();
+                }
+            } catch (NumberFormatException e) {
+                return new ArrayList<Range>();
+            }
+
+            if (!range.validate()) {
+                unsatisfiable = true;
+                continue;
+            }
+            result.add(range);
+        }
+
+        if (result.isEmpty() && unsatisfiable) {
+            response.setHeader("Content-Range", "bytes */" + size);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return null;
+        }
+        if (result.size() > 1)
+            result = coalesceRanges(result);
+        if (result.size() > MAX_RANGES)
+            return new ArrayList<Range>();
+        return result;
+    }
+
+    /**
+     * Sorts ranges by start and merges those overlapping or adjacent.
+     *
+     * @param ranges valid ranges of the same object
+     * @return the merged ranges, in increasing order
+     */
+    static List<Range> coalesceRanges(List<Range> ranges) {
+        List<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            public int compare(Range r1, Range r2) {
+                return (r1.start < r2.start) ? -1 : ((r1.start == r2.start) ? 0 : 1);
+            }
+        });
+        List<Range> result = new ArrayList<Range>(sorted.size());
+        Range last = null;
+        for (Range range:sorted) {
+            if ((last != null) && (range.start <= last.end + 1)) {
+                last.end = Math.max(last.end, range.end);
+            } else {
+                last = range;
+                result.add(range);
+            }
+        }
+        return result;
+    }
+
     /**
      * Parse the "Content-Range" header.
      *
@@ -838,8 +2010,9 @@ public class AtmosDavServlet extends HttpServlet {
             range.start = Long.parseLong(rangeHeader.substring(0, dashPos));
             range.end =
                 Long.parseLong(rangeHeader.substring(dashPos + 1, slashPos));
-            range.length = Long.parseLong
-                (rangeHeader.substring(slashPos + 1, rangeHeader.length()));
+            String lengthStr = rangeHeader.substring(slashPos + 1, rangeHeader.length());
+            // complete length may be unknown while uploading
+            range.length = "*".equals(lengthStr) ? Long.MAX_VALUE : Long.parseLong(lengthStr);
         } catch (NumberFormatException e) {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST);
             return null;
@@ -857,23 +2030,122 @@ public class AtmosDavServlet extends HttpServlet {
      * Retrives Object System metadata from an Atmos path.
      *
      * Returns null if the object does not exists. May return EsuException if
-     * a problem occured.
+     * a problem occured. Answers from the metadata cache when possible.
      *
      * @param api the Atmos REST API object
      * @param obj_path the Atmos path of the object
      * @return the MetadataList of the object or null if the object does not exist.
      */
-    private MetadataList getObjectMetadata(EsuRestApi api, ObjectPath obj_path) {
+    private MetadataList getObjectMetadata(AtmosApi api, ObjectPath obj_path) {
+        return getObjectMetadata(api, obj_path, false);
+    }
 
-        try {
-            return api.getAllMetadata(obj_path).getMetadata();
-        } catch (EsuException e) {
-            if (e.getHttpCode() == 404) {
-                return null;
+    /**
+     * Retrives Object System metadata from an Atmos path.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_path the Atmos path of the object
+     * @param fresh true to read the metadata from Atmos, neither from the
+     *      cache nor from a call already in progress, as needed to check the
+     *      preconditions of a write
+     * @return the MetadataList of the object or null if the object does not exist.
+     */
+    private MetadataList getObjectMetadata(final AtmosApi api, final ObjectPath obj_path, boolean fresh) {
+        String key = api.cacheKey(obj_path);
+        final long generation = _metadata_cache.getGeneration(key);
+        MetadataList metadata = fresh ? null : _metadata_cache.get(key);
+        if (metadata == null) {
+            try {
+                if (fresh) {
+                    metadata = fetchObjectMetadata(api, obj_path, generation);
+                } else {
+                    // concurrent requests for the same object share the Atmos
+                    // call, unless a write came in between
+                    metadata = _metadata_flights.execute(key + "\n" + generation, new Callable<MetadataList>() {
+                        public MetadataList call() {
+                            return fetchObjectMetadata(api, obj_path, generation);
+                        }
+                    });
+                }
+            } catch (EsuException e) {
+                if (e.getHttpCode() == 404) {
+                    return null;
+                }
+                else
+                    throw e;
+            }
+            // the object was modified during the call: do not remember its id
+            if (_metadata_cache.getGeneration(key) != generation)
+                return metadata;
+        }
+        learnObjectId(api, obj_path, metadata);
+        return metadata;
+    }
+
+    /**
+     * Reads the system metadata from Atmos, by ObjectId if known, and
+     * stores it in the metadata cache unless the object was modified during
+     * the call.
+     *
+     * @param generation the generation of the metadata cache key before the
+     *      call
+     */
+    private MetadataList fetchObjectMetadata(AtmosApi api, ObjectPath obj_path, long generation) {
+        String key = api.cacheKey(obj_path);
+        MetadataList metadata = null;
+        ObjectId obj_id = _id_cache.get(key);
+        if (obj_id != null) {
+            try {
+                metadata = api.api.getSystemMetadata(obj_id, SYSTEM_METADATA_TAGS);
+            } catch (EsuException e) {
+                if ((e.getHttpCode() != 404) && (e.getAtmosCode() != 1003))
+                    throw e;
+                // removed behind our back: resolve the path again
+                _id_cache.remove(key);
             }
-            else
-                throw e;
         }
+        if (metadata == null)
+            metadata = api.api.getSystemMetadata(obj_path, SYSTEM_METADATA_TAGS);
+        _metadata_cache.put(key, metadata, generation);
+        return metadata;
+    }
+
+    /**
+     * @return the ObjectId of an object if known, otherwise its path
+     */
+    private Identifier getIdentifier(AtmosApi api, ObjectPath obj_path) {
+        ObjectId obj_id = _id_cache.get(api.cacheKey(obj_path));
+        return (obj_id != null) ? (Identifier) obj_id : obj_path;
+    }
+
+    private void learnObjectId(AtmosApi api, ObjectPath obj_path, MetadataList metadata) {
+        Metadata obj_id = metadata.getMetadata("objectid");
+        if (obj_id != null)
+            learnObjectId(api, obj_path, new ObjectId(obj_id.getValue()));
+    }
+
+    private void learnObjectId(AtmosApi api, ObjectPath obj_path, ObjectId obj_id) {
+        if (obj_id != null)
+            _id_cache.put(api.cacheKey(obj_path), obj_id);
+    }
+
+    /**
+     * Drops the cached metadata of an object which has just been modified,
+     * and of its parent directory whose mtime changed with it, from the
+     * metadata cache and from the cached listings.
+     *
+     * @param api the Atmos REST API object the object was modified with
+     * @param obj_path the Atmos path of the object
+     */
+    private void invalidateMetadata(AtmosApi api, ObjectPath obj_path) {
+        String path = obj_path.toString();
+        String parent = ListingCache.parentOf(path);
+        _metadata_cache.remove(api.cacheKey(obj_path));
+        if (_content_cache != null)
+            _content_cache.remove(api.cacheKey(obj_path));
+        _metadata_cache.remove(ListingCache.cacheKey(api.uid, parent));
+        _listing_cache.changed(api.uid, path);
+        _listing_cache.changed(api.uid, parent);
     }
 
     private AtmosType getObjectType(MetadataList metadata) {
@@ -898,71 +2170,31 @@ public class AtmosDavServlet extends HttpServlet {
         return req.getRequestURI();
     }
 
-    /**
-     * Appends a new element with a TAG-NAME and a CONTENT to a parent,
-     * using the DAV namespace. It wraps the XOM API.
-     *
-     * Syntactic sugar to make source look great.
-     *
-     * @param parent
-     * @param name
-     * @param content
-     * @return
-     */
-    private static final Element appendNewElement(Element parent, String name, String content) {
-        Element elt;
-        elt = new Element(name, DAV_NAMESPACE);
-        if (content != null)
-            elt.appendChild(content);
-        parent.appendChild(elt);
-        return elt;
-    }
-
     /**
      * Converts from a raw URI from the browser to the URI used to store the
      * Atmos Object.
      *
      * It basically escapes all non-URL-friendly characters and adds
-     * the "/webdav" prefix.
+     * the "/webdav" prefix. The conversions are memoized for the duration of
+     * the request.
      *
+     * @param req the request being processed
      * @param raw_path the dav URI sent by the dav browser
      * @return the URI to be used by Atmos
      */
-    private ObjectPath getAtmosPath(String raw_path, AtmosApi api) {
-        String atmos_path = raw_path;
-//        try {
-//            atmos_path = atmos_path.replace("%20", "+");
-        // first escape all unsafe characters, except A-Za-z0-9_-.
-        // also leave % untouched because it is already escaped
-        atmos_path = AtmosURLEncoder.encode(raw_path);
-//            atmos_path = atmos_path.replace("%2F", "/");
-            
-//            atmos_path = atmos_path.replace("+", "%20");
-//            atmos_path = atmos_path.replace("!", "%21");
-//            atmos_path = atmos_path.replace("#", "%23");
-//            atmos_path = atmos_path.replace("$", "%24");
-//            atmos_path = atmos_path.replace("&", "%26");
-//            atmos_path = atmos_path.replace("'", "%27");
-//            atmos_path = atmos_path.replace("(", "%28");
-//            atmos_path = atmos_path.replace(")", "%29");
-//            atmos_path = atmos_path.replace("*", "%2a");
-//            atmos_path = atmos_path.replace(",", "%2c");
-//            atmos_path = atmos_path.replace(":", "%3a");
-//            atmos_path = atmos_path.replace(";", "%3b");
-//            atmos_path = atmos_path.replace("<", "%3c");
-//            atmos_path = atmos_path.replace("=", "%3d");
-//            atmos_path = atmos_path.replace(">", "%3e");
-//            atmos_path = atmos_path.replace("?", "%3f");
-//            atmos_path = atmos_path.replace("@", "%40");
-
-            // finally force the encoding of '%'
-            atmos_path = atmos_path.replace("%", "%25");
-
-            atmos_path = WEBDAV_INTERNAL_PREFIX + api.getSubTenantId() + atmos_path;
-//        } catch (UnsupportedEncodingException e) {
-//            throw new RuntimeException(e);
-//        }
-        return new ObjectPath(atmos_path);
+    private ObjectPath getAtmosPath(HttpServletRequest req, String raw_path, AtmosApi api) {
+        @SuppressWarnings("unchecked")
+        Map<String, ObjectPath> paths = (Map<String, ObjectPath>) req.getAttribute(ATMOS_PATHS_ATTRIBUTE);
+        if (paths == null) {
+            paths = new HashMap<String, ObjectPath>(4);
+            req.setAttribute(ATMOS_PATHS_ATTRIBUTE, paths);
+        }
+        ObjectPath obj_path = paths.get(raw_path);
+        if (obj_path == null) {
+            obj_path = new ObjectPath(AtmosPathCodec.encode(api.getPathPrefix(), raw_path));
+            paths.put(raw_path, obj_path);
+        }
+        return obj_path;
     }
 
     /**
@@ -975,7 +2207,7 @@ public class AtmosDavServlet extends HttpServlet {
      * @return uri to be sent to the dav client
      */
     private String atmosToURL(String url, AtmosApi api) {
-        String prefix = WEBDAV_INTERNAL_PREFIX + api.getSubTenantId();
+        String prefix = api.getPathPrefix();
         if (url.startsWith(prefix)) {
             url = url.substring(prefix.length());
         }
@@ -983,16 +2215,37 @@ public class AtmosDavServlet extends HttpServlet {
     }
 
     protected class AtmosApi {
-        public EsuRestApi api = null;
-        public String uid = null;
+        public EsuApi api = null;
+        public String uid = null;       // the full login, "subtenant/uid"
+        private String subtenant = null;
+        private String prefix = null;
 
         public String getSubTenantId() {
-            int pos = uid.indexOf("/");
-            if (pos > 0) {
-                return uid.substring(pos+1);
-            } else {
-                return "";
+            if (subtenant == null) {
+                int pos = uid.indexOf("/");
+                if (pos > 0) {
+                    subtenant = uid.substring(pos+1);
+                } else {
+                    subtenant = "";
+                }
             }
+            return subtenant;
+        }
+
+        /**
+         * @return the prefix of the Atmos paths of the subtenant
+         */
+        public String getPathPrefix() {
+            if (prefix == null)
+                prefix = WEBDAV_INTERNAL_PREFIX + getSubTenantId();
+            return prefix;
+        }
+
+        /**
+         * @return the key of an Atmos path of this login in the shared caches
+         */
+        public String cacheKey(ObjectPath path) {
+            return ListingCache.cacheKey(uid, path.toString());
         }
     }
 
@@ -1013,104 +2266,3 @@ public class AtmosDavServlet extends HttpServlet {
     }
 
 }
-
-class AtmosURLEncoder {
-
-
-    /**
-     * Hidden constructor.
-     */
-    private AtmosURLEncoder() { }
-
-    public static String encode(String s) {
-	int maxBytesPerChar = 10; // rather arbitrary limit, but safe for now
-        StringBuffer out = new StringBuffer(s.length());
-	ByteArrayOutputStream buf = new ByteArrayOutputStream(maxBytesPerChar);
-
-        try {
-            OutputStreamWriter writer = new OutputStreamWriter(buf, dfltEncName);
-
-            for (int i = 0; i < s.length(); i++) {
-                int c = (int) s.charAt(i);
-
-                if (dontNeedEncoding.get(c)) {
-                    out.append((char)c);
-                } else {
-                    // convert to external encoding before hex conversion
-                    try {
-                        writer.write(c);
-                        /*
-                         * If this character represents the start of a Unicode
-                         * surrogate pair, then pass in two characters. It's not
-                         * clear what should be done if a bytes reserved in the
-                         * surrogate pairs range occurs outside of a legal
-                         * surrogate pair. For now, just treat it as if it were
-                         * any other character.
-                         */
-                        if (c >= 0xD800 && c <= 0xDBFF) {
-                            if ( (i+1) < s.length()) {
-                                int d = (int) s.charAt(i+1);
-                                if (d >= 0xDC00 && d <= 0xDFFF) {
-                                    writer.write(d);
-                                    i++;
-                                }
-                            }
-                        }
-                        writer.flush();
-                    } catch(IOException e) {
-                        buf.reset();
-                        continue;
-                    }
-                    byte[] ba = buf.toByteArray();
-                    for (int j = 0; j < ba.length; j++) {
-                        out.append('%');
-                        char ch = Character.forDigit((ba[j] >> 4) & 0xF, 16);
-                        // converting to use uppercase letter as part of
-                        // the hex value if ch is a letter.
-                        if (Character.isLetter(ch)) {
-                            ch -= caseDiff;
-                        }
-                        out.append(ch);
-                        ch = Character.forDigit(ba[j] & 0xF, 16);
-                        if (Character.isLetter(ch)) {
-                            ch -= caseDiff;
-                        }
-                        out.append(ch);
-                    }
-                    buf.reset();
-                }
-            }
-            return out.toString();
-        } catch (UnsupportedEncodingException e) {
-            return s;
-        }
-
-    }
-
-
-    static final int caseDiff = ('a' - 'A');
-    static private BitSet dontNeedEncoding;
-    static private String dfltEncName = "UTF-8";
-
-    static 
-    {
-	dontNeedEncoding = new BitSet(256);
-	int i;
-	for (i = 'a'; i <= 'z'; i++) {
-	    dontNeedEncoding.set(i);
-	}
-	for (i = 'A'; i <= 'Z'; i++) {
-	    dontNeedEncoding.set(i);
-	}
-	for (i = '0'; i <= '9'; i++) {
-	    dontNeedEncoding.set(i);
-	}
-	dontNeedEncoding.set('-');
-	dontNeedEncoding.set('_');
-	dontNeedEncoding.set('.');
-	dontNeedEncoding.set('/');
-	dontNeedEncoding.set('%');  // don't do additional escaping
-
-    }
-
-}
\ No newline at end of file
@@ -0,0 +1,226 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+/**
+ * Converts dav URIs to Atmos object names and back.
+ *
+ * encode() escapes every character but A-Za-z0-9, '-', '_', '.' and '/' as
+ * UTF-8 %XX sequences, whose '%' is escaped again as %25: a space becomes
+ * %2520. A '%' of the dav URI, which starts an escape of the client, becomes
+ * %25. This is the naming of the objects stored so far, which display names
+ * are decoded from by two successive decode(). decode() undoes one level of
+ * escaping, like URLDecoder.decode() with UTF-8.
+ *
+ * Both work in a single pass over the string, with a per-thread buffer, and
+ * return the string itself when there is nothing to convert.
+ *
+ * @author Stephan Hadinger
+ */
+final class AtmosPathCodec {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] SAFE = new boolean[128];
+
+    /**
+     * Smallest code point of a sequence with that many continuation bytes,
+     * to reject overlong encodings.
+     */
+    private static final int[] MIN_CODE_POINT = { 0, 0x80, 0x800, 0x10000 };
+
+    /**
+     * Buffers larger than this are not kept for the next call.
+     */
+    private static final int MAX_KEPT = 4096;
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++)
+            SAFE[c] = true;
+        for (int c = 'A'; c <= 'Z'; c++)
+            SAFE[c] = true;
+        for (int c = '0'; c <= '9'; c++)
+            SAFE[c] = true;
+        SAFE['-'] = true;
+        SAFE['_'] = true;
+        SAFE['.'] = true;
+        SAFE['/'] = true;
+    }
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Hidden constructor.
+     */
+    private AtmosPathCodec() { }
+
+    /**
+     * @return the Atmos name of a dav URI
+     */
+    static String encode(String raw_path) {
+        return encode("", raw_path);
+    }
+
+    /**
+     * @param prefix prepended as is to the result
+     * @param raw_path the dav URI sent by the client
+     * @return prefix followed by the Atmos name of the URI
+     */
+    static String encode(String prefix, String raw_path) {
+        int len = raw_path.length();
+        int i = 0;
+        while ((i < len) && isSafe(raw_path.charAt(i)))
+            i++;
+        if (i == len)
+            return (prefix.length() == 0) ? raw_path : prefix.concat(raw_path);
+
+        StringBuilder out = buffer();
+        out.append(prefix).append(raw_path, 0, i);
+        for (; i < len; i++) {
+            char c = raw_path.charAt(i);
+            if (isSafe(c)) {
+                out.append(c);
+            } else if (c == '%') {
+                out.append("%25");
+            } else if (c < 0x80) {
+                escape(out, c);
+            } else if (c < 0x800) {
+                escape(out, 0xC0 | (c >> 6));
+                escape(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i+1 < len) && Character.isLowSurrogate(raw_path.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, raw_path.charAt(++i));
+                escape(out, 0xF0 | (cp >> 18));
+                escape(out, 0x80 | ((cp >> 12) & 0x3F));
+                escape(out, 0x80 | ((cp >> 6) & 0x3F));
+                escape(out, 0x80 | (cp & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                escape(out, '?');       // unpaired surrogate, as the UTF-8 encoder does
+            } else {
+                escape(out, 0xE0 | (c >> 12));
+                escape(out, 0x80 | ((c >> 6) & 0x3F));
+                escape(out, 0x80 | (c & 0x3F));
+            }
+        }
+        return release(out);
+    }
+
+    /**
+     * Decodes '+' and UTF-8 %XX sequences. Invalid UTF-8 sequences are
+     * replaced by U+FFFD.
+     *
+     * @throws IllegalArgumentException if a '%' is not followed by two
+     *      hexadecimal digits
+     */
+    static String decode(String s) {
+        int len = s.length();
+        int i = 0;
+        char c;
+        while ((i < len) && ((c = s.charAt(i)) != '%') && (c != '+'))
+            i++;
+        if (i == len)
+            return s;
+
+        StringBuilder out = buffer();
+        out.append(s, 0, i);
+        while (i < len) {
+            c = s.charAt(i);
+            if (c == '+') {
+                out.append(' ');
+                i++;
+            } else if (c != '%') {
+                out.append(c);
+                i++;
+            } else {
+                int b = hexByte(s, i);
+                i += 3;
+                int extra;
+                int cp;
+                if (b < 0x80) {
+                    out.append((char) b);
+                    continue;
+                } else if ((b & 0xE0) == 0xC0) {
+                    extra = 1;
+                    cp = b & 0x1F;
+                } else if ((b & 0xF0) == 0xE0) {
+                    extra = 2;
+                    cp = b & 0x0F;
+                } else if ((b & 0xF8) == 0xF0) {
+                    extra = 3;
+                    cp = b & 0x07;
+                } else {
+                    out.append('\uFFFD');
+                    continue;
+                }
+                // continuation bytes, each of them escaped
+                int n = 0;
+                while ((n < extra) && (i < len) && (s.charAt(i) == '%')) {
+                    int next = hexByte(s, i);
+                    if ((next & 0xC0) != 0x80)
+                        break;
+                    cp = (cp << 6) | (next & 0x3F);
+                    i += 3;
+                    n++;
+                }
+                if ((n < extra) || (cp < MIN_CODE_POINT[extra]) || (cp > Character.MAX_CODE_POINT)
+                        || ((cp >= 0xD800) && (cp <= 0xDFFF)))
+                    out.append('\uFFFD');
+                else
+                    out.appendCodePoint(cp);
+            }
+        }
+        return release(out);
+    }
+
+    private static boolean isSafe(char c) {
+        return (c < 0x80) && SAFE[c];
+    }
+
+    private static void escape(StringBuilder out, int b) {
+        out.append("%25").append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    private static int hexByte(String s, int pos) {
+        if (pos + 2 >= s.length())
+            throw new IllegalArgumentException("Incomplete escape sequence in " + s);
+        int hi = Character.digit(s.charAt(pos+1), 16);
+        int lo = Character.digit(s.charAt(pos+2), 16);
+        if ((hi < 0) || (lo < 0))
+            throw new IllegalArgumentException("Illegal hex characters in escape pattern in " + s);
+        return (hi << 4) | lo;
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        return out;
+    }
+
+    private static String release(StringBuilder out) {
+        String result = out.toString();
+        if (out.capacity() > MAX_KEPT)
+            BUFFER.set(new StringBuilder(256));
+        return result;
+    }
+}
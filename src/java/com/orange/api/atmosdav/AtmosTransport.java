@@ -0,0 +1,67 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * The HTTP transport used to reach the Atmos endpoint.
+ *
+ * The implementation is chosen with the "atmos_transport" servlet
+ * parameter (a class name with a public no-argument constructor), and
+ * defaults to UrlConnectionTransport. An implementation reads its own
+ * settings from the servlet parameters.
+ *
+ * @author Stephan Hadinger
+ */
+public interface AtmosTransport {
+
+    /**
+     * Configures the transport, called once from the servlet init().
+     *
+     * @param host IP or name of the Atmos endpoint
+     * @param port IP port of the Atmos endpoint
+     * @param config the servlet configuration holding the transport parameters
+     */
+    void init(String host, int port, ServletConfig config) throws ServletException;
+
+    /**
+     * Creates an Atmos client for a set of credentials. Clients are cached
+     * by the servlet and used concurrently.
+     *
+     * @param uid Atmos uid, "subtenant/user"
+     * @param secret shared secret of the uid
+     * @return the Atmos client
+     */
+    EsuApi createApi(String uid, String secret);
+
+    /**
+     * @return a one-line summary of the connection usage
+     */
+    String getStatistics();
+
+    /**
+     * Releases the connections, called from the servlet destroy().
+     */
+    void destroy();
+}
@@ -0,0 +1,81 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of fixed-size byte buffers shared by all the requests.
+ *
+ * At most max_buffers buffers exist at any time, so the memory used for
+ * transfers is bounded by buffer_size * max_buffers. Buffers are allocated
+ * lazily and reused once released.
+ *
+ * @author Stephan Hadinger
+ */
+class BufferPool {
+
+    private final int _buffer_size;
+    private final int _max_buffers;
+    private final Semaphore _available;
+    private final ConcurrentLinkedQueue<byte[]> _free = new ConcurrentLinkedQueue<byte[]>();
+
+    BufferPool(int buffer_size, int max_buffers) {
+        _buffer_size = buffer_size;
+        _max_buffers = max_buffers;
+        _available = new Semaphore(max_buffers, true);
+    }
+
+    int getBufferSize() {
+        return _buffer_size;
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting until one is released if all
+     * of them are in use.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return the buffer, null if none was released within the timeout
+     */
+    byte[] tryAcquire(long timeout) throws InterruptedException {
+        if (!_available.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+            return null;
+        byte[] buffer = _free.poll();
+        return (buffer != null) ? buffer : new byte[_buffer_size];
+    }
+
+    /**
+     * Gives back a buffer obtained by tryAcquire().
+     */
+    void release(byte[] buffer) {
+        _free.offer(buffer);
+        _available.release();
+    }
+
+    /**
+     * @return the number of buffers currently in use
+     */
+    int getInUse() {
+        return _max_buffers - _available.availablePermits();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+/**
+ * The counters of a cache, reported by DavMetrics.
+ *
+ * @author Stephan Hadinger
+ */
+interface CacheCounters {
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    long getHits();
+
+    /**
+     * @return the number of lookups not answered from the cache
+     */
+    long getMisses();
+
+    /**
+     * @return the number of entries dropped because the cache was full or
+     *      they expired
+     */
+    long getEvictions();
+}
@@ -0,0 +1,214 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.BufferSegment;
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.Identifier;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectPath;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Uploads a request body to a new Atmos object as fixed-size chunks written
+ * in parallel.
+ *
+ * The first chunk creates the object. The following chunks are read into
+ * buffers of the shared BufferPool and written at their offset with extent
+ * updates, with at most "parallelism" chunks in flight per upload. The
+ * upload only returns once every chunk is acknowledged; if any chunk fails,
+ * the remaining ones are abandoned and the object is deleted, so that no
+ * truncated object is left behind.
+ *
+ * An upload waiting longer than the buffer timeout for a buffer fails with
+ * a 503, like a call waiting for an Atmos connection, instead of queueing
+ * without bound behind the uploads in progress.
+ *
+ * Existing objects are not replaced this way: a failed chunk would leave
+ * them with holes, and this Atmos API cannot rename a fully uploaded
+ * temporary object into their place.
+ *
+ * @author Stephan Hadinger
+ */
+class ChunkedUploader {
+
+    private final ExecutorService _executor;
+    private final BufferPool _pool;
+    private final int _parallelism;
+    private final long _buffer_timeout;
+
+    /**
+     * @param executor executor running the chunk writes
+     * @param pool pool providing the chunk buffers, its buffer size is the chunk size
+     * @param parallelism maximum number of chunks in flight for a single upload
+     * @param buffer_timeout maximum wait for a buffer of the pool, in milliseconds
+     */
+    ChunkedUploader(ExecutorService executor, BufferPool pool, int parallelism, long buffer_timeout) {
+        _executor = executor;
+        _pool = pool;
+        _parallelism = parallelism;
+        _buffer_timeout = buffer_timeout;
+    }
+
+    /**
+     * @return the size of the chunks
+     */
+    int getChunkSize() {
+        return _pool.getBufferSize();
+    }
+
+    /**
+     * Uploads a stream to a new Atmos object.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_path the Atmos path of the object, which must not exist
+     * @param in the content to upload, read until its end
+     * @return the ObjectId of the object created, null if Atmos did not return it
+     */
+    ObjectId upload(final EsuApi api, ObjectPath obj_path, InputStream in) throws IOException {
+        long offset;
+        final ObjectId created;
+        final Identifier target;
+        byte[] first = acquire();
+        try {
+            offset = fill(in, first);
+            // the next chunks go straight to the new object
+            created = api.createObjectFromSegmentOnPath(obj_path, null, null, new BufferSegment(first, 0, (int) offset), null);
+            target = (created != null) ? (Identifier) created : obj_path;
+        } finally {
+            _pool.release(first);
+        }
+        if (offset < first.length)
+            return created;     // the whole body fitted in the first chunk
+
+        final Semaphore window = new Semaphore(_parallelism);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        boolean complete = false;
+        try {
+            while (failure.get() == null) {
+                acquire(window);
+                final byte[] buffer;
+                final int len;
+                try {
+                    buffer = acquire();
+                } catch (IOException e) {
+                    window.release();
+                    throw e;
+                }
+                try {
+                    len = fill(in, buffer);
+                } catch (IOException e) {
+                    _pool.release(buffer);
+                    window.release();
+                    throw e;
+                }
+                if (len == 0) {
+                    _pool.release(buffer);
+                    window.release();
+                    break;
+                }
+
+                final Extent extent = new Extent(offset, len);
+                _executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (failure.get() == null)
+                                api.updateObjectFromSegment(target, null, null, extent, new BufferSegment(buffer, 0, len), null);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            _pool.release(buffer);
+                            window.release();
+                        }
+                    }
+                });
+                offset += len;
+                if (len < buffer.length)
+                    break;
+            }
+            complete = true;
+        } finally {
+            // wait for the chunks in flight before finalizing
+            window.acquireUninterruptibly(_parallelism);
+            if (!complete || (failure.get() != null)) {
+                try {
+                    api.deleteObject(target);
+                } catch (EsuException e) {
+                    // keep the original failure
+                }
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw new EsuException("Chunk upload failed", (Exception) t);
+        return created;
+    }
+
+    private byte[] acquire() throws IOException {
+        byte[] buffer;
+        try {
+            buffer = _pool.tryAcquire(_buffer_timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+        }
+        if (buffer == null)
+            throw new EsuException("No upload buffer available", 503, 0);
+        return buffer;
+    }
+
+    private static void acquire(Semaphore window) throws IOException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload slot");
+        }
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    static int fill(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if (read < 0)
+                break;
+            filled += read;
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A read-through cache of object contents on the local disk.
+ *
+ * Entries are keyed by Atmos path and hold the validator (the weak ETag,
+ * built from the ObjectId, size and mtime) of the content they were filled
+ * with; a lookup with another validator drops the entry. A file is filled
+ * while the first response streams it to the client, and only indexed once
+ * it is complete. The total size of the files is bounded, least recently
+ * used entries being evicted first.
+ *
+ * The validator does not tell apart two writes of the same size within the
+ * same second, so remove() also cancels the fill in progress for the path:
+ * a fill started before a write never gets indexed after it.
+ *
+ * Evicted files are deleted after a grace delay, so that responses still
+ * sending them (possibly through the container sendfile support) are not
+ * cut short. The deletions happen on the next lookup, fill or removal.
+ *
+ * Each cache keeps its files in a subdirectory of its own, created in the
+ * configured directory, so that several servlets can share the directory.
+ * The subdirectory is deleted by destroy().
+ *
+ * @author Stephan Hadinger
+ */
+class ContentCache implements CacheCounters {
+
+    private static final String SUFFIX = ".atmosdav";
+    private static final long DELETE_DELAY_MS = 60 * 1000;
+
+    private final File _dir;
+    private final long _max_bytes;
+    private final long _max_object;
+    private final LinkedHashMap<String, Entry> _map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Fill> _filling = new HashMap<String, Fill>();
+    private final LinkedList<Entry> _trash = new LinkedList<Entry>();
+
+    private long _bytes = 0;
+    private long _next_file = 0;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private long _bytes_served = 0;
+    private long _bytes_filled = 0;
+
+    /**
+     * @param dir directory in which the subdirectory holding the cached
+     *      files is created
+     * @param max_bytes maximum total size of the cached files
+     * @param max_object size of the largest object cached
+     */
+    ContentCache(File dir, long max_bytes, long max_object) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        // a unique name, turned from a file into a directory
+        File own = File.createTempFile("atmosdav", "", dir);
+        if (!own.delete() || !own.mkdir())
+            throw new IOException("Cannot create " + own);
+        _dir = own;
+        _max_bytes = max_bytes;
+        _max_object = Math.min(max_object, max_bytes);
+    }
+
+    /**
+     * @return the cached file of an object, or null if it is not cached
+     *      with this validator
+     */
+    synchronized File get(String path, String validator) {
+        purge();
+        Entry entry = _map.get(path);
+        if ((entry != null) && !entry.validator.equals(validator)) {
+            // the object changed since it was cached
+            drop(path);
+            entry = null;
+        }
+        if (entry == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return entry.file;
+    }
+
+    /**
+     * Starts caching an object while it is sent to the client.
+     *
+     * @param path the Atmos path of the object
+     * @param validator identifies the content of the object
+     * @param size size of the object
+     * @param out the response stream
+     * @return a stream writing both to the response and to the cache, or null
+     *      if the object is too large or already being cached
+     */
+    Fill fill(String path, String validator, long size, OutputStream out) {
+        if (size > _max_object)
+            return null;
+        Fill fill;
+        synchronized (this) {
+            purge();
+            if (_filling.containsKey(path))
+                return null;
+            fill = new Fill(path, validator, size, new File(_dir, (_next_file++) + SUFFIX), out);
+            _filling.put(path, fill);
+        }
+        try {
+            fill.open();
+            return fill;
+        } catch (IOException e) {
+            synchronized (this) {
+                fill.release();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Sends bytes start to end (inclusive) of a cached file, with
+     * FileChannel.transferTo().
+     */
+    void send(File file, long start, long end, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = start;
+            while (position <= end) {
+                long sent = channel.transferTo(position, end - position + 1, target);
+                if (sent <= 0)
+                    throw new IOException("Unexpected end of cached file " + file);
+                position += sent;
+            }
+        } finally {
+            in.close();
+        }
+        served(end - start + 1);
+    }
+
+    /**
+     * Counts bytes sent from the cache by other means, e.g. by the
+     * container sendfile support.
+     */
+    synchronized void served(long bytes) {
+        _bytes_served += bytes;
+    }
+
+    /**
+     * Drops the entry of an object modified or deleted through the servlet,
+     * and cancels the fill in progress for it, if any.
+     */
+    synchronized void remove(String path) {
+        Fill fill = _filling.remove(path);
+        if (fill != null)
+            fill._cancelled = true;
+        drop(path);
+        purge();
+    }
+
+    /**
+     * Deletes the cached files and their directory, called from the servlet
+     * destroy(). Files still being filled are deleted when abandoned.
+     */
+    synchronized void destroy() {
+        for (Entry entry:_map.values())
+            _trash.add(entry);
+        _map.clear();
+        _bytes = 0;
+        while (!_trash.isEmpty())
+            _trash.removeFirst().file.delete();
+        _dir.delete();
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = _hits + _misses;
+        return "content cache: entries=" + _map.size() + " bytes=" + _bytes + "/" + _max_bytes
+                + " hits=" + _hits + " misses=" + _misses
+                + " hit ratio=" + ((lookups > 0) ? (100 * _hits / lookups) : 0) + "%"
+                + " evictions=" + _evictions
+                + " bytes served=" + _bytes_served + " bytes filled=" + _bytes_filled;
+    }
+
+    private synchronized void add(String path, Entry entry) {
+        drop(path);
+        _map.put(path, entry);
+        _bytes += entry.size;
+        _bytes_filled += entry.size;
+
+        Iterator<Entry> eldest = _map.values().iterator();
+        while (_bytes > _max_bytes) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            _bytes -= evicted.size;
+            _evictions++;
+            trash(evicted);
+        }
+        purge();
+    }
+
+    private void drop(String path) {
+        Entry entry = _map.remove(path);
+        if (entry != null) {
+            _bytes -= entry.size;
+            trash(entry);
+        }
+    }
+
+    private void trash(Entry entry) {
+        entry.deleted = System.currentTimeMillis();
+        _trash.add(entry);
+    }
+
+    /**
+     * Deletes the files evicted more than DELETE_DELAY_MS ago.
+     */
+    private void purge() {
+        long limit = System.currentTimeMillis() - DELETE_DELAY_MS;
+        while (!_trash.isEmpty() && (_trash.getFirst().deleted < limit))
+            _trash.removeFirst().file.delete();
+    }
+
+    private static class Entry {
+        final String validator;
+        final File file;
+        final long size;
+        long deleted;
+
+        Entry(String validator, File file, long size) {
+            this.validator = validator;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Copies the response to a cache file. The file is indexed by
+     * complete() if all the bytes of the object went through; abandon()
+     * discards it otherwise. One of them must be called.
+     */
+    class Fill extends OutputStream {
+        private final String _path;
+        private final String _validator;
+        private final long _size;
+        private final File _file;
+        private final OutputStream _out;
+        private FileOutputStream _copy;
+        private long _written = 0;
+        /** set by remove(), under the cache lock */
+        private boolean _cancelled = false;
+
+        private Fill(String path, String validator, long size, File file, OutputStream out) {
+            _path = path;
+            _validator = validator;
+            _size = size;
+            _file = file;
+            _out = out;
+        }
+
+        private void open() throws IOException {
+            _copy = new FileOutputStream(_file);
+        }
+
+        /**
+         * Lets another fill start for the path, unless remove() already did.
+         */
+        private void release() {
+            if (_filling.get(_path) == this)
+                _filling.remove(_path);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            _out.write(buf, off, len);
+            if (_copy != null) {
+                try {
+                    _copy.write(buf, off, len);
+                    _written += len;
+                } catch (IOException e) {
+                    // disk full or similar: the client response goes on
+                    closeCopy();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+
+        void complete() {
+            boolean copying = (_copy != null);
+            closeCopy();
+            boolean complete = copying && (_written == _size);
+            synchronized (ContentCache.this) {
+                release();
+                // checked under the lock, so that a remove() cannot slip in before add()
+                if (complete && !_cancelled) {
+                    add(_path, new Entry(_validator, _file, _size));
+                    return;
+                }
+            }
+            _file.delete();
+        }
+
+        void abandon() {
+            closeCopy();
+            synchronized (ContentCache.this) {
+                release();
+            }
+            _file.delete();
+        }
+
+        private void closeCopy() {
+            if (_copy == null)
+                return;
+            try {
+                _copy.close();
+            } catch (IOException e) {
+                _written = -1;      // do not index a file which may be incomplete
+            }
+            _copy = null;
+        }
+    }
+}
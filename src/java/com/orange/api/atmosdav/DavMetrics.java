@@ -0,0 +1,306 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.BufferSegment;
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the latencies of the WebDAV requests per method and of the
+ * Atmos calls per operation, the Atmos errors per Atmos error code, the
+ * object bytes read from and written to Atmos, and reports the counters of
+ * the caches added with addCache().
+ *
+ * Atmos calls are measured by wrapping the clients of the transport with
+ * instrument(). Recording is lock-free: a map lookup and a few atomic
+ * increments per request or call.
+ *
+ * @author Stephan Hadinger
+ */
+class DavMetrics implements DavMetricsMBean {
+
+    private static final String[] METHODS = { "GET", "HEAD", "PUT", "DELETE", "OPTIONS", "POST", "TRACE",
+            "PROPFIND", "PROPPATCH", "MKCOL", "COPY", "MOVE", "LOCK", "UNLOCK" };
+    private static final String OTHER_METHOD = "OTHER";
+
+    private static final double[] QUANTILES = { 50, 99, 99.9 };
+
+    /** histograms per WebDAV method, not modified after construction */
+    private final Map<String, LatencyHistogram> _requests = new HashMap<String, LatencyHistogram>();
+
+    /** histograms per Atmos operation, and per EsuApi method for a faster lookup */
+    private final ConcurrentMap<String, LatencyHistogram> _atmos_calls = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<Method, LatencyHistogram> _atmos_methods = new ConcurrentHashMap<Method, LatencyHistogram>();
+
+    private final ConcurrentMap<Integer, AtomicLong> _atmos_errors = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong _bytes_read = new AtomicLong();
+    private final AtomicLong _bytes_written = new AtomicLong();
+
+    private final ConcurrentMap<String, CacheCounters> _caches = new ConcurrentHashMap<String, CacheCounters>();
+
+    DavMetrics() {
+        for (String method:METHODS)
+            _requests.put(method, new LatencyHistogram());
+        _requests.put(OTHER_METHOD, new LatencyHistogram());
+    }
+
+    /**
+     * Records the processing time of a WebDAV request.
+     *
+     * @param method the request method
+     * @param nanos the processing time in nanoseconds
+     */
+    void requestDone(String method, long nanos) {
+        LatencyHistogram histogram = _requests.get(method);
+        if (histogram == null)
+            histogram = _requests.get(OTHER_METHOD);
+        histogram.record(nanos / 1000);
+    }
+
+    /**
+     * Reports the counters of a cache.
+     *
+     * @param name the name of the cache in the metrics: "metadata"...
+     */
+    void addCache(String name, CacheCounters cache) {
+        _caches.put(name, cache);
+    }
+
+    /**
+     * Wraps an Atmos client so that its calls are measured.
+     */
+    EsuApi instrument(final EsuApi api) {
+        return (EsuApi) Proxy.newProxyInstance(EsuApi.class.getClassLoader(),
+                new Class[] { EsuApi.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class)
+                    return method.invoke(api, args);
+                long start = System.nanoTime();
+                try {
+                    Object result = method.invoke(api, args);
+                    countBytes(method, args, result);
+                    return result;
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof EsuException)
+                        atmosError(((EsuException) cause).getAtmosCode());
+                    else
+                        atmosError(0);
+                    throw cause;
+                } finally {
+                    histogramOf(method).record((System.nanoTime() - start) / 1000);
+                }
+            }
+        });
+    }
+
+    private LatencyHistogram histogramOf(Method method) {
+        LatencyHistogram histogram = _atmos_methods.get(method);
+        if (histogram == null) {
+            String operation = operationOf(method.getName());
+            _atmos_calls.putIfAbsent(operation, new LatencyHistogram());
+            histogram = _atmos_calls.get(operation);
+            _atmos_methods.put(method, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the operation reported for an EsuApi method: read, create,
+     *      update and delete for the object content calls, the method name
+     *      otherwise (getAllMetadata, listDirectory...)
+     */
+    private static String operationOf(String method) {
+        if (method.startsWith("readObject"))
+            return "read";
+        if (method.startsWith("createObject"))
+            return "create";
+        if (method.startsWith("updateObject"))
+            return "update";
+        if (method.equals("deleteObject"))
+            return "delete";
+        return method;
+    }
+
+    private void countBytes(Method method, Object[] args, Object result) {
+        String name = method.getName();
+        if (name.startsWith("readObject")) {
+            if (result instanceof byte[])
+                _bytes_read.addAndGet(((byte[]) result).length);
+        } else if ((args != null) && (name.startsWith("createObject") || name.startsWith("updateObject"))) {
+            for (Object arg:args) {
+                if (arg instanceof byte[])
+                    _bytes_written.addAndGet(((byte[]) arg).length);
+                else if (arg instanceof BufferSegment)
+                    _bytes_written.addAndGet(((BufferSegment) arg).getSize());
+            }
+        }
+    }
+
+    private void atmosError(int code) {
+        AtomicLong count = _atmos_errors.get(code);
+        if (count == null) {
+            _atmos_errors.putIfAbsent(code, new AtomicLong());
+            count = _atmos_errors.get(code);
+        }
+        count.incrementAndGet();
+    }
+
+    // ------------------------------------------------------------ MBean view
+
+    public long getRequestCount() {
+        long count = 0;
+        for (LatencyHistogram histogram:_requests.values())
+            count += histogram.count();
+        return count;
+    }
+
+    public String[] getRequestLatencies() {
+        return describe(new TreeMap<String, LatencyHistogram>(_requests));
+    }
+
+    public long getAtmosCallCount() {
+        long count = 0;
+        for (LatencyHistogram histogram:_atmos_calls.values())
+            count += histogram.count();
+        return count;
+    }
+
+    public String[] getAtmosLatencies() {
+        return describe(new TreeMap<String, LatencyHistogram>(_atmos_calls));
+    }
+
+    public long getAtmosErrorCount() {
+        long count = 0;
+        for (AtomicLong errors:_atmos_errors.values())
+            count += errors.get();
+        return count;
+    }
+
+    public String[] getAtmosErrors() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<Integer, AtomicLong> entry:new TreeMap<Integer, AtomicLong>(_atmos_errors).entrySet())
+            lines.add(entry.getKey() + "=" + entry.getValue().get());
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public long getAtmosBytesRead() {
+        return _bytes_read.get();
+    }
+
+    public long getAtmosBytesWritten() {
+        return _bytes_written.get();
+    }
+
+    public String[] getCacheCounters() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, CacheCounters> entry:new TreeMap<String, CacheCounters>(_caches).entrySet()) {
+            CacheCounters cache = entry.getValue();
+            lines.add(entry.getKey() + " hits=" + cache.getHits() + " misses=" + cache.getMisses()
+                    + " evictions=" + cache.getEvictions());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text format, latencies being
+     * summaries in microseconds.
+     */
+    public String getText() {
+        StringBuilder text = new StringBuilder(4096);
+        text.append("# TYPE atmosdav_request_latency_us summary\n");
+        summaries(text, "atmosdav_request_latency_us", "method", new TreeMap<String, LatencyHistogram>(_requests));
+        text.append("# TYPE atmosdav_atmos_latency_us summary\n");
+        summaries(text, "atmosdav_atmos_latency_us", "operation", new TreeMap<String, LatencyHistogram>(_atmos_calls));
+        text.append("# TYPE atmosdav_atmos_errors_total counter\n");
+        for (Map.Entry<Integer, AtomicLong> entry:new TreeMap<Integer, AtomicLong>(_atmos_errors).entrySet())
+            text.append("atmosdav_atmos_errors_total{code=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().get()).append('\n');
+        text.append("# TYPE atmosdav_atmos_bytes_read_total counter\n");
+        text.append("atmosdav_atmos_bytes_read_total ").append(_bytes_read.get()).append('\n');
+        text.append("# TYPE atmosdav_atmos_bytes_written_total counter\n");
+        text.append("atmosdav_atmos_bytes_written_total ").append(_bytes_written.get()).append('\n');
+        Map<String, CacheCounters> caches = new TreeMap<String, CacheCounters>(_caches);
+        text.append("# TYPE atmosdav_cache_hits_total counter\n");
+        for (Map.Entry<String, CacheCounters> entry:caches.entrySet())
+            cacheCounter(text, "atmosdav_cache_hits_total", entry.getKey(), entry.getValue().getHits());
+        text.append("# TYPE atmosdav_cache_misses_total counter\n");
+        for (Map.Entry<String, CacheCounters> entry:caches.entrySet())
+            cacheCounter(text, "atmosdav_cache_misses_total", entry.getKey(), entry.getValue().getMisses());
+        text.append("# TYPE atmosdav_cache_evictions_total counter\n");
+        for (Map.Entry<String, CacheCounters> entry:caches.entrySet())
+            cacheCounter(text, "atmosdav_cache_evictions_total", entry.getKey(), entry.getValue().getEvictions());
+        return text.toString();
+    }
+
+    private static void cacheCounter(StringBuilder text, String name, String cache, long value) {
+        text.append(name).append("{cache=\"").append(cache).append("\"} ").append(value).append('\n');
+    }
+
+    private static void summaries(StringBuilder text, String name, String label, Map<String, LatencyHistogram> histograms) {
+        for (Map.Entry<String, LatencyHistogram> entry:histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.count();
+            if (count == 0)
+                continue;
+            String labels = label + "=\"" + entry.getKey() + "\"";
+            for (double quantile:QUANTILES)
+                text.append(name).append('{').append(labels).append(",quantile=\"").append(quantile / 100).append("\"} ")
+                        .append(histogram.percentile(quantile)).append('\n');
+            text.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum()).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+
+    private static String[] describe(Map<String, LatencyHistogram> histograms) {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, LatencyHistogram> entry:histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.count();
+            if (count == 0)
+                continue;
+            lines.add(entry.getKey() + " count=" + count
+                    + " p50=" + histogram.percentile(50) + " p99=" + histogram.percentile(99)
+                    + " p999=" + histogram.percentile(99.9) + " max=" + histogram.max());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String toString() {
+        return "metrics: requests=" + getRequestCount() + " atmos calls=" + getAtmosCallCount()
+                + " atmos errors=" + getAtmosErrorCount() + " bytes read=" + _bytes_read.get()
+                + " bytes written=" + _bytes_written.get();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+/**
+ * The JMX view of the servlet metrics, registered as
+ * "com.orange.api.atmosdav:type=Metrics,name=<servlet name>".
+ *
+ * Latencies are in microseconds, one line per WebDAV method or Atmos
+ * operation: "GET count=120 p50=850 p99=12000 p999=25000 max=31000".
+ *
+ * @author Stephan Hadinger
+ */
+public interface DavMetricsMBean {
+
+    /**
+     * @return the number of WebDAV requests processed
+     */
+    long getRequestCount();
+
+    /**
+     * @return the latencies of the WebDAV requests, per method
+     */
+    String[] getRequestLatencies();
+
+    /**
+     * @return the number of Atmos calls made
+     */
+    long getAtmosCallCount();
+
+    /**
+     * @return the latencies of the Atmos calls, per operation
+     */
+    String[] getAtmosLatencies();
+
+    /**
+     * @return the number of failed Atmos calls
+     */
+    long getAtmosErrorCount();
+
+    /**
+     * @return the number of failed Atmos calls per Atmos error code:
+     *      "1003=12", 0 being the failures without an Atmos code
+     */
+    String[] getAtmosErrors();
+
+    /**
+     * @return the number of object bytes read from Atmos
+     */
+    long getAtmosBytesRead();
+
+    /**
+     * @return the number of object bytes written to Atmos
+     */
+    long getAtmosBytesWritten();
+
+    /**
+     * @return the counters of the metadata, listing and content caches:
+     *      "metadata hits=120 misses=8 evictions=2"
+     */
+    String[] getCacheCounters();
+
+    /**
+     * @return all the metrics in the text format of the metrics endpoint
+     */
+    String getText();
+}
@@ -0,0 +1,217 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Decodes the XML bodies of the WebDAV requests.
+ *
+ * The body is read by a SAX parser, so that no document tree is built, and
+ * only the structure needed by the servlet is kept. Parsers are created once
+ * per thread from a shared factory and reused between requests. Document
+ * type declarations are refused, which also rules out external entities and
+ * entity expansion attacks, and the body is cut off after a maximum size.
+ *
+ * @author Stephan Hadinger
+ */
+class DavRequestParser {
+
+    private static final String DAV_NAMESPACE = "DAV:";
+
+    /**
+     * Types of PROPFIND requests
+     */
+    static final int PROP = 0;
+    static final int ALLPROP = 1;
+    static final int PROPNAME = 2;
+
+    /**
+     * Raised when the body is larger than the allowed size.
+     */
+    static class BodyTooLargeException extends IOException {
+        BodyTooLargeException(long max_size) {
+            super("Request body larger than " + max_size + " bytes");
+        }
+    }
+
+    /**
+     * A decoded PROPFIND body.
+     */
+    static class Propfind {
+        /** PROP, ALLPROP or PROPNAME */
+        int type = ALLPROP;
+        /** namespaces and local names of the requested properties, for PROP */
+        final List<QName> properties = new ArrayList<QName>();
+    }
+
+    private static final SAXParserFactory FACTORY = SAXParserFactory.newInstance();
+    static {
+        FACTORY.setNamespaceAware(true);
+        FACTORY.setValidating(false);
+        setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        setFeature("http://xml.org/sax/features/external-general-entities", false);
+        setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+    }
+
+    private static final ThreadLocal<SAXParser> PARSER = new ThreadLocal<SAXParser>();
+
+    private final long _max_size;
+
+    /**
+     * @param max_size maximum size in bytes of a request body
+     */
+    DavRequestParser(long max_size) {
+        _max_size = max_size;
+    }
+
+    long getMaxSize() {
+        return _max_size;
+    }
+
+    /**
+     * Decodes a PROPFIND body. An empty body is an allprop request.
+     *
+     * @param in the request body
+     * @return the decoded request
+     * @throws BodyTooLargeException if the body exceeds the maximum size
+     * @throws SAXException if the body is not a valid PROPFIND document
+     */
+    Propfind parsePropfind(InputStream in) throws IOException, SAXException {
+        final Propfind propfind = new Propfind();
+        PushbackInputStream body = new PushbackInputStream(new LimitedInputStream(in, _max_size));
+        int first = body.read();
+        if (first < 0)
+            return propfind;
+        body.unread(first);
+
+        parse(body, new DefaultHandler() {
+            private int _depth = 0;
+            private boolean _in_prop = false;
+
+            @Override
+            public void startElement(String uri, String local_name, String q_name, Attributes attributes) throws SAXException {
+                _depth++;
+                if (_depth == 1) {
+                    if (!DAV_NAMESPACE.equals(uri) || !"propfind".equals(local_name))
+                        throw new SAXException("propfind element expected");
+                } else if ((_depth == 2) && DAV_NAMESPACE.equals(uri)) {
+                    if ("prop".equals(local_name)) {
+                        propfind.type = PROP;
+                        _in_prop = true;
+                    } else if ("propname".equals(local_name)) {
+                        propfind.type = PROPNAME;
+                    } else if ("allprop".equals(local_name)) {
+                        propfind.type = ALLPROP;
+                    }
+                } else if ((_depth == 3) && _in_prop) {
+                    propfind.properties.add(new QName(uri, local_name));
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String local_name, String q_name) {
+                if (_depth == 2)
+                    _in_prop = false;
+                _depth--;
+            }
+        });
+        return propfind;
+    }
+
+    private static void parse(InputStream in, DefaultHandler handler) throws IOException, SAXException {
+        SAXParser parser = PARSER.get();
+        if (parser == null) {
+            try {
+                parser = FACTORY.newSAXParser();
+            } catch (ParserConfigurationException e) {
+                throw new SAXException(e);
+            }
+            PARSER.set(parser);
+        }
+        try {
+            parser.parse(new InputSource(in), handler);
+        } finally {
+            parser.reset();
+        }
+    }
+
+    private static void setFeature(String name, boolean value) {
+        try {
+            FACTORY.setFeature(name, value);
+        } catch (Exception e) {
+            // feature not known by this parser
+        }
+    }
+
+    /**
+     * Fails once more than max_size bytes are read.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long _max_size;
+        private long _count = 0;
+
+        LimitedInputStream(InputStream in, long max_size) {
+            super(in);
+            _max_size = max_size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0)
+                count(n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // the servlet container owns the request stream
+        }
+
+        private void count(int n) throws IOException {
+            _count += n;
+            if (_count > _max_size)
+                throw new BodyTooLargeException(_max_size);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.DirectoryEntry;
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.ListOptions;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.MetadataTag;
+import com.emc.esu.api.MetadataTags;
+import com.emc.esu.api.ObjectPath;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists an Atmos directory together with the system metadata of each entry.
+ *
+ * The listing is read one page at a time, following the Atmos continuation
+ * token, and each page is handed over before the next one is requested, so
+ * the memory used does not depend on the size of the directory.
+ *
+ * The metadata is first requested in bulk with the listing itself
+ * (x-emc-include-meta). If the Atmos endpoint does not support it, or an
+ * entry comes back without metadata, the entries are looked up one by one on
+ * a shared bounded executor. Entries are always handed over in the order of
+ * the Atmos listing, as soon as their metadata is known.
+ *
+ * The metadata of the listed entries is stored in the metadata cache, and
+ * per-entry lookups are answered from it when possible. The children of
+ * the directory are kept in the listing cache together with their
+ * metadata; when a listing is served from it, only the entries changed
+ * since are looked up.
+ *
+ * @author Stephan Hadinger
+ */
+class DirectoryLister {
+
+    private final ExecutorService _executor;
+    private final LruCache<String, MetadataList> _cache;
+    private final ListingCache _listings;
+    private final SingleFlight<String, MetadataList> _metadata_flights;
+    private final SingleFlight<String, ListedPage> _page_flights = new SingleFlight<String, ListedPage>("listing calls");
+    private final List<String> _tags;
+    private final MetadataTags _metadata_tags;
+    private final int _window;
+    private final int _page_size;
+    private volatile boolean _bulk_metadata;
+    private volatile boolean _paging = true;
+
+    /**
+     * @param executor executor running the per-entry lookups
+     * @param cache metadata cache, keyed by ListingCache.cacheKey()
+     * @param listings cache of the directory listings
+     * @param metadata_flights coalesces the metadata lookups, keyed by ListingCache.cacheKey()
+     *      and the generation of that key in the metadata cache
+     * @param tags system metadata tags to retrieve for each entry
+     * @param window maximum number of lookups in flight for a single listing
+     * @param page_size maximum number of entries per listing request, 0 to
+     *      let Atmos choose
+     * @param bulk_metadata true to ask for the metadata with the listing
+     */
+    DirectoryLister(ExecutorService executor, LruCache<String, MetadataList> cache, ListingCache listings,
+            SingleFlight<String, MetadataList> metadata_flights, List<String> tags, int window, int page_size, boolean bulk_metadata) {
+        _executor = executor;
+        _cache = cache;
+        _listings = listings;
+        _metadata_flights = metadata_flights;
+        _tags = tags;
+        _metadata_tags = toMetadataTags(tags);
+        _window = Math.max(1, window);
+        _page_size = Math.max(0, page_size);
+        _bulk_metadata = bulk_metadata;
+    }
+
+    /**
+     * Lists the directory and retrieves the system metadata of every entry.
+     *
+     * @param api the Atmos REST API object
+     * @param tenant the full Atmos login of api, qualifying the cache keys
+     * @param dir the Atmos path of the directory
+     * @return the entries, in listing order
+     */
+    List<ListedEntry> list(EsuApi api, String tenant, ObjectPath dir) {
+        final List<ListedEntry> result = new ArrayList<ListedEntry>();
+        try {
+            list(api, tenant, dir, new EntryHandler() {
+                public void entry(ListedEntry entry) {
+                    result.add(entry);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // cannot happen
+        }
+        return result;
+    }
+
+    /**
+     * Lists the directory and hands over every entry with its system
+     * metadata as soon as it is known.
+     *
+     * Entries which disappeared (HTTP 404, Atmos code 1003) or are not
+     * readable (HTTP 403) between the listing and the lookup are skipped.
+     *
+     * @param api the Atmos REST API object
+     * @param tenant the full Atmos login of api, qualifying the cache keys
+     * @param dir the Atmos path of the directory
+     * @param handler receives the entries, in listing order
+     */
+    void list(EsuApi api, String tenant, ObjectPath dir, EntryHandler handler) throws IOException {
+        String key = ListingCache.cacheKey(tenant, dir.toString());
+        List<ListedEntry> cached = _listings.get(key);
+        if (cached != null) {
+            Pipeline pipeline = new Pipeline(api, tenant, handler);
+            try {
+                for (ListedEntry entry:cached)
+                    pipeline.add(entry.path, entry.metadata);
+                pipeline.finish();
+            } finally {
+                pipeline.cancel();
+            }
+            return;
+        }
+
+        long version = _listings.getVersion();
+        Recorder recorder = new Recorder(handler, _listings.getMaxChildren());
+        Pipeline pipeline = new Pipeline(api, tenant, recorder);
+        try {
+            Page page = new Page();
+            while (page.hasNext()) {
+                for (DirectoryEntry dir_entry:listDirectory(api, tenant, dir, page)) {
+                    MetadataList metadata = getEntryMetadata(dir_entry);
+                    if (metadata != null)
+                        _cache.put(ListingCache.cacheKey(tenant, dir_entry.getPath().toString()), metadata);
+                    pipeline.add(dir_entry.getPath(), metadata);
+                }
+            }
+            pipeline.finish();
+        } finally {
+            pipeline.cancel();
+        }
+        // the listing is cached with the metadata handed over
+        if (recorder.entries != null)
+            _listings.put(key, recorder.entries, version);
+    }
+
+    /**
+     * Keeps the entries handed over, unless there are too many of them to
+     * be cached.
+     */
+    private static class Recorder implements EntryHandler {
+        private final EntryHandler _handler;
+        private final int _max_entries;
+        List<ListedEntry> entries = new ArrayList<ListedEntry>();
+
+        Recorder(EntryHandler handler, int max_entries) {
+            _handler = handler;
+            _max_entries = max_entries;
+        }
+
+        public void entry(ListedEntry entry) throws IOException {
+            if (entries != null) {
+                entries.add(entry);
+                if (entries.size() > _max_entries)
+                    entries = null;     // too large to be cached
+            }
+            _handler.entry(entry);
+        }
+    }
+
+    /**
+     * Looks up the metadata of the listed entries and hands them over in
+     * order, with at most _window lookups in flight.
+     */
+    private class Pipeline {
+        private final EsuApi _api;
+        private final String _tenant;
+        private final EntryHandler _handler;
+        private final LinkedList<Slot> _slots = new LinkedList<Slot>();
+        private int _in_flight = 0;
+
+        Pipeline(EsuApi api, String tenant, EntryHandler handler) {
+            _api = api;
+            _tenant = tenant;
+            _handler = handler;
+        }
+
+        /**
+         * @param path path of the entry
+         * @param metadata metadata of the entry, or null to look it up
+         */
+        void add(ObjectPath path, MetadataList metadata) throws IOException {
+            Slot slot = new Slot(path, metadata);
+            if (slot.metadata == null)
+                slot.metadata = _cache.get(ListingCache.cacheKey(_tenant, slot.path.toString()));
+            if (slot.metadata == null) {
+                final ObjectPath lookup_path = slot.path;
+                slot.lookup = _executor.submit(new Callable<MetadataList>() {
+                    public MetadataList call() {
+                        return fetchMetadata(_api, _tenant, lookup_path);
+                    }
+                });
+                _in_flight++;
+            }
+            _slots.add(slot);
+            // keep at most _window lookups in flight for this listing
+            while (_in_flight >= _window)
+                _in_flight -= take(_slots.removeFirst(), _handler);
+            // hand over the entries already known
+            while (!_slots.isEmpty() && ((_slots.getFirst().lookup == null) || _slots.getFirst().lookup.isDone()))
+                _in_flight -= take(_slots.removeFirst(), _handler);
+        }
+
+        void finish() throws IOException {
+            while (!_slots.isEmpty())
+                take(_slots.removeFirst(), _handler);
+        }
+
+        /**
+         * Cancels the lookups of the entries not handed over.
+         */
+        void cancel() {
+            for (Slot slot:_slots) {
+                if (slot.lookup != null)
+                    slot.lookup.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Hands over the entry of a slot, waiting for its lookup if needed.
+     * Entries which vanished in between are skipped.
+     *
+     * @return the number of lookups consumed (0 or 1)
+     */
+    private static int take(Slot slot, EntryHandler handler) throws IOException {
+        int consumed = 0;
+        if (slot.lookup != null) {
+            slot.metadata = await(slot.lookup);
+            consumed = 1;
+        }
+        if (slot.metadata != null)
+            handler.entry(new ListedEntry(slot.path, slot.metadata));
+        return consumed;
+    }
+
+    /**
+     * Reads the next page of a listing and moves the page to the following
+     * one.
+     */
+    private List<DirectoryEntry> listDirectory(EsuApi api, String tenant, ObjectPath dir, Page page) {
+        if (_bulk_metadata) {
+            try {
+                return listPage(api, tenant, dir, page, true);
+            } catch (EsuException e) {
+                if (e.getHttpCode() != 400)
+                    throw e;
+                // older Atmos does not know x-emc-include-meta: stop asking
+                _bulk_metadata = false;
+            }
+        }
+        if (_paging) {
+            try {
+                return listPage(api, tenant, dir, page, false);
+            } catch (EsuException e) {
+                if ((e.getHttpCode() != 400) || (page.token != null))
+                    throw e;
+                // nor x-emc-limit: list in a single call
+                _paging = false;
+            }
+        }
+        page.last = true;
+        return api.listDirectory(dir);
+    }
+
+    /**
+     * Reads a page, sharing the Atmos call with the concurrent listings of
+     * the same page.
+     */
+    private List<DirectoryEntry> listPage(final EsuApi api, String tenant, final ObjectPath dir, Page page, final boolean with_metadata) {
+        final String token = page.token;
+        String key = ListingCache.cacheKey(tenant, dir.toString()) + "\n" + token + "\n" + with_metadata;
+        ListedPage listed = _page_flights.execute(key, new Callable<ListedPage>() {
+            public ListedPage call() {
+                ListOptions options = new ListOptions();
+                options.setLimit(_page_size);
+                options.setToken(token);
+                if (with_metadata) {
+                    options.setIncludeMetadata(true);
+                    options.setSystemMetadata(_tags);
+                }
+                List<DirectoryEntry> entries = api.listDirectory(dir, options);
+                // the API replaces the token with the one of the next page, if any
+                return new ListedPage(entries, options.getToken());
+            }
+        });
+        page.token = listed.next_token;
+        page.last = (page.token == null) || (page.token.length() == 0);
+        return listed.entries;
+    }
+
+    private static MetadataList getEntryMetadata(DirectoryEntry dir_entry) {
+        MetadataList metadata = dir_entry.getSystemMetadata();
+        if ((metadata == null) || (metadata.getMetadata("type") == null))
+            return null;
+        return metadata;
+    }
+
+    private MetadataList fetchMetadata(final EsuApi api, String tenant, final ObjectPath path) {
+        final String key = ListingCache.cacheKey(tenant, path.toString());
+        final long generation = _cache.getGeneration(key);
+        try {
+            return _metadata_flights.execute(key + "\n" + generation, new Callable<MetadataList>() {
+                public MetadataList call() {
+                    MetadataList metadata = api.getSystemMetadata(path, _metadata_tags);
+                    _cache.put(key, metadata, generation);
+                    return metadata;
+                }
+            });
+        } catch (EsuException e) {
+            if ((e.getHttpCode() == 404) || (e.getHttpCode() == 403) || (e.getAtmosCode() == 1003))
+                return null;
+            throw e;
+        }
+    }
+
+    private static MetadataList await(Future<MetadataList> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EsuException("Interrupted while listing directory", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new EsuException("Metadata lookup failed", e);
+        }
+    }
+
+    /**
+     * @return the tags in the form of a getSystemMetadata() argument
+     */
+    static MetadataTags toMetadataTags(List<String> tags) {
+        MetadataTags metadata_tags = new MetadataTags();
+        for (String tag:tags)
+            metadata_tags.addTag(new MetadataTag(tag, false));
+        return metadata_tags;
+    }
+
+    /**
+     * An entry of a directory listing with its system metadata.
+     */
+    static class ListedEntry {
+        final ObjectPath path;
+        final MetadataList metadata;
+
+        ListedEntry(ObjectPath path, MetadataList metadata) {
+            this.path = path;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Receives the entries of a listing.
+     */
+    interface EntryHandler {
+        void entry(ListedEntry entry) throws IOException;
+    }
+
+    /**
+     * @return the statistics of the listing calls
+     */
+    String getStatistics() {
+        return _page_flights.toString();
+    }
+
+    /**
+     * A page as returned by Atmos.
+     */
+    private static class ListedPage {
+        final List<DirectoryEntry> entries;
+        final String next_token;
+
+        ListedPage(List<DirectoryEntry> entries, String next_token) {
+            this.entries = entries;
+            this.next_token = next_token;
+        }
+    }
+
+    /**
+     * Position in a paginated listing.
+     */
+    private static class Page {
+        String token = null;
+        boolean last = false;
+
+        boolean hasNext() {
+            return !last;
+        }
+    }
+
+    private static class Slot {
+        final ObjectPath path;
+        MetadataList metadata;
+        Future<MetadataList> lookup = null;
+
+        Slot(ObjectPath path, MetadataList metadata) {
+            this.path = path;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, with the bucket layout of
+ * HdrHistogram: values below 128 have their own bucket, larger values are
+ * split in 64 buckets per power of two, which keeps every value within
+ * 1.6% of its bucket.
+ *
+ * Recording is lock-free and may be done by any number of threads; it
+ * costs two atomic increments. Reading walks the 2300 buckets.
+ *
+ * @author Stephan Hadinger
+ */
+class LatencyHistogram {
+
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BITS = 6;
+    /** values up to 2^40 us (12 days) */
+    private static final int BUCKETS = LINEAR + (40 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _sum = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param micros the latency in microseconds
+     */
+    void record(long micros) {
+        micros = Math.max(0, micros);
+        _counts.incrementAndGet(indexOf(micros));
+        _sum.addAndGet(micros);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += _counts.get(i);
+        return count;
+    }
+
+    /**
+     * @return the sum of the values recorded, in microseconds
+     */
+    long sum() {
+        return _sum.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding the percentile, in
+     *      microseconds, or 0 if nothing was recorded
+     */
+    long percentile(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count:counts)
+            total += count;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return highestOf(i);
+        }
+        return highestOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return the highest value recorded, to the bucket precision
+     */
+    long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (_counts.get(i) > 0)
+                return highestOf(i);
+        }
+        return 0;
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = _counts.get(i);
+        return counts;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        // keep the 7 most significant bits: 64 sub-buckets above the leading 1
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int index = LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long highestOf(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.ObjectPath;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the children of Atmos directories with their system metadata,
+ * keyed by subtenant and directory path (see cacheKey()).
+ *
+ * Changes made through the servlet are applied to the cached listings in
+ * place (a created child is added, a deleted one removed, the metadata of
+ * a modified one dropped), and listings expire with their metadata after a
+ * time to live to pick up changes made by other Atmos clients. The memory is bounded by the total number of children cached:
+ * the least recently used listings are evicted first, and a directory larger
+ * than the whole budget is never cached.
+ *
+ * A listing read from Atmos is only stored if no change was applied to the
+ * cache while it was being read, as the change may be missing from it.
+ *
+ * All methods are thread-safe. A time to live of 0 disables the cache.
+ *
+ * @author Stephan Hadinger
+ */
+class ListingCache implements CacheCounters {
+
+    private final int _max_children;
+    private final long _ttl_ms;
+    private final LinkedHashMap<String, Listing> _map = new LinkedHashMap<String, Listing>(16, 0.75f, true);
+
+    private int _children = 0;
+    private long _version = 0;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private long _updates = 0;
+
+    /**
+     * @param max_children maximum number of children cached, all listings
+     *      together
+     * @param ttl_ms time to live of the listings in milliseconds
+     */
+    ListingCache(int max_children, long ttl_ms) {
+        _max_children = max_children;
+        _ttl_ms = ttl_ms;
+    }
+
+    /**
+     * @param dir the cache key of the directory
+     * @return the children of a directory, with a null metadata for those
+     *      changed since they were listed, or null if the listing is not
+     *      cached
+     */
+    synchronized List<DirectoryLister.ListedEntry> get(String dir) {
+        Listing listing = _map.get(dir);
+        if ((listing != null) && (listing.expires < System.currentTimeMillis())) {
+            drop(dir);
+            _evictions++;
+            listing = null;
+        }
+        if (listing == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return new ArrayList<DirectoryLister.ListedEntry>(listing.children.values());
+    }
+
+    /**
+     * @return the version to give to put() for a listing read from now on
+     */
+    synchronized long getVersion() {
+        return _version;
+    }
+
+    /**
+     * Stores a listing read from Atmos.
+     *
+     * @param dir the cache key of the directory
+     * @param children all its children, with their metadata
+     * @param version the value of getVersion() before the listing was read
+     */
+    synchronized void put(String dir, List<DirectoryLister.ListedEntry> children, long version) {
+        if ((_ttl_ms <= 0) || (version != _version) || (children.size() > _max_children))
+            return;
+        drop(dir);
+        Listing listing = new Listing(System.currentTimeMillis() + _ttl_ms);
+        for (DirectoryLister.ListedEntry child:children)
+            listing.children.put(child.path.toString(), child);
+        _map.put(dir, listing);
+        _children += children.size();
+
+        Iterator<Listing> eldest = _map.values().iterator();
+        while (_children > _max_children) {
+            _children -= eldest.next().children.size();
+            eldest.remove();
+            _evictions++;
+        }
+    }
+
+    /**
+     * Adds a child created through the servlet to the listing of its parent.
+     */
+    synchronized void added(String tenant, ObjectPath child) {
+        _version++;
+        Listing listing = _map.get(cacheKey(tenant, parentOf(child.toString())));
+        if (listing != null) {
+            if (listing.children.put(child.toString(), new DirectoryLister.ListedEntry(child, null)) == null)
+                _children++;
+            _updates++;
+        }
+    }
+
+    /**
+     * Drops the metadata of a child modified through the servlet from the
+     * listing of its parent, so that it is looked up again.
+     *
+     * @param path the Atmos path of the child
+     */
+    synchronized void changed(String tenant, String path) {
+        _version++;
+        Listing listing = _map.get(cacheKey(tenant, parentOf(path)));
+        if ((listing != null) && listing.children.containsKey(path)) {
+            DirectoryLister.ListedEntry entry = listing.children.get(path);
+            if (entry.metadata != null) {
+                listing.children.put(path, new DirectoryLister.ListedEntry(entry.path, null));
+                _updates++;
+            }
+        }
+    }
+
+    /**
+     * Removes a child deleted through the servlet from the listing of its
+     * parent.
+     */
+    synchronized void removed(String tenant, ObjectPath child) {
+        _version++;
+        Listing listing = _map.get(cacheKey(tenant, parentOf(child.toString())));
+        if ((listing != null) && (listing.children.remove(child.toString()) != null)) {
+            _children--;
+            _updates++;
+        }
+        drop(cacheKey(tenant, child.toString()));
+    }
+
+    /**
+     * Drops the listing of the parent of an object whose state is unknown,
+     * e.g. after a failed request.
+     */
+    synchronized void invalidate(String tenant, ObjectPath child) {
+        _version++;
+        drop(cacheKey(tenant, parentOf(child.toString())));
+    }
+
+    int getMaxChildren() {
+        return _max_children;
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "listing cache: listings=" + _map.size() + " children=" + _children + "/" + _max_children
+                + " hits=" + _hits + " misses=" + _misses + " evictions=" + _evictions
+                + " updates=" + _updates;
+    }
+
+    private void drop(String dir) {
+        Listing listing = _map.remove(dir);
+        if (listing != null)
+            _children -= listing.children.size();
+    }
+
+    /**
+     * Qualifies an Atmos path with the Atmos login it was read with. The
+     * paths of the caches are not unique across subtenants, and an entry
+     * must not be served to another subtenant.
+     *
+     * @param tenant the full Atmos login, "subtenant/uid"
+     * @param path the Atmos path
+     * @return the key of the path in the caches shared by all logins
+     */
+    static String cacheKey(String tenant, String path) {
+        return tenant + "\n" + path;
+    }
+
+    /**
+     * @return the path of the parent directory, with its trailing slash
+     */
+    static String parentOf(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length()-1) : path;
+        int pos = trimmed.lastIndexOf('/');
+        return trimmed.substring(0, pos+1);
+    }
+
+    private static class Listing {
+        final Map<String, DirectoryLister.ListedEntry> children = new LinkedHashMap<String, DirectoryLister.ListedEntry>();
+        final long expires;
+
+        Listing(long expires) {
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-process cache with least-recently-used eviction and a time
+ * to live on every entry.
+ *
+ * All methods are thread-safe. A time to live of 0 disables the cache:
+ * nothing is stored and every lookup is a miss.
+ *
+ * @author Stephan Hadinger
+ */
+class LruCache<K, V> implements CacheCounters {
+
+    /**
+     * Number of generation slots shared by the keys.
+     */
+    private static final int GENERATIONS = 1024;
+
+    private final String _name;
+    private final int _max_entries;
+    private final long _ttl_ms;
+    private final LinkedHashMap<K, Cached<V>> _map;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+
+    /*
+     * Generation of the keys, bumped by remove(). Keys share the slots by
+     * hash so that the memory stays bounded; a collision only makes a
+     * guarded put() be skipped.
+     */
+    private final long[] _generations = new long[GENERATIONS];
+
+    /**
+     * @param name name of the cache, used in statistics
+     * @param max_entries maximum number of entries kept
+     * @param ttl_ms time to live of the entries in milliseconds
+     */
+    LruCache(String name, int max_entries, long ttl_ms) {
+        _name = name;
+        _max_entries = max_entries;
+        _ttl_ms = ttl_ms;
+        _map = new LinkedHashMap<K, Cached<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest) {
+                if (size() > _max_entries) {
+                    _evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if absent or expired
+     */
+    synchronized V get(K key) {
+        Cached<V> entry = _map.get(key);
+        if ((entry != null) && (entry.expires < System.currentTimeMillis())) {
+            _map.remove(key);
+            _evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        if ((_ttl_ms <= 0) || (value == null))
+            return;
+        _map.put(key, new Cached<V>(value, System.currentTimeMillis() + _ttl_ms));
+    }
+
+    /**
+     * Stores a value read from the backend, unless the key was removed
+     * since the read started: the value may then predate the change.
+     *
+     * @param generation the value of getGeneration() before the value was
+     *      read
+     */
+    synchronized void put(K key, V value, long generation) {
+        if (_generations[slot(key)] == generation)
+            put(key, value);
+    }
+
+    /**
+     * @return the generation of a key, to give to put() for a value read
+     *      from now on
+     */
+    synchronized long getGeneration(K key) {
+        return _generations[slot(key)];
+    }
+
+    synchronized void remove(K key) {
+        _generations[slot(key)]++;
+        _map.remove(key);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < GENERATIONS; i++)
+            _generations[i]++;
+        _map.clear();
+    }
+
+    synchronized int size() {
+        return _map.size();
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    private static int slot(Object key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATIONS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return _name + ": size=" + _map.size() + "/" + _max_entries
+                + " hits=" + _hits + " misses=" + _misses + " evictions=" + _evictions;
+    }
+
+    private static class Cached<V> {
+        final V value;
+        final long expires;
+
+        Cached(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
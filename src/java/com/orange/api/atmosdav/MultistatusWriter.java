@@ -0,0 +1,155 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes a WebDAV multistatus document directly to an output stream.
+ *
+ * Elements are written as they are produced, in the DAV: namespace declared
+ * as default namespace on the root element, so the memory used does not
+ * depend on the number of responses. The document reaches the underlying
+ * stream whenever the 8 kB buffer fills up, and is only flushed at its end,
+ * so that a large listing is sent in large chunks rather than one write per
+ * response.
+ *
+ * @author Stephan Hadinger
+ */
+class MultistatusWriter {
+
+    private final Writer _out;
+
+    MultistatusWriter(OutputStream out) throws IOException {
+        _out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+    }
+
+    /**
+     * Writes the XML declaration and opens the multistatus element.
+     */
+    void startMultistatus() throws IOException {
+        _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<multistatus xmlns=\"DAV:\">");
+    }
+
+    /**
+     * Closes the multistatus element and flushes the document.
+     */
+    void endMultistatus() throws IOException {
+        _out.write("</multistatus>\n");
+        _out.flush();
+    }
+
+    void startResponse(String href) throws IOException {
+        _out.write("<response>");
+        element("href", href);
+    }
+
+    void endResponse() throws IOException {
+        _out.write("</response>");
+    }
+
+    void startPropstat() throws IOException {
+        _out.write("<propstat><prop>");
+    }
+
+    void endPropstat(String status) throws IOException {
+        _out.write("</prop>");
+        element("status", status);
+        _out.write("</propstat>");
+    }
+
+    /**
+     * Writes an element with a text content, or an empty element if the
+     * content is null.
+     */
+    void element(String name, String content) throws IOException {
+        if (content == null) {
+            emptyElement(name);
+            return;
+        }
+        _out.write('<');
+        _out.write(name);
+        _out.write('>');
+        escape(content);
+        _out.write("</");
+        _out.write(name);
+        _out.write('>');
+    }
+
+    void emptyElement(String name) throws IOException {
+        _out.write('<');
+        _out.write(name);
+        _out.write("/>");
+    }
+
+    /**
+     * Writes an empty element of another namespace than DAV:, declared as
+     * its default namespace.
+     */
+    void emptyElement(String namespace, String name) throws IOException {
+        _out.write('<');
+        _out.write(name);
+        _out.write(" xmlns=\"");
+        escape(namespace);
+        _out.write("\"/>");
+    }
+
+    void startElement(String name) throws IOException {
+        _out.write('<');
+        _out.write(name);
+        _out.write('>');
+    }
+
+    void endElement(String name) throws IOException {
+        _out.write("</");
+        _out.write(name);
+        _out.write('>');
+    }
+
+    private void escape(String text) throws IOException {
+        int start = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            String entity;
+            switch (c) {
+                case '<': entity = "&lt;"; break;
+                case '>': entity = "&gt;"; break;
+                case '&': entity = "&amp;"; break;
+                case '"': entity = "&quot;"; break;
+                case '\r': entity = "&#x0D;"; break;
+                case '\t': case '\n': continue;
+                default:
+                    if (c >= 0x20)
+                        continue;
+                    entity = "\uFFFD";     // not allowed in XML 1.0
+            }
+            _out.write(text, start, i - start);
+            _out.write(entity);
+            start = i + 1;
+        }
+        _out.write(text, start, len - start);
+    }
+}
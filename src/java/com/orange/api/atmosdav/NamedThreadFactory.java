@@ -0,0 +1,47 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named "atmosdav-&lt;name&gt;-&lt;n&gt;", so that the
+ * servlet worker pools are easy to spot in a thread dump and never prevent
+ * the container from stopping.
+ *
+ * @author Stephan Hadinger
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String _prefix;
+    private final AtomicInteger _count = new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+        _prefix = "atmosdav-" + name + "-";
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, _prefix + _count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.Identifier;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a byte range of an Atmos object with concurrent extent reads
+ * issued ahead of the client.
+ *
+ * The range is split in blocks which are read in parallel and written to the
+ * output stream in order. A new block is only requested once the oldest one
+ * has been written, so that at most "window" bytes are buffered per download
+ * whatever the speed of the client.
+ *
+ * Every block read ahead also takes a permit of a budget shared by all the
+ * downloads, given back once the block is written, so that the memory held
+ * by read-ahead stays bounded whatever the number of concurrent GETs. A
+ * download finding the budget exhausted with no block of its own in flight
+ * reads its next block sequentially, from the request thread.
+ *
+ * @author Stephan Hadinger
+ */
+class ReadAheadDownloader {
+
+    private final ExecutorService _executor;
+    private final int _block_size;
+    private final int _max_blocks;
+    private final Semaphore _blocks;
+    private final AtomicLong _sequential_reads = new AtomicLong();
+
+    /**
+     * @param executor executor running the extent reads
+     * @param block_size size of each extent read
+     * @param window maximum number of bytes read ahead for a single download
+     * @param max_blocks maximum number of blocks read ahead by all the downloads
+     */
+    ReadAheadDownloader(ExecutorService executor, int block_size, long window, int max_blocks) {
+        _executor = executor;
+        _block_size = block_size;
+        _max_blocks = (int) Math.max(1, window / block_size);
+        _blocks = new Semaphore(max_blocks);
+    }
+
+    /**
+     * @return the number of blocks read without read-ahead, for lack of budget
+     */
+    long getSequentialReads() {
+        return _sequential_reads.get();
+    }
+
+    /**
+     * Copies bytes start to end (inclusive) of an object to a stream.
+     *
+     * @param api the Atmos REST API object
+     * @param obj_id the Atmos path or ObjectId of the object
+     * @param start offset of the first byte
+     * @param end offset of the last byte, which must exist
+     * @param out stream to write to
+     */
+    void download(final EsuApi api, final Identifier obj_id, long start, long end, OutputStream out) throws IOException {
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        long next = start;      // offset of the next block to request
+        long written = start;
+
+        try {
+            while (written <= end) {
+                while ((pending.size() < _max_blocks) && (next <= end) && _blocks.tryAcquire()) {
+                    final Extent extent = new Extent(next, Math.min(_block_size, end - next + 1));
+                    pending.add(_executor.submit(new Callable<byte[]>() {
+                        public byte[] call() {
+                            return api.readObject(obj_id, extent, null);
+                        }
+                    }));
+                    next += extent.getSize();
+                }
+
+                long expected = Math.min(_block_size, end - written + 1);
+                boolean read_ahead = !pending.isEmpty();
+                try {
+                    byte[] data;
+                    if (read_ahead) {
+                        data = await(pending.removeFirst());
+                    } else {
+                        _sequential_reads.incrementAndGet();
+                        data = api.readObject(obj_id, new Extent(written, expected), null);
+                        next += expected;
+                    }
+                    if ((data == null) || (data.length < expected))
+                        throw new IOException("Unexpected end of object at offset " + written);
+                    out.write(data, 0, (int) expected);
+                    written += expected;
+                } finally {
+                    if (read_ahead)
+                        _blocks.release();
+                }
+            }
+        } finally {
+            for (Future<byte[]> future:pending)
+                future.cancel(true);
+            _blocks.release(pending.size());
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new EsuException("Extent read failed", e);
+        }
+    }
+}
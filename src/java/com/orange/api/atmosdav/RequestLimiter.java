@@ -0,0 +1,106 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of requests processed at the same time.
+ *
+ * A request waits at most queue_timeout for a slot; past that it is refused
+ * so that the client can retry later, instead of holding a container thread
+ * while Atmos is slow. The container threads left over stay available for
+ * the requests which do not reach Atmos.
+ *
+ * @author Stephan Hadinger
+ */
+class RequestLimiter {
+
+    private final int _max_active;
+    private final long _queue_timeout_ms;
+    private final Semaphore _slots;
+
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _peak = new AtomicInteger();
+    private final AtomicLong _admitted = new AtomicLong();
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+
+    /**
+     * @param max_active maximum number of requests processed at the same time
+     * @param queue_timeout_ms maximum wait for a slot
+     */
+    RequestLimiter(int max_active, long queue_timeout_ms) {
+        _max_active = max_active;
+        _queue_timeout_ms = queue_timeout_ms;
+        _slots = new Semaphore(max_active, true);
+    }
+
+    /**
+     * Waits for a slot. Each successful call must be followed by release().
+     *
+     * @return false if no slot was freed in time
+     */
+    boolean acquire() {
+        if (!_slots.tryAcquire()) {
+            _queued.incrementAndGet();
+            boolean acquired = false;
+            try {
+                acquired = _slots.tryAcquire(_queue_timeout_ms, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                _rejected.incrementAndGet();
+                return false;
+            }
+        }
+        _admitted.incrementAndGet();
+        int active = _active.incrementAndGet();
+        int peak = _peak.get();
+        while ((active > peak) && !_peak.compareAndSet(peak, active))
+            peak = _peak.get();
+        return true;
+    }
+
+    void release() {
+        _active.decrementAndGet();
+        _slots.release();
+    }
+
+    int getActive() {
+        return _active.get();
+    }
+
+    long getRejected() {
+        return _rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests: active=" + _active.get() + "/" + _max_active + " peak=" + _peak.get()
+                + " admitted=" + _admitted.get() + " queued=" + _queued.get()
+                + " rejected=" + _rejected.get();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls.
+ *
+ * The first caller for a key runs the call in its own thread; the callers
+ * arriving with the same key while it is in flight wait for it and share its
+ * result, or its exception. Nothing is kept once the call is over, caching
+ * the results is left to the caller.
+ *
+ * @author Stephan Hadinger
+ */
+class SingleFlight<K, V> {
+
+    private final String _name;
+    private final ConcurrentHashMap<K, FutureTask<V>> _in_flight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _collapsed = new AtomicLong();
+
+    /**
+     * @param name name used in statistics
+     */
+    SingleFlight(String name) {
+        _name = name;
+    }
+
+    /**
+     * Runs the call, unless the same key is already in flight in which case
+     * its result is awaited.
+     *
+     * @param key identifies the call
+     * @param call the Atmos call, returning null is allowed
+     * @return the result of the call
+     */
+    V execute(K key, Callable<V> call) {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = _in_flight.putIfAbsent(key, task);
+        if (running == null) {
+            _calls.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                _in_flight.remove(key, task);
+            }
+            running = task;
+        } else {
+            _collapsed.incrementAndGet();
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EsuException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new EsuException("Call failed for " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of calls actually made
+     */
+    long getCalls() {
+        return _calls.get();
+    }
+
+    /**
+     * @return the number of calls which shared the result of another one
+     */
+    long getCollapsed() {
+        return _collapsed.get();
+    }
+
+    @Override
+    public String toString() {
+        return _name + ": calls=" + _calls.get() + " collapsed=" + _collapsed.get();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Metadata;
+import com.emc.esu.api.ObjectPath;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks an Atmos directory tree breadth first, for Depth: infinity PROPFIND.
+ *
+ * Up to "parallelism" directories of a walk are listed at the same time on
+ * a shared bounded executor. The entries found are queued and handed over
+ * from the calling thread as they arrive, so the order follows the listing
+ * progress rather than the tree. The walk stops descending below max_depth
+ * and stops altogether after max_entries entries.
+ *
+ * The listings never wait for the client: a walk queues at most one entry
+ * more than max_entries, which bounds its memory, and a slow client only
+ * delays the listing of the subdirectories it has not received yet. A walk
+ * whose client is blocked therefore holds no listing thread.
+ *
+ * @author Stephan Hadinger
+ */
+class TreeWalker {
+
+    private final ExecutorService _executor;
+    private final DirectoryLister _lister;
+    private final int _parallelism;
+    private final int _max_depth;
+    private final int _max_entries;
+
+    /**
+     * @param executor executor running the directory listings
+     * @param lister lists one directory
+     * @param parallelism maximum number of directories listed at the same
+     *      time for a single walk
+     * @param max_depth maximum depth of the entries, the children of the
+     *      root being at depth 1
+     * @param max_entries maximum number of entries of a single walk
+     */
+    TreeWalker(ExecutorService executor, DirectoryLister lister, int parallelism, int max_depth, int max_entries) {
+        _executor = executor;
+        _lister = lister;
+        _parallelism = Math.max(1, parallelism);
+        _max_depth = Math.max(1, max_depth);
+        _max_entries = Math.max(1, max_entries);
+    }
+
+    /**
+     * Hands over all the entries below a directory, up to the configured
+     * depth and number of entries.
+     *
+     * @param api the Atmos REST API object
+     * @param tenant the full Atmos login of api, qualifying the cache keys
+     * @param root the Atmos path of the directory
+     * @param handler receives the entries, from the calling thread
+     * @return false if the walk stopped at max_entries
+     */
+    boolean walk(EsuApi api, String tenant, ObjectPath root, DirectoryLister.EntryHandler handler) throws IOException {
+        Walk walk = new Walk(_max_entries + 1);
+        LinkedList<Directory> pending = new LinkedList<Directory>();
+        LinkedList<Future<?>> listings = new LinkedList<Future<?>>();
+        int running = 0;
+        int count = 0;
+
+        pending.add(new Directory(root, 1));
+        try {
+            while ((running > 0) || !pending.isEmpty()) {
+                while ((running < _parallelism) && !pending.isEmpty()) {
+                    listings.add(_executor.submit(new Listing(api, tenant, pending.removeFirst(), walk)));
+                    running++;
+                }
+
+                Object item;
+                try {
+                    item = walk.queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while walking " + root);
+                }
+                if (item instanceof Directory) {
+                    running--;      // end of a listing
+                } else if (item instanceof Found) {
+                    Found found = (Found) item;
+                    if (count == _max_entries)
+                        return false;       // only queued beyond max_entries
+                    handler.entry(found.entry);
+                    count++;
+                    if ((found.depth < _max_depth) && isDirectory(found.entry))
+                        pending.add(new Directory(found.entry.path, found.depth + 1));
+                } else if (item instanceof RuntimeException) {
+                    throw (RuntimeException) item;
+                } else {
+                    throw new EsuException("Listing failed", (Throwable) item);
+                }
+            }
+            return true;
+        } finally {
+            walk.aborted = true;
+            for (Future<?> listing:listings)
+                listing.cancel(true);
+        }
+    }
+
+    private static boolean isDirectory(DirectoryLister.ListedEntry entry) {
+        Metadata type = entry.metadata.getMetadata("type");
+        return (type != null) && "directory".equals(type.getValue());
+    }
+
+    /**
+     * State shared by the listings of one walk.
+     */
+    private static class Walk {
+        final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+        final AtomicInteger found = new AtomicInteger();
+        final int max_found;
+        volatile boolean aborted = false;
+
+        Walk(int max_found) {
+            this.max_found = max_found;
+        }
+
+        /**
+         * Queues an entry, unless the walk was abandoned or already has
+         * all the entries it can return.
+         *
+         * @throws InterruptedIOException to stop the listing
+         */
+        void found(Found item) throws InterruptedIOException {
+            if (aborted || (found.incrementAndGet() > max_found))
+                throw new InterruptedIOException();
+            queue.add(item);
+        }
+
+        /**
+         * Queues the end of a listing or its failure.
+         */
+        void put(Object item) {
+            if (!aborted)
+                queue.add(item);
+        }
+    }
+
+    private static class Directory {
+        final ObjectPath path;
+        final int depth;
+
+        Directory(ObjectPath path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    private static class Found {
+        final DirectoryLister.ListedEntry entry;
+        final int depth;
+
+        Found(DirectoryLister.ListedEntry entry, int depth) {
+            this.entry = entry;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Lists one directory into the queue of the walk, then queues the
+     * directory itself to mark the end of the listing.
+     */
+    private class Listing implements Runnable {
+        private final EsuApi _api;
+        private final String _tenant;
+        private final Directory _dir;
+        private final Walk _walk;
+
+        Listing(EsuApi api, String tenant, Directory dir, Walk walk) {
+            _api = api;
+            _tenant = tenant;
+            _dir = dir;
+            _walk = walk;
+        }
+
+        public void run() {
+            try {
+                _lister.list(_api, _tenant, _dir.path, new DirectoryLister.EntryHandler() {
+                    public void entry(DirectoryLister.ListedEntry entry) throws IOException {
+                        _walk.found(new Found(entry, _dir.depth));
+                    }
+                });
+                _walk.put(_dir);
+            } catch (InterruptedIOException e) {
+                // walk abandoned or complete
+                _walk.put(_dir);
+            } catch (EsuException e) {
+                // a subdirectory removed since it was listed is skipped
+                boolean vanished = (_dir.depth > 1)
+                        && ((e.getHttpCode() == 404) || (e.getAtmosCode() == 1003));
+                _walk.put(vanished ? (Object) _dir : e);
+            } catch (Throwable e) {
+                _walk.put(e);
+            }
+        }
+    }
+}
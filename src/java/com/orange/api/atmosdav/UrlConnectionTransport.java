@@ -0,0 +1,204 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.rest.EsuRestApi;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * The default transport: EsuRestApi over the JVM HttpURLConnection, whose
+ * keep-alive cache reuses the connections to the Atmos endpoint.
+ *
+ * The keep-alive cache does not limit the number of open connections, so
+ * every Atmos call goes through a semaphore allowing at most
+ * atmos_max_connections concurrent calls, each using one connection; this
+ * also gives the occupancy figures. A call waiting longer than
+ * atmos_acquire_timeout for its turn fails with a 503.
+ *
+ * EsuRestApi opens its connections itself, so no timeout can be set on
+ * them from here. The HttpURLConnection system properties are not set
+ * either: they are shared by every application of the JVM, and most are
+ * only read once. Socket timeouts, if needed, belong to the JVM command
+ * line (sun.net.client.defaultConnectTimeout and defaultReadTimeout).
+ * Instead, each call runs on a thread of its own and the caller waits at
+ * most atmos_call_timeout for it: a call still running then is abandoned
+ * and fails with a 504, and its connection permit is given back, so that a
+ * hung Atmos call cannot hold a permit forever.
+ *
+ * @author Stephan Hadinger
+ */
+public class UrlConnectionTransport implements AtmosTransport {
+
+    /*
+     * Name of the Servlet parameters of the transport
+     */
+    private static String MAX_CONNECTIONS_PARAM = "atmos_max_connections";
+    private static String ACQUIRE_TIMEOUT_PARAM = "atmos_acquire_timeout";
+    private static String CALL_TIMEOUT_PARAM = "atmos_call_timeout";
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+    private static final int DEFAULT_ACQUIRE_TIMEOUT = 10000;     // ms
+    private static final int DEFAULT_CALL_TIMEOUT = 120000;       // ms
+
+    private String _host;
+    private int _port;
+    private int _max_connections;
+    private long _acquire_timeout;
+    private long _call_timeout;
+    private Semaphore _connections;
+    private ExecutorService _callers;
+
+    private final AtomicInteger _in_use = new AtomicInteger();
+    private final AtomicInteger _peak = new AtomicInteger();
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _waits = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _call_timeouts = new AtomicLong();
+
+    public void init(String host, int port, ServletConfig config) throws ServletException {
+        _host = host;
+        _port = port;
+        _max_connections = getIntParameter(config, MAX_CONNECTIONS_PARAM, DEFAULT_MAX_CONNECTIONS);
+        _acquire_timeout = getIntParameter(config, ACQUIRE_TIMEOUT_PARAM, DEFAULT_ACQUIRE_TIMEOUT);
+        _call_timeout = getIntParameter(config, CALL_TIMEOUT_PARAM, DEFAULT_CALL_TIMEOUT);
+        _connections = new Semaphore(_max_connections, true);
+        _callers = Executors.newCachedThreadPool(new NamedThreadFactory("atmos"));
+    }
+
+    public EsuApi createApi(String uid, String secret) {
+        final EsuApi api = new EsuRestApi(_host, _port, uid, secret);
+        return (EsuApi) Proxy.newProxyInstance(EsuApi.class.getClassLoader(),
+                new Class[] { EsuApi.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class)
+                    return method.invoke(api, args);
+                acquire();
+                try {
+                    return call(api, method, args);
+                } finally {
+                    release();
+                }
+            }
+        });
+    }
+
+    public String getStatistics() {
+        return "atmos connections: in use=" + _in_use.get() + "/" + _max_connections
+                + " peak=" + _peak.get() + " calls=" + _calls.get()
+                + " waits=" + _waits.get() + " timeouts=" + _timeouts.get()
+                + " call timeouts=" + _call_timeouts.get();
+    }
+
+    public void destroy() {
+        // idle connections are closed by the JVM keep-alive cache
+        _callers.shutdownNow();
+    }
+
+    /**
+     * @return the number of Atmos calls in progress
+     */
+    int getInUse() {
+        return _in_use.get();
+    }
+
+    private void acquire() {
+        _calls.incrementAndGet();
+        if (!_connections.tryAcquire()) {
+            _waits.incrementAndGet();
+            boolean acquired = false;
+            try {
+                acquired = _connections.tryAcquire(_acquire_timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                _timeouts.incrementAndGet();
+                throw new EsuException("No Atmos connection available", 503, 0);
+            }
+        }
+        int in_use = _in_use.incrementAndGet();
+        int peak = _peak.get();
+        while ((in_use > peak) && !_peak.compareAndSet(peak, in_use))
+            peak = _peak.get();
+    }
+
+    /**
+     * Runs an Atmos call on a thread of the callers pool, waiting at most
+     * the call timeout for its result.
+     */
+    private Object call(final EsuApi api, final Method method, final Object[] args) throws Throwable {
+        Future<Object> future = _callers.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return method.invoke(api, args);
+            }
+        });
+        try {
+            return future.get(_call_timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof InvocationTargetException) ? cause.getCause() : cause;
+        } catch (TimeoutException e) {
+            // the thread stays blocked until the connection fails, the permit does not
+            future.cancel(true);
+            _call_timeouts.incrementAndGet();
+            throw new EsuException("Atmos call timed out", 504, 0);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new EsuException("Interrupted while waiting for Atmos", e);
+        }
+    }
+
+    private void release() {
+        _in_use.decrementAndGet();
+        _connections.release();
+    }
+
+    private static int getIntParameter(ServletConfig config, String name, int default_value) throws ServletException {
+        String value_str = config.getInitParameter(name);
+        if (value_str == null)
+            return default_value;
+        try {
+            int value = Integer.parseInt(value_str.trim());
+            if (value > 0)
+                return value;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ServletException(name+" parameter incorrect:"+value_str);
+    }
+}
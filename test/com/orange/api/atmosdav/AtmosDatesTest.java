@@ -0,0 +1,100 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks AtmosDates against SimpleDateFormat, which it replaces.
+ *
+ * @author Stephan Hadinger
+ */
+public class AtmosDatesTest {
+
+    private static final long DAY = 86400000L;
+
+    private static SimpleDateFormat format(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    @Test
+    public void epoch() throws Exception {
+        assertEquals(0, AtmosDates.parse("1970-01-01T00:00:00Z"));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", AtmosDates.format(0));
+        assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", AtmosDates.format(-1000));
+    }
+
+    @Test
+    public void toHttp() throws Exception {
+        assertEquals("Mon, 21 Jun 2010 14:03:52 GMT", AtmosDates.toHttp("2010-06-21T14:03:52Z"));
+        // rendered from the table the second time
+        assertEquals("Mon, 21 Jun 2010 14:03:52 GMT", AtmosDates.toHttp("2010-06-21T14:03:52Z"));
+        assertEquals("Wed, 29 Feb 2012 12:00:00 GMT", AtmosDates.toHttp("2012-02-29T12:00:00Z"));
+        assertEquals("Fri, 31 Dec 1999 23:59:59 GMT", AtmosDates.toHttp("1999-12-31T23:59:59Z"));
+    }
+
+    @Test
+    public void leapYears() throws Exception {
+        assertEquals(DAY, AtmosDates.parse("2000-03-01T00:00:00Z") - AtmosDates.parse("2000-02-29T00:00:00Z"));
+        assertEquals(DAY, AtmosDates.parse("2100-03-01T00:00:00Z") - AtmosDates.parse("2100-02-28T00:00:00Z"));
+        assertEquals(2 * DAY, AtmosDates.parse("2012-03-01T00:00:00Z") - AtmosDates.parse("2012-02-28T00:00:00Z"));
+    }
+
+    @Test
+    public void sameAsSimpleDateFormat() throws Exception {
+        SimpleDateFormat atmos = format("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        SimpleDateFormat http = format("EEE, dd MMM yyyy HH:mm:ss zzz");
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            // seconds from 1970 to 2100
+            long millis = (random.nextLong() & Long.MAX_VALUE) % (130 * 365 * DAY) / 1000 * 1000;
+            String atmos_date = atmos.format(new Date(millis));
+            assertEquals(atmos_date, millis, AtmosDates.parse(atmos_date));
+            assertEquals(atmos_date, http.format(new Date(millis)), AtmosDates.format(millis));
+            assertEquals(atmos_date, http.format(new Date(millis)), AtmosDates.toHttp(atmos_date));
+        }
+    }
+
+    @Test
+    public void invalidDates() {
+        String[] dates = { null, "", "2010-06-21", "2010-06-21 14:03:52Z", "2010-06-21T14:03:52",
+                           "2010-06-21T14:03:52+0000", "2010-13-01T00:00:00Z", "2010-00-01T00:00:00Z",
+                           "2010-06-00T00:00:00Z", "2010-06-21T24:00:00Z", "2010-06-21T14:60:00Z",
+                           "2010-06-2xT14:03:52Z", "20a0-06-21T14:03:52Z" };
+        for (String date:dates) {
+            try {
+                AtmosDates.parse(date);
+                fail(date);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.net.URLDecoder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class AtmosPathCodecTest {
+
+    @Test
+    public void safePathsAreNotCopied() {
+        String path = "/dir/file-name_1.txt";
+        assertSame(path, AtmosPathCodec.encode(path));
+        assertSame(path, AtmosPathCodec.decode(path));
+        assertEquals("/prefix" + path, AtmosPathCodec.encode("/prefix", path));
+    }
+
+    @Test
+    public void encode() {
+        assertEquals("/a%2520b", AtmosPathCodec.encode("/a b"));
+        assertEquals("/a%252Bb", AtmosPathCodec.encode("/a+b"));
+        assertEquals("/100%25", AtmosPathCodec.encode("/100%"));
+        assertEquals("/%25C3%25A9t%25C3%25A9", AtmosPathCodec.encode("/\u00e9t\u00e9"));
+        assertEquals("/%25E2%2582%25AC", AtmosPathCodec.encode("/\u20ac"));
+        assertEquals("/%25F0%259F%2598%2580", AtmosPathCodec.encode("/\ud83d\ude00"));
+        assertEquals("/prefix/a%2520b", AtmosPathCodec.encode("/prefix", "/a b"));
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() {
+        assertEquals("/%253Fa", AtmosPathCodec.encode("/\ud83da"));
+        assertEquals("/%253F", AtmosPathCodec.encode("/\ude00"));
+    }
+
+    @Test
+    public void decode() {
+        assertEquals("/a b", AtmosPathCodec.decode("/a+b"));
+        assertEquals("/a b", AtmosPathCodec.decode("/a%20b"));
+        assertEquals("/\u00e9t\u00e9", AtmosPathCodec.decode("/%C3%A9t%c3%a9"));
+        assertEquals("/\ud83d\ude00", AtmosPathCodec.decode("/%F0%9F%98%80"));
+    }
+
+    @Test
+    public void encodedNamesAreDecodedTwice() {
+        String[] paths = { "/a b", "/a+b", "/\u00e9t\u00e9 \u20ac", "/\ud83d\ude00", "/?#&=;:@" };
+        for (String path:paths)
+            assertEquals(path, AtmosPathCodec.decode(AtmosPathCodec.decode(AtmosPathCodec.encode(path))));
+    }
+
+    @Test
+    public void sameAsUrlDecoder() throws Exception {
+        String[] paths = { "/a%2520b", "/%25C3%25A9+x", "/%E2%82%AC", "/%41%42%43" };
+        for (String path:paths)
+            assertEquals(path, URLDecoder.decode(path, "UTF-8"), AtmosPathCodec.decode(path));
+    }
+
+    @Test
+    public void invalidUtf8IsReplaced() {
+        assertEquals("/\ufffd", AtmosPathCodec.decode("/%C3"));
+        assertEquals("/\ufffdx", AtmosPathCodec.decode("/%C3x"));
+        assertEquals("/\ufffd", AtmosPathCodec.decode("/%C0%AF"));          // overlong
+        assertEquals("/\ufffd", AtmosPathCodec.decode("/%ED%A0%80"));       // surrogate
+        assertEquals("/\ufffd", AtmosPathCodec.decode("/%F4%90%80%80"));    // above U+10FFFF
+        assertEquals("/\ufffd\ufffd", AtmosPathCodec.decode("/%80%FF"));
+    }
+
+    @Test
+    public void invalidEscapes() {
+        String[] paths = { "/%", "/%4", "/%zz", "/%4g" };
+        for (String path:paths) {
+            try {
+                AtmosPathCodec.decode(path);
+                fail(path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void longPaths() {
+        StringBuilder path = new StringBuilder("/");
+        for (int i = 0; i < 5000; i++)
+            path.append('\u00e9');
+        String encoded = AtmosPathCodec.encode(path.toString());
+        assertEquals(1 + 5000 * 10, encoded.length());
+        assertEquals(path.toString(), AtmosPathCodec.decode(AtmosPathCodec.decode(encoded)));
+        // the buffer of the thread still works after a long path
+        assertEquals("/a%2520b", AtmosPathCodec.encode("/a b"));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectPath;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class ChunkedUploaderTest {
+
+    private static final int CHUNK_SIZE = 10;
+    private static final ObjectPath PATH = new ObjectPath("/dir/object");
+
+    private InMemoryAtmos _store;
+    private ExecutorService _executor;
+    private BufferPool _pool;
+    private ChunkedUploader _uploader;
+
+    @Before
+    public void setUp() {
+        _store = new InMemoryAtmos(0);
+        _store.mkdir("/dir/");
+        _executor = Executors.newFixedThreadPool(4);
+        _pool = new BufferPool(CHUNK_SIZE, 8);
+        _uploader = new ChunkedUploader(_executor, _pool, 3, 50);
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private boolean exists(ObjectPath path) {
+        try {
+            _store.systemMetadata(path);
+            return true;
+        } catch (EsuException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wraps the store, calling "hook" before each chunk write.
+     */
+    private EsuApi intercept(final ChunkHook hook) {
+        final EsuApi api = _store.api();
+        return (EsuApi) ServletHarness.proxy(EsuApi.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("updateObjectFromSegment"))
+                    hook.before((Extent) args[3]);
+                try {
+                    return method.invoke(api, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    private interface ChunkHook {
+        void before(Extent extent) throws Exception;
+    }
+
+    @Test
+    public void uploadsInChunks() throws Exception {
+        byte[] content = content(95);
+        ObjectId id = _uploader.upload(_store.api(), PATH, new ByteArrayInputStream(content));
+        assertNotNull(id);
+        assertTrue(Arrays.equals(content, _store.read(PATH, null)));
+        assertTrue(Arrays.equals(content, _store.read(id, null)));
+        assertEquals(0, _pool.getInUse());
+    }
+
+    @Test
+    public void uploadsBodiesOfAnySize() throws Exception {
+        int[] sizes = { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE };
+        for (int size:sizes) {
+            ObjectPath path = new ObjectPath("/dir/object" + size);
+            byte[] content = content(size);
+            _uploader.upload(_store.api(), path, new ByteArrayInputStream(content));
+            assertTrue("size " + size, Arrays.equals(content, _store.read(path, null)));
+        }
+        assertEquals(0, _pool.getInUse());
+    }
+
+    @Test
+    public void chunksCompletingOutOfOrder() throws Exception {
+        // the later chunks are written first
+        EsuApi api = intercept(new ChunkHook() {
+            public void before(Extent extent) throws Exception {
+                Thread.sleep(Math.max(0, 20 - extent.getOffset() / CHUNK_SIZE * 5));
+            }
+        });
+        byte[] content = content(95);
+        _uploader.upload(api, PATH, new ByteArrayInputStream(content));
+        assertTrue(Arrays.equals(content, _store.read(PATH, null)));
+    }
+
+    @Test
+    public void failedChunkDeletesTheObject() throws Exception {
+        final EsuException failure = new EsuException("failed", 500, 1001);
+        EsuApi api = intercept(new ChunkHook() {
+            public void before(Extent extent) {
+                if (extent.getOffset() == 3 * CHUNK_SIZE)
+                    throw failure;
+            }
+        });
+        try {
+            _uploader.upload(api, PATH, new ByteArrayInputStream(content(95)));
+            fail();
+        } catch (EsuException e) {
+            assertSame(failure, e);
+        }
+        assertFalse(exists(PATH));
+        assertEquals(0, _pool.getInUse());
+    }
+
+    @Test
+    public void failedBodyDeletesTheObject() throws Exception {
+        InputStream in = new InputStream() {
+            private int _read = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (_read++ >= 25)
+                    throw new IOException("connection reset");
+                return 'x';
+            }
+        };
+        try {
+            _uploader.upload(_store.api(), PATH, in);
+            fail();
+        } catch (IOException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+        assertFalse(exists(PATH));
+        assertEquals(0, _pool.getInUse());
+    }
+
+    @Test
+    public void noBufferFailsWith503() throws Exception {
+        byte[][] taken = new byte[8][];
+        for (int i = 0; i < taken.length; i++)
+            taken[i] = _pool.tryAcquire(0);
+        assertNull(_pool.tryAcquire(0));
+        try {
+            _uploader.upload(_store.api(), PATH, new ByteArrayInputStream(content(95)));
+            fail();
+        } catch (EsuException e) {
+            assertEquals(503, e.getHttpCode());
+        }
+        assertFalse(exists(PATH));
+        for (byte[] buffer:taken)
+            _pool.release(buffer);
+        assertEquals(0, _pool.getInUse());
+    }
+
+    @Test
+    public void existingObjectIsKept() throws Exception {
+        _store.put(PATH.toString(), "existing".getBytes());
+        try {
+            _uploader.upload(_store.api(), PATH, new ByteArrayInputStream(content(95)));
+            fail();
+        } catch (EsuException e) {
+            assertEquals(1016, e.getAtmosCode());
+        }
+        assertEquals("existing", new String(_store.read(PATH, null)));
+        assertEquals(0, _pool.getInUse());
+    }
+}
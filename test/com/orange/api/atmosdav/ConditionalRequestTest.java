@@ -0,0 +1,212 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.ObjectPath;
+import java.util.Date;
+import java.util.HashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conditional GET, HEAD and PUT requests, and that the requests
+ * answered from the metadata alone do not read the object content.
+ *
+ * @author Stephan Hadinger
+ */
+public class ConditionalRequestTest {
+
+    private static final String URI = "/file.txt";
+    private static final long HOUR = 3600 * 1000L;
+
+    private InMemoryAtmos _store;
+    private ServletHarness _harness;
+    private String _etag;
+    private String _last_modified;
+
+    @Before
+    public void setUp() throws Exception {
+        _store = new InMemoryAtmos(0);
+        _store.put(ServletHarness.PREFIX + URI, "content".getBytes());
+        _harness = new ServletHarness(_store, new HashMap<String, String>());
+
+        ServletHarness.Response response = _harness.service("HEAD", URI, null);
+        assertEquals(200, response.status);
+        _etag = response.headers.get("ETag");
+        _last_modified = response.headers.get("Last-Modified");
+        assertNotNull(_etag);
+        assertNotNull(_last_modified);
+    }
+
+    @After
+    public void tearDown() {
+        _harness.destroy();
+    }
+
+    private ServletHarness.Response get(String... headers) throws Exception {
+        return _harness.service("GET", URI, null, headers);
+    }
+
+    private static String hoursFromNow(int hours) {
+        return ServletHarness.httpDateFormat().format(new Date(System.currentTimeMillis() + hours * HOUR));
+    }
+
+    @Test
+    public void headReadsNoContent() throws Exception {
+        ServletHarness.Response response = _harness.service("HEAD", URI, null);
+        assertEquals(200, response.status);
+        assertEquals("7", response.headers.get("Content-Length"));
+        assertNotNull(response.headers.get("ETag"));
+        assertNotNull(response.headers.get("Last-Modified"));
+        assertEquals(0, response.bytes);
+        assertEquals(0, _store.reads.get());
+    }
+
+    @Test
+    public void ifNoneMatch() throws Exception {
+        ServletHarness.Response response = get("If-None-Match", _etag);
+        assertEquals(304, response.status);
+        assertEquals(_etag, response.headers.get("ETag"));
+        assertEquals(0, response.bytes);
+
+        // If-None-Match uses the weak comparison
+        assertTrue(_etag.startsWith("W/\""));
+        assertEquals(304, get("If-None-Match", "\"other\", " + _etag.substring(2)).status);
+        assertEquals(304, get("If-None-Match", "*").status);
+        assertEquals(304, _harness.service("HEAD", URI, null, "If-None-Match", _etag).status);
+        assertEquals(0, _store.reads.get());
+
+        response = get("If-None-Match", "\"other\"");
+        assertEquals(200, response.status);
+        assertEquals(7, response.bytes);
+    }
+
+    @Test
+    public void ifMatch() throws Exception {
+        ServletHarness.Response response = get("If-Match", "\"other\"");
+        assertEquals(412, response.status);
+        assertEquals(0, _store.reads.get());
+
+        // If-Match uses the strong comparison, which a weak tag never satisfies
+        assertEquals(412, get("If-Match", _etag).status);
+        assertEquals(412, get("If-Match", "\"other\", " + _etag.substring(2)).status);
+        assertEquals(200, get("If-Match", "*").status);
+    }
+
+    @Test
+    public void ifModifiedSince() throws Exception {
+        assertEquals(304, get("If-Modified-Since", _last_modified).status);
+        assertEquals(304, get("If-Modified-Since", hoursFromNow(1)).status);
+        assertEquals(0, _store.reads.get());
+
+        assertEquals(200, get("If-Modified-Since", hoursFromNow(-1)).status);
+        assertEquals(200, get("If-Modified-Since", "not a date").status);
+    }
+
+    @Test
+    public void ifUnmodifiedSince() throws Exception {
+        assertEquals(412, get("If-Unmodified-Since", hoursFromNow(-1)).status);
+        assertEquals(0, _store.reads.get());
+        assertEquals(200, get("If-Unmodified-Since", _last_modified).status);
+    }
+
+    @Test
+    public void ifMatchIsCheckedBeforeIfNoneMatch() throws Exception {
+        assertEquals(412, get("If-Match", "\"other\"", "If-None-Match", _etag).status);
+    }
+
+    @Test
+    public void ifMatchOverridesIfUnmodifiedSince() throws Exception {
+        assertEquals(200, get("If-Match", "*", "If-Unmodified-Since", hoursFromNow(-1)).status);
+    }
+
+    @Test
+    public void ifNoneMatchOverridesIfModifiedSince() throws Exception {
+        assertEquals(200, get("If-None-Match", "\"other\"", "If-Modified-Since", hoursFromNow(1)).status);
+        assertEquals(304, get("If-None-Match", _etag, "If-Modified-Since", hoursFromNow(-1)).status);
+    }
+
+    @Test
+    public void ifRange() throws Exception {
+        // If-Range uses the strong comparison, which a weak tag never satisfies
+        ServletHarness.Response response = get("Range", "bytes=0-1", "If-Range", _etag);
+        assertEquals(200, response.status);
+        assertEquals(7, response.bytes);
+
+        response = get("Range", "bytes=0-1", "If-Range", "\"other\"");
+        assertEquals(200, response.status);
+        assertEquals(7, response.bytes);
+
+        assertEquals(206, get("Range", "bytes=0-1", "If-Range", _last_modified).status);
+        assertEquals(200, get("Range", "bytes=0-1", "If-Range", hoursFromNow(-1)).status);
+    }
+
+    @Test
+    public void conditionalPut() throws Exception {
+        assertEquals(412, _harness.service("PUT", URI, "new".getBytes(), "If-Match", "\"other\"").status);
+        assertEquals(412, _harness.service("PUT", URI, "new".getBytes(), "If-None-Match", "*").status);
+        assertEquals(412, _harness.service("PUT", "/new.txt", "new".getBytes(), "If-Match", "*").status);
+        assertEquals("content", new String(_store.api().readObject(new ObjectPath(ServletHarness.PREFIX + URI), null, null)));
+
+        assertEquals(412, _harness.service("PUT", URI, "new".getBytes(), "If-Match", _etag).status);
+        assertEquals(412, _harness.service("PUT", URI, "new".getBytes(), "If-None-Match", _etag.substring(2)).status);
+        assertEquals(204, _harness.service("PUT", URI, "new".getBytes(), "If-Match", "*").status);
+        assertEquals(201, _harness.service("PUT", "/new.txt", "new".getBytes(), "If-None-Match", "*").status);
+    }
+
+    @Test
+    public void sameSizePutsInTheSameSecond() throws Exception {
+        ServletHarness.Response first = null;
+        ServletHarness.Response second = null;
+        // Last-Modified has a one second resolution: retry until both writes fall in the same second
+        for (int i = 0; i < 10; i++) {
+            assertEquals(204, _harness.service("PUT", URI, "version1".getBytes()).status);
+            first = _harness.service("HEAD", URI, null);
+            assertEquals(204, _harness.service("PUT", URI, "version2".getBytes()).status);
+            second = _harness.service("HEAD", URI, null);
+            if (first.headers.get("Last-Modified").equals(second.headers.get("Last-Modified")))
+                break;
+        }
+        assertEquals(first.headers.get("Last-Modified"), second.headers.get("Last-Modified"));
+        String etag = first.headers.get("ETag");
+        assertEquals(etag, second.headers.get("ETag"));
+        assertTrue(etag.startsWith("W/"));
+
+        // the tag of the first version neither selects a range of the second one...
+        ServletHarness.Response response = get("Range", "bytes=0-1", "If-Range", etag);
+        assertEquals(200, response.status);
+        assertEquals(8, response.bytes);
+        // ...nor lets an update overwrite it
+        assertEquals(412, _harness.service("PUT", URI, "version3".getBytes(), "If-Match", etag).status);
+        assertEquals("version2", new String(_store.api().readObject(new ObjectPath(ServletHarness.PREFIX + URI), null, null)));
+    }
+
+    @Test
+    public void conditionalPutReadsFreshMetadata() throws Exception {
+        // the metadata cached by the HEAD of setUp still shows the object
+        _store.api().deleteObject(new ObjectPath(ServletHarness.PREFIX + URI));
+        assertEquals(412, _harness.service("PUT", URI, "new".getBytes(), "If-Match", "*").status);
+        assertEquals(201, _harness.service("PUT", URI, "new".getBytes(), "If-None-Match", "*").status);
+        assertEquals("new", new String(_store.api().readObject(new ObjectPath(ServletHarness.PREFIX + URI), null, null)));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class ContentCacheTest {
+
+    private static final String PATH = "bench/user\n/dir/object";
+    private static final String VALIDATOR = "W/\"id-7-2010-06-21T14:03:52Z\"";
+
+    private File _dir;
+    private ContentCache _cache;
+
+    @Before
+    public void setUp() throws Exception {
+        _dir = new File(System.getProperty("java.io.tmpdir"), "atmosdav-test-" + System.nanoTime());
+        _cache = new ContentCache(_dir, 1024, 100);
+    }
+
+    @After
+    public void tearDown() {
+        _cache.destroy();
+        _dir.delete();
+    }
+
+    private ContentCache.Fill fill(String content) throws Exception {
+        ContentCache.Fill fill = _cache.fill(PATH, VALIDATOR, content.length(), new ByteArrayOutputStream());
+        assertNotNull(fill);
+        fill.write(content.getBytes("ISO-8859-1"));
+        return fill;
+    }
+
+    private String cached(String validator) throws Exception {
+        File file = _cache.get(PATH, validator);
+        if (file == null)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _cache.send(file, 0, file.length() - 1, out);
+        return out.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void completeFillIsIndexed() throws Exception {
+        assertNull(cached(VALIDATOR));
+        fill("content").complete();
+        assertEquals("content", cached(VALIDATOR));
+        assertEquals(1, _cache.getHits());
+        assertEquals(1, _cache.getMisses());
+    }
+
+    @Test
+    public void otherValidatorDropsTheEntry() throws Exception {
+        fill("content").complete();
+        assertNull(cached("W/\"id-7-2010-06-21T14:03:53Z\""));
+        assertNull(cached(VALIDATOR));
+    }
+
+    @Test
+    public void incompleteFillIsNotIndexed() throws Exception {
+        ContentCache.Fill fill = _cache.fill(PATH, VALIDATOR, 7, new ByteArrayOutputStream());
+        fill.write("cont".getBytes());
+        fill.complete();
+        assertNull(cached(VALIDATOR));
+
+        fill("content").abandon();
+        assertNull(cached(VALIDATOR));
+    }
+
+    @Test
+    public void oneFillAtATime() throws Exception {
+        ContentCache.Fill fill = fill("content");
+        assertNull(_cache.fill(PATH, VALIDATOR, 7, new ByteArrayOutputStream()));
+        fill.complete();
+    }
+
+    @Test
+    public void removeCancelsTheFillInProgress() throws Exception {
+        // a write of the same size in the same second keeps the validator
+        ContentCache.Fill before_write = fill("old con");
+        _cache.remove(PATH);
+
+        // a fill started after the write is not held up by the cancelled one
+        ContentCache.Fill after_write = fill("new con");
+        before_write.complete();
+        assertNull(cached(VALIDATOR));
+        assertNull(_cache.fill(PATH, VALIDATOR, 7, new ByteArrayOutputStream()));
+
+        after_write.complete();
+        assertEquals("new con", cached(VALIDATOR));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class DavMetricsTest {
+
+    @Test
+    public void cacheCounters() {
+        LruCache<String, String> metadata = new LruCache<String, String>("metadata cache", 1, 60000);
+        metadata.put("a", "1");
+        metadata.get("a");
+        metadata.get("b");
+        metadata.put("b", "2");
+        ListingCache listings = new ListingCache(100, 60000);
+        listings.get("dir");
+
+        DavMetrics metrics = new DavMetrics();
+        metrics.addCache("metadata", metadata);
+        metrics.addCache("listing", listings);
+
+        String[] counters = metrics.getCacheCounters();
+        assertEquals(2, counters.length);
+        assertEquals("listing hits=0 misses=1 evictions=0", counters[0]);
+        assertEquals("metadata hits=1 misses=1 evictions=1", counters[1]);
+
+        String text = metrics.getText();
+        assertTrue(text.contains("# TYPE atmosdav_cache_hits_total counter\n"
+                + "atmosdav_cache_hits_total{cache=\"listing\"} 0\n"
+                + "atmosdav_cache_hits_total{cache=\"metadata\"} 1\n"));
+        assertTrue(text.contains("atmosdav_cache_misses_total{cache=\"metadata\"} 1\n"));
+        assertTrue(text.contains("atmosdav_cache_evictions_total{cache=\"metadata\"} 1\n"));
+    }
+
+    private static ServletHarness.Response getMetrics(String metrics_allow, String... headers) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("metrics_path", "/metrics");
+        if (metrics_allow != null)
+            params.put("metrics_allow", metrics_allow);
+        ServletHarness harness = new ServletHarness(new InMemoryAtmos(0), params);
+        try {
+            return harness.service("GET", "/metrics", null, headers);
+        } finally {
+            harness.destroy();
+        }
+    }
+
+    @Test
+    public void metricsEndpointNeedsCredentials() throws Exception {
+        // the harness clients come from 127.0.0.1, which is not trusted by default
+        ServletHarness.Response response = getMetrics(null, "Authorization", "");
+        assertEquals(401, response.status);
+        assertNotNull(response.headers.get("WWW-Authenticate"));
+
+        assertEquals(200, getMetrics(null).status);
+    }
+
+    @Test
+    public void metricsAllowList() throws Exception {
+        assertEquals(200, getMetrics("10.0.0.1, 127.0.0.1", "Authorization", "").status);
+        assertEquals(401, getMetrics("10.0.0.1", "Authorization", "").status);
+        assertEquals(401, getMetrics("", "Authorization", "").status);
+    }
+}
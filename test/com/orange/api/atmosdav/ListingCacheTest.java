@@ -0,0 +1,170 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.Metadata;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectPath;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class ListingCacheTest {
+
+    private static final String TENANT = "sub/uid";
+    private static final String DIR = ListingCache.cacheKey(TENANT, "/dir/");
+
+    private static List<DirectoryLister.ListedEntry> children(String dir, int count) {
+        List<DirectoryLister.ListedEntry> children = new ArrayList<DirectoryLister.ListedEntry>();
+        for (int i = 0; i < count; i++) {
+            MetadataList metadata = new MetadataList();
+            metadata.addMetadata(new Metadata("size", String.valueOf(i), false));
+            children.add(new DirectoryLister.ListedEntry(new ObjectPath(dir + "file" + i), metadata));
+        }
+        return children;
+    }
+
+    private static DirectoryLister.ListedEntry find(List<DirectoryLister.ListedEntry> entries, String path) {
+        for (DirectoryLister.ListedEntry entry:entries)
+            if (entry.path.toString().equals(path))
+                return entry;
+        return null;
+    }
+
+    @Test
+    public void putAndGet() {
+        ListingCache cache = new ListingCache(100, 60000);
+        assertNull(cache.get(DIR));
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+
+        List<DirectoryLister.ListedEntry> cached = cache.get(DIR);
+        assertEquals(3, cached.size());
+        assertEquals("2", find(cached, "/dir/file2").metadata.getMetadata("size").getValue());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void listingsAreKeyedByTenant() {
+        ListingCache cache = new ListingCache(100, 60000);
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+        assertNull(cache.get(ListingCache.cacheKey("other/uid", "/dir/")));
+        assertNull(cache.get(ListingCache.cacheKey("sub/other", "/dir/")));
+
+        // changes of another tenant do not touch the listing
+        cache.removed("other/uid", new ObjectPath("/dir/file0"));
+        assertEquals(3, cache.get(DIR).size());
+    }
+
+    @Test
+    public void listingsExpire() throws Exception {
+        ListingCache cache = new ListingCache(100, 1);
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+        Thread.sleep(20);
+        assertNull(cache.get(DIR));
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() {
+        ListingCache cache = new ListingCache(100, 0);
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+        assertNull(cache.get(DIR));
+    }
+
+    @Test
+    public void listingReadDuringAChangeIsNotStored() {
+        ListingCache cache = new ListingCache(100, 60000);
+        long version = cache.getVersion();
+        // a PUT completes while the listing is read from Atmos
+        cache.added(TENANT, new ObjectPath("/dir/new"));
+        cache.put(DIR, children("/dir/", 3), version);
+        assertNull(cache.get(DIR));
+
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+        assertNotNull(cache.get(DIR));
+    }
+
+    @Test
+    public void leastRecentlyUsedListingsAreEvicted() {
+        ListingCache cache = new ListingCache(5, 60000);
+        String dir1 = ListingCache.cacheKey(TENANT, "/dir1/");
+        String dir2 = ListingCache.cacheKey(TENANT, "/dir2/");
+        String dir3 = ListingCache.cacheKey(TENANT, "/dir3/");
+        cache.put(dir1, children("/dir1/", 2), cache.getVersion());
+        cache.put(dir2, children("/dir2/", 2), cache.getVersion());
+        cache.get(dir1);
+        cache.put(dir3, children("/dir3/", 2), cache.getVersion());
+
+        assertNotNull(cache.get(dir1));
+        assertNull(cache.get(dir2));
+        assertNotNull(cache.get(dir3));
+    }
+
+    @Test
+    public void listingLargerThanTheCacheIsNotStored() {
+        ListingCache cache = new ListingCache(5, 60000);
+        cache.put(DIR, children("/dir/", 6), cache.getVersion());
+        assertNull(cache.get(DIR));
+    }
+
+    @Test
+    public void changesAreApplied() {
+        ListingCache cache = new ListingCache(100, 60000);
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+
+        cache.added(TENANT, new ObjectPath("/dir/new"));
+        List<DirectoryLister.ListedEntry> cached = cache.get(DIR);
+        assertEquals(4, cached.size());
+        assertNull(find(cached, "/dir/new").metadata);
+
+        cache.changed(TENANT, "/dir/file1");
+        cached = cache.get(DIR);
+        assertNull(find(cached, "/dir/file1").metadata);
+        assertNotNull(find(cached, "/dir/file2").metadata);
+
+        cache.removed(TENANT, new ObjectPath("/dir/file2"));
+        cached = cache.get(DIR);
+        assertEquals(3, cached.size());
+        assertNull(find(cached, "/dir/file2"));
+
+        cache.invalidate(TENANT, new ObjectPath("/dir/file0"));
+        assertNull(cache.get(DIR));
+    }
+
+    @Test
+    public void removedDirectoryDropsItsListing() {
+        ListingCache cache = new ListingCache(100, 60000);
+        cache.put(DIR, children("/dir/", 3), cache.getVersion());
+        cache.removed(TENANT, new ObjectPath("/dir/"));
+        assertNull(cache.get(DIR));
+    }
+
+    @Test
+    public void parentOf() {
+        assertEquals("/dir/", ListingCache.parentOf("/dir/file"));
+        assertEquals("/dir/", ListingCache.parentOf("/dir/sub/"));
+        assertEquals("/", ListingCache.parentOf("/dir/"));
+    }
+}
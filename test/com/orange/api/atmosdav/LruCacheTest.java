@@ -0,0 +1,111 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class LruCacheTest {
+
+    @Test
+    public void getAndPut() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 60000);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        cache.put("a", "2");
+        assertEquals("2", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void putIsSkippedAfterARemove() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 60000);
+        long generation = cache.getGeneration("a");
+        cache.put("a", "1", generation);
+        assertEquals("1", cache.get("a"));
+
+        // a write removes the key while "2" is being read
+        generation = cache.getGeneration("a");
+        cache.remove("a");
+        cache.put("a", "2", generation);
+        assertNull(cache.get("a"));
+
+        cache.put("a", "3", cache.getGeneration("a"));
+        assertEquals("3", cache.get("a"));
+    }
+
+    @Test
+    public void clearChangesAllGenerations() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 60000);
+        long generation = cache.getGeneration("a");
+        cache.clear();
+        cache.put("a", "1", generation);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void nullValuesAreNotCached() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 60000);
+        cache.put("a", null);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 0);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void entriesExpire() throws Exception {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 10, 1);
+        cache.put("a", "1");
+        Thread.sleep(20);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        LruCache<String, String> cache = new LruCache<String, String>("test", 2, 60000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.HashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the properties returned by PROPFIND prop requests, against the
+ * in-memory Atmos of the benchmarks.
+ *
+ * @author Stephan Hadinger
+ */
+public class PropfindTest {
+
+    private static final String URI = "/file.txt";
+
+    private ServletHarness _harness;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryAtmos store = new InMemoryAtmos(0);
+        store.put(ServletHarness.PREFIX + URI, "content".getBytes());
+        _harness = new ServletHarness(store, new HashMap<String, String>());
+        _harness.keep_bodies = true;
+    }
+
+    @After
+    public void tearDown() {
+        _harness.destroy();
+    }
+
+    private String propfind(String properties) throws Exception {
+        String body = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<D:propfind xmlns:D=\"DAV:\"><D:prop>" + properties + "</D:prop></D:propfind>";
+        ServletHarness.Response response = _harness.service("PROPFIND", URI, body.getBytes("UTF-8"), "Depth", "0");
+        assertEquals(207, response.status);
+        return response.body.toString("UTF-8");
+    }
+
+    @Test
+    public void davProperties() throws Exception {
+        String body = propfind("<D:getcontentlength/><D:displayname/>");
+        assertTrue(body, body.contains("<propstat><prop><getcontentlength>7</getcontentlength>"
+                + "<displayname>file.txt</displayname></prop><status>HTTP/1.1 200 OK</status></propstat>"));
+        assertFalse(body, body.contains("404"));
+    }
+
+    @Test
+    public void propertiesAreMatchedByNamespace() throws Exception {
+        String body = propfind("<D:getcontentlength/><x:getcontentlength xmlns:x=\"urn:foo\"/><getetag/>");
+        assertTrue(body, body.contains("<propstat><prop><getcontentlength>7</getcontentlength></prop>"
+                + "<status>HTTP/1.1 200 OK</status></propstat>"));
+        assertTrue(body, body.contains("<propstat><prop><getcontentlength xmlns=\"urn:foo\"/>"
+                + "<getetag xmlns=\"\"/></prop><status>HTTP/1.1 404 Not Found</status></propstat>"));
+    }
+
+    @Test
+    public void unknownDavProperty() throws Exception {
+        String body = propfind("<D:getcontentlanguage/>");
+        assertTrue(body, body.contains("<propstat><prop><getcontentlanguage/></prop>"
+                + "<status>HTTP/1.1 404 Not Found</status></propstat>"));
+    }
+}
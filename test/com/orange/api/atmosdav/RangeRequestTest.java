@@ -0,0 +1,272 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.ObjectPath;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Range requests of GET and the Content-Range requests of PUT,
+ * against the in-memory Atmos of the benchmarks.
+ *
+ * @author Stephan Hadinger
+ */
+public class RangeRequestTest {
+
+    private static final String URI = "/file.txt";
+
+    private InMemoryAtmos _store;
+    private ServletHarness _harness;
+    private byte[] _content;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+            content.append("0123456789");
+        _content = content.toString().getBytes("ISO-8859-1");
+
+        _store = new InMemoryAtmos(0);
+        _store.put(ServletHarness.PREFIX + URI, _content);
+        _harness = new ServletHarness(_store, new HashMap<String, String>());
+        _harness.keep_bodies = true;
+    }
+
+    @After
+    public void tearDown() {
+        _harness.destroy();
+    }
+
+    private ServletHarness.Response get(String range) throws Exception {
+        return _harness.service("GET", URI, null, "Range", range);
+    }
+
+    private static String body(ServletHarness.Response response) throws Exception {
+        return response.body.toString("ISO-8859-1");
+    }
+
+    private String stored(String uri) {
+        return new String(_store.api().readObject(new ObjectPath(ServletHarness.PREFIX + uri), null, null));
+    }
+
+    @Test
+    public void noRange() throws Exception {
+        ServletHarness.Response response = _harness.service("GET", URI, null);
+        assertEquals(200, response.status);
+        assertEquals(100, response.bytes);
+        assertEquals("bytes", response.headers.get("Accept-Ranges"));
+    }
+
+    @Test
+    public void singleRange() throws Exception {
+        ServletHarness.Response response = get("bytes=12-16");
+        assertEquals(206, response.status);
+        assertEquals("bytes 12-16/100", response.headers.get("Content-Range"));
+        assertEquals("5", response.headers.get("Content-Length"));
+        assertEquals("23456", body(response));
+    }
+
+    @Test
+    public void suffixRange() throws Exception {
+        ServletHarness.Response response = get("bytes=-5");
+        assertEquals(206, response.status);
+        assertEquals("bytes 95-99/100", response.headers.get("Content-Range"));
+        assertEquals("56789", body(response));
+    }
+
+    @Test
+    public void suffixLargerThanObject() throws Exception {
+        ServletHarness.Response response = get("bytes=-500");
+        assertEquals(206, response.status);
+        assertEquals("bytes 0-99/100", response.headers.get("Content-Range"));
+        assertEquals(100, response.bytes);
+    }
+
+    @Test
+    public void openEndedRange() throws Exception {
+        ServletHarness.Response response = get("bytes=90-");
+        assertEquals(206, response.status);
+        assertEquals("bytes 90-99/100", response.headers.get("Content-Range"));
+        assertEquals("0123456789", body(response));
+    }
+
+    @Test
+    public void endBeyondSizeIsClipped() throws Exception {
+        ServletHarness.Response response = get("bytes=95-1000");
+        assertEquals(206, response.status);
+        assertEquals("bytes 95-99/100", response.headers.get("Content-Range"));
+        assertEquals("56789", body(response));
+    }
+
+    @Test
+    public void unsatisfiableRange() throws Exception {
+        ServletHarness.Response response = get("bytes=100-200");
+        assertEquals(416, response.status);
+        assertEquals("bytes */100", response.headers.get("Content-Range"));
+        assertEquals(0, _store.reads.get());
+    }
+
+    @Test
+    public void emptySuffixIsUnsatisfiable() throws Exception {
+        assertEquals(416, get("bytes=-0").status);
+    }
+
+    @Test
+    public void unsatisfiableRangeIgnoredWithSatisfiableOne() throws Exception {
+        ServletHarness.Response response = get("bytes=200-300,0-1");
+        assertEquals(206, response.status);
+        assertEquals("bytes 0-1/100", response.headers.get("Content-Range"));
+        assertEquals("01", body(response));
+    }
+
+    @Test
+    public void invalidRangesSendTheFullContent() throws Exception {
+        String[] headers = { "bytes=5-1", "bytes=a-b", "bytes=1", "items=0-1", "bytes=-1-2" };
+        for (String header:headers) {
+            ServletHarness.Response response = get(header);
+            assertEquals(header, 200, response.status);
+            assertEquals(header, 100, response.bytes);
+        }
+    }
+
+    @Test
+    public void overlappingAndAdjacentRangesAreCoalesced() throws Exception {
+        ServletHarness.Response response = get("bytes=10-14,0-9,12-19");
+        assertEquals(206, response.status);
+        assertEquals("bytes 0-19/100", response.headers.get("Content-Range"));
+        assertEquals("01234567890123456789", body(response));
+    }
+
+    @Test
+    public void multipleRanges() throws Exception {
+        ServletHarness.Response response = get("bytes=0-1,-2");
+        assertEquals(206, response.status);
+        assertTrue(response.headers.get("Content-Type").startsWith("multipart/byteranges; boundary="));
+        assertEquals(String.valueOf(response.bytes), response.headers.get("Content-Length"));
+        String body = body(response);
+        assertTrue(body.contains("Content-Range: bytes 0-1/100\r\n\r\n01\r\n"));
+        assertTrue(body.contains("Content-Range: bytes 98-99/100\r\n\r\n89\r\n"));
+        assertEquals(2, _store.reads.get());
+    }
+
+    @Test
+    public void tooManyRangesSendTheFullContent() throws Exception {
+        // one more disjoint range than MAX_RANGES
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i < 17; i++)
+            header.append((i > 0) ? "," : "").append(i * 2).append('-').append(i * 2);
+        ServletHarness.Response response = get(header.toString());
+        assertEquals(200, response.status);
+        assertEquals(100, response.bytes);
+    }
+
+    @Test
+    public void coalesceRanges() {
+        List<AtmosDavServlet.Range> ranges = new ArrayList<AtmosDavServlet.Range>();
+        ranges.add(range(50, 60));
+        ranges.add(range(0, 9));
+        ranges.add(range(55, 70));
+        ranges.add(range(10, 20));
+        ranges.add(range(30, 30));
+
+        List<AtmosDavServlet.Range> result = AtmosDavServlet.coalesceRanges(ranges);
+        assertEquals(3, result.size());
+        assertEquals(0, result.get(0).start);
+        assertEquals(20, result.get(0).end);
+        assertEquals(30, result.get(1).start);
+        assertEquals(30, result.get(1).end);
+        assertEquals(50, result.get(2).start);
+        assertEquals(70, result.get(2).end);
+    }
+
+    private AtmosDavServlet.Range range(long start, long end) {
+        AtmosDavServlet.Range range = _harness.servlet.new Range();
+        range.start = start;
+        range.end = end;
+        range.length = 100;
+        return range;
+    }
+
+    @Test
+    public void contentRangePutUpdatesTheRange() throws Exception {
+        ServletHarness.Response response = _harness.service("PUT", URI, "abcde".getBytes(),
+                "Content-Range", "bytes 10-14/100");
+        assertEquals(204, response.status);
+        assertEquals("0123456789abcde56789", stored(URI).substring(0, 20));
+        assertEquals(100, stored(URI).length());
+    }
+
+    @Test
+    public void contentRangePutCreatesTheObject() throws Exception {
+        ServletHarness.Response response = _harness.service("PUT", "/new.txt", "abcde".getBytes(),
+                "Content-Range", "bytes 0-4/*");
+        assertEquals(201, response.status);
+        assertEquals("abcde", stored("/new.txt"));
+
+        response = _harness.service("PUT", "/new.txt", "fgh".getBytes(), "Content-Range", "bytes 5-7/8");
+        assertEquals(204, response.status);
+        assertEquals("abcdefgh", stored("/new.txt"));
+    }
+
+    @Test
+    public void contentRangePutLengthMismatch() throws Exception {
+        ServletHarness.Response response = _harness.service("PUT", URI, "abc".getBytes(),
+                "Content-Range", "bytes 10-14/100");
+        assertEquals(400, response.status);
+        assertEquals(new String(_content), stored(URI));
+    }
+
+    @Test
+    public void contentRangePutPastTheEnd() throws Exception {
+        ServletHarness.Response response = _harness.service("PUT", URI, "abcde".getBytes(),
+                "Content-Range", "bytes 101-105/*");
+        assertEquals(416, response.status);
+        assertEquals("bytes */100", response.headers.get("Content-Range"));
+        assertEquals(new String(_content), stored(URI));
+
+        response = _harness.service("PUT", "/new.txt", "abcde".getBytes(), "Content-Range", "bytes 5-9/*");
+        assertEquals(416, response.status);
+        assertEquals("bytes */0", response.headers.get("Content-Range"));
+        assertEquals(404, _harness.service("HEAD", "/new.txt", null).status);
+
+        // appending right at the end is allowed
+        response = _harness.service("PUT", URI, "abcde".getBytes(), "Content-Range", "bytes 100-104/105");
+        assertEquals(204, response.status);
+        assertEquals(105, stored(URI).length());
+    }
+
+    @Test
+    public void invalidContentRange() throws Exception {
+        String[] headers = { "bytes 5-1/100", "bytes 0-4", "bytes x-4/100", "items 0-4/100" };
+        for (String header:headers) {
+            ServletHarness.Response response = _harness.service("PUT", URI, "abcde".getBytes(),
+                    "Content-Range", header);
+            assertEquals(header, 400, response.status);
+        }
+        assertEquals(new String(_content), stored(URI));
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.ObjectPath;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class ReadAheadDownloaderTest {
+
+    private static final int BLOCK_SIZE = 10;
+    private static final ObjectPath PATH = new ObjectPath("/dir/object");
+
+    private InMemoryAtmos _store;
+    private ExecutorService _executor;
+    private ReadAheadDownloader _downloader;
+    private byte[] _content;
+
+    @Before
+    public void setUp() {
+        _content = new byte[95];
+        new Random(95).nextBytes(_content);
+        _store = new InMemoryAtmos(0);
+        _store.put(PATH.toString(), _content);
+        _executor = Executors.newFixedThreadPool(8);
+        _downloader = new ReadAheadDownloader(_executor, BLOCK_SIZE, 3 * BLOCK_SIZE, 8);
+    }
+
+    @After
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Wraps the store, calling "hook" around each extent read.
+     */
+    private EsuApi intercept(final ReadHook hook) {
+        final EsuApi api = _store.api();
+        return (EsuApi) ServletHarness.proxy(EsuApi.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                boolean read = method.getName().equals("readObject");
+                if (read)
+                    hook.before((Extent) args[1]);
+                try {
+                    return method.invoke(api, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if (read)
+                        hook.after();
+                }
+            }
+        });
+    }
+
+    private static class ReadHook {
+        void before(Extent extent) throws Exception {
+        }
+
+        void after() {
+        }
+    }
+
+    private byte[] download(EsuApi api, long start, long end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        _downloader.download(api, PATH, start, end, out);
+        return out.toByteArray();
+    }
+
+    private byte[] slice(int start, int end) {
+        byte[] slice = new byte[end - start];
+        System.arraycopy(_content, start, slice, 0, slice.length);
+        return slice;
+    }
+
+    @Test
+    public void downloadsTheWholeObject() throws Exception {
+        assertTrue(Arrays.equals(_content, download(_store.api(), 0, _content.length - 1)));
+        assertEquals(10, _store.reads.get());
+    }
+
+    @Test
+    public void downloadsARange() throws Exception {
+        byte[] range = download(_store.api(), 7, 63);
+        assertTrue(Arrays.equals(slice(7, 64), range));
+
+        range = download(_store.api(), 94, 94);
+        assertEquals(1, range.length);
+        assertEquals(_content[94], range[0]);
+    }
+
+    @Test
+    public void blocksCompletingOutOfOrder() throws Exception {
+        // the later blocks of the window are read first
+        EsuApi api = intercept(new ReadHook() {
+            @Override
+            void before(Extent extent) throws Exception {
+                Thread.sleep(15 - (extent.getOffset() / BLOCK_SIZE % 3) * 5);
+            }
+        });
+        assertTrue(Arrays.equals(_content, download(api, 0, _content.length - 1)));
+    }
+
+    @Test
+    public void readsAreBoundedByTheWindow() throws Exception {
+        final AtomicInteger in_flight = new AtomicInteger();
+        final AtomicInteger max_in_flight = new AtomicInteger();
+        EsuApi api = intercept(new ReadHook() {
+            @Override
+            void before(Extent extent) throws Exception {
+                int count = in_flight.incrementAndGet();
+                synchronized (max_in_flight) {
+                    max_in_flight.set(Math.max(max_in_flight.get(), count));
+                }
+                Thread.sleep(5);
+            }
+
+            @Override
+            void after() {
+                in_flight.decrementAndGet();
+            }
+        });
+        assertTrue(Arrays.equals(_content, download(api, 0, _content.length - 1)));
+        assertTrue(max_in_flight.get() <= 3);
+    }
+
+    @Test
+    public void failedReadStopsTheDownload() throws Exception {
+        final EsuException failure = new EsuException("failed", 500, 1001);
+        EsuApi api = intercept(new ReadHook() {
+            @Override
+            void before(Extent extent) {
+                if (extent.getOffset() == 4 * BLOCK_SIZE)
+                    throw failure;
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            _downloader.download(api, PATH, 0, _content.length - 1, out);
+            fail();
+        } catch (EsuException e) {
+            assertSame(failure, e);
+        }
+        // the blocks before the failed one are written, in order
+        assertTrue(Arrays.equals(slice(0, 4 * BLOCK_SIZE), out.toByteArray()));
+        // no block is requested beyond the window of the failed one
+        assertTrue(_store.reads.get() <= 6);
+    }
+
+    @Test
+    public void exhaustedBudgetReadsSequentially() throws Exception {
+        _downloader = new ReadAheadDownloader(_executor, BLOCK_SIZE, 3 * BLOCK_SIZE, 0);
+        final Thread caller = Thread.currentThread();
+        EsuApi api = intercept(new ReadHook() {
+            @Override
+            void before(Extent extent) {
+                assertSame(caller, Thread.currentThread());
+            }
+        });
+        assertTrue(Arrays.equals(_content, download(api, 0, _content.length - 1)));
+        assertEquals(10, _downloader.getSequentialReads());
+    }
+
+    @Test
+    public void budgetIsSharedByTheDownloads() throws Exception {
+        _downloader = new ReadAheadDownloader(_executor, BLOCK_SIZE, 3 * BLOCK_SIZE, 2);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger in_flight = new AtomicInteger();
+        final AtomicInteger max_in_flight = new AtomicInteger();
+        final EsuApi api = intercept(new ReadHook() {
+            @Override
+            void before(Extent extent) throws Exception {
+                if (Thread.currentThread().getName().startsWith("second"))
+                    return;     // sequential read of the other download
+                if (Thread.currentThread() == caller)
+                    return;
+                int count = in_flight.incrementAndGet();
+                synchronized (max_in_flight) {
+                    max_in_flight.set(Math.max(max_in_flight.get(), count));
+                }
+                Thread.sleep(5);
+                in_flight.decrementAndGet();
+            }
+        });
+        final Throwable[] failure = new Throwable[1];
+        Thread second = new Thread("second") {
+            @Override
+            public void run() {
+                try {
+                    assertTrue(Arrays.equals(_content, download(api, 0, _content.length - 1)));
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        second.start();
+        assertTrue(Arrays.equals(_content, download(api, 0, _content.length - 1)));
+        second.join();
+        assertNull(failure[0]);
+        assertTrue(max_in_flight.get() <= 2);
+
+        // every block was given back to the budget
+        long sequential = _downloader.getSequentialReads();
+        assertTrue(Arrays.equals(_content, download(_store.api(), 0, _content.length - 1)));
+        assertEquals(sequential, _downloader.getSequentialReads());
+    }
+
+    @Test
+    public void truncatedObject() throws Exception {
+        try {
+            download(_store.api(), 0, 199);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected end of object"));
+        }
+    }
+}
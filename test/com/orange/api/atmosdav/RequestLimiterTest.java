@@ -0,0 +1,92 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class RequestLimiterTest {
+
+    private static final String URI = "/file.txt";
+
+    @Test
+    public void slotsAreBounded() {
+        RequestLimiter limiter = new RequestLimiter(2, 10);
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(2, limiter.getActive());
+        assertEquals(1, limiter.getRejected());
+
+        limiter.release();
+        assertTrue(limiter.acquire());
+        limiter.release();
+        limiter.release();
+        assertEquals(0, limiter.getActive());
+    }
+
+    @Test
+    public void requestBeyondTheLimitGets503() throws Exception {
+        // every Atmos call of the first request takes a second
+        InMemoryAtmos store = new InMemoryAtmos(1000);
+        store.put(ServletHarness.PREFIX + URI, "content".getBytes());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("max_active_requests", "1");
+        params.put("request_queue_timeout", "0");
+        params.put("retry_after", "7");
+        final ServletHarness harness = new ServletHarness(store, params);
+        try {
+            final ServletHarness.Response[] first = new ServletHarness.Response[1];
+            Thread slow = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        first[0] = harness.service("GET", URI, null);
+                    } catch (Exception e) {
+                        // first[0] stays null
+                    }
+                }
+            };
+            long calls = store.calls.get();
+            slow.start();
+            // the first request holds the only slot once it reaches Atmos
+            for (int i = 0; (i < 1000) && (store.calls.get() == calls); i++)
+                Thread.sleep(10);
+            assertTrue(store.calls.get() > calls);
+
+            ServletHarness.Response response = harness.service("GET", URI, null);
+            assertEquals(503, response.status);
+            assertEquals("7", response.headers.get("Retry-After"));
+            // OPTIONS never reaches Atmos and is not limited
+            assertEquals(200, harness.service("OPTIONS", URI, null).status);
+
+            slow.join();
+            assertEquals(200, first[0].status);
+        } finally {
+            harness.destroy();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.EsuException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void returnsTheResult() {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        assertEquals("value", flights.execute("key", new Callable<String>() {
+            public String call() {
+                return "value";
+            }
+        }));
+        assertEquals(1, flights.getCalls());
+        assertEquals(0, flights.getCollapsed());
+    }
+
+    @Test
+    public void runtimeExceptionsAreRethrown() {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        final EsuException failure = new EsuException("failed", 404, 1003);
+        try {
+            flights.execute("key", new Callable<String>() {
+                public String call() {
+                    throw failure;
+                }
+            });
+            fail();
+        } catch (EsuException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void checkedExceptionsAreWrapped() {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        final IOException failure = new IOException("failed");
+        try {
+            flights.execute("key", new Callable<String>() {
+                public String call() throws IOException {
+                    throw failure;
+                }
+            });
+            fail();
+        } catch (EsuException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void failedCallsAreNotRemembered() {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        final AtomicInteger count = new AtomicInteger();
+        Callable<String> call = new Callable<String>() {
+            public String call() {
+                if (count.incrementAndGet() == 1)
+                    throw new EsuException("failed");
+                return "value";
+            }
+        };
+        try {
+            flights.execute("key", call);
+            fail();
+        } catch (EsuException e) {
+            // expected
+        }
+        assertEquals("value", flights.execute("key", call));
+        assertEquals(2, flights.getCalls());
+    }
+
+    /**
+     * Runs a call blocked until "release", and a second call on the same key
+     * once the first one is in flight.
+     *
+     * @return the outcome of the second call
+     */
+    private static Future<String> collapse(final SingleFlight<String, String> flights, final Callable<String> call,
+                                           CountDownLatch started, CountDownLatch release,
+                                           ExecutorService executor) throws Exception {
+        final Future<String> first = executor.submit(new Callable<String>() {
+            public String call() {
+                return flights.execute("key", call);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<String> second = executor.submit(new Callable<String>() {
+            public String call() {
+                return flights.execute("key", new Callable<String>() {
+                    public String call() {
+                        return "not collapsed";
+                    }
+                });
+            }
+        });
+        while (flights.getCollapsed() == 0)
+            Thread.sleep(1);
+        release.countDown();
+        try {
+            first.get();
+        } catch (Exception e) {
+            // checked by the caller on the second call
+        }
+        return second;
+    }
+
+    @Test
+    public void concurrentCallsShareTheResult() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> second = collapse(flights, new Callable<String>() {
+                public String call() throws Exception {
+                    started.countDown();
+                    release.await();
+                    return "value";
+                }
+            }, started, release, executor);
+            assertEquals("value", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, flights.getCalls());
+            assertEquals(1, flights.getCollapsed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareTheFailure() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final EsuException failure = new EsuException("failed", 500, 1001);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> second = collapse(flights, new Callable<String>() {
+                public String call() throws Exception {
+                    started.countDown();
+                    release.await();
+                    throw failure;
+                }
+            }, started, release, executor);
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+            assertEquals(1, flights.getCalls());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
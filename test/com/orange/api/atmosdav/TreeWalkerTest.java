@@ -0,0 +1,145 @@
+/*
+ *	This file is part of atmosdav, a webdav server on top of EMC
+ *      Atmos Cloud Storage.
+ *	(c) 2010 Stephan Hadinger
+ *
+ *	This program is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.orange.api.atmosdav;
+
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectPath;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Stephan Hadinger
+ */
+public class TreeWalkerTest {
+
+    private static final String TENANT = "bench/user";
+    private static final List<String> TAGS = Arrays.asList("type", "objname", "objectid", "size", "mtime");
+
+    private InMemoryAtmos _store;
+    private ExecutorService _metadata_executor;
+    private ExecutorService _walk_executor;
+    private DirectoryLister _lister;
+
+    @Before
+    public void setUp() {
+        _store = new InMemoryAtmos(0);
+        _metadata_executor = Executors.newFixedThreadPool(4);
+        // a single listing thread, shared by all the walks
+        _walk_executor = Executors.newFixedThreadPool(1);
+        _lister = new DirectoryLister(_metadata_executor, new LruCache<String, MetadataList>("metadata", 10000, 60000),
+                new ListingCache(100, 60000), new SingleFlight<String, MetadataList>("metadata"), TAGS, 4, 1000, true);
+    }
+
+    @After
+    public void tearDown() {
+        _walk_executor.shutdownNow();
+        _metadata_executor.shutdownNow();
+    }
+
+    private void fill(String dir, int size) {
+        for (int i = 0; i < size; i++)
+            _store.put(dir + "file" + i, new byte[1]);
+    }
+
+    private static class Collector implements DirectoryLister.EntryHandler {
+        final List<ObjectPath> paths = new ArrayList<ObjectPath>();
+
+        public void entry(DirectoryLister.ListedEntry entry) throws IOException {
+            paths.add(entry.path);
+        }
+    }
+
+    @Test
+    public void walksTheTree() throws Exception {
+        fill("/root/", 3);
+        fill("/root/a/", 2);
+        fill("/root/a/b/", 2);
+        TreeWalker walker = new TreeWalker(_walk_executor, _lister, 2, 16, 100);
+        Collector collector = new Collector();
+        assertTrue(walker.walk(_store.api(), TENANT, new ObjectPath("/root/"), collector));
+        // 3 files and a/, 2 files and b/, 2 files
+        assertEquals(9, collector.paths.size());
+        assertTrue(collector.paths.contains(new ObjectPath("/root/a/b/file1")));
+    }
+
+    @Test
+    public void walkStopsAtMaxEntries() throws Exception {
+        fill("/root/", 50);
+        TreeWalker walker = new TreeWalker(_walk_executor, _lister, 2, 16, 10);
+        Collector collector = new Collector();
+        assertFalse(walker.walk(_store.api(), TENANT, new ObjectPath("/root/"), collector));
+        assertEquals(collector.paths.toString(), 10, collector.paths.size());
+
+        walker = new TreeWalker(_walk_executor, _lister, 2, 16, 50);
+        collector = new Collector();
+        assertTrue(walker.walk(_store.api(), TENANT, new ObjectPath("/root/"), collector));
+        assertEquals(50, collector.paths.size());
+    }
+
+    @Test
+    public void blockedClientHoldsNoListingThread() throws Exception {
+        fill("/slow/", 2000);
+        fill("/fast/", 3);
+        final TreeWalker walker = new TreeWalker(_walk_executor, _lister, 1, 16, 10000);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    walker.walk(_store.api(), TENANT, new ObjectPath("/slow/"), new DirectoryLister.EntryHandler() {
+                        public void entry(DirectoryLister.ListedEntry entry) throws IOException {
+                            blocked.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new IOException("interrupted");
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    // not checked
+                }
+            }
+        };
+        slow.start();
+        try {
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            // the other walk gets the only listing thread while the first client is blocked
+            Collector collector = new Collector();
+            assertTrue(walker.walk(_store.api(), TENANT, new ObjectPath("/fast/"), collector));
+            assertEquals(3, collector.paths.size());
+        } finally {
+            release.countDown();
+            slow.join();
+        }
+    }
+}